@@ -1,7 +1,9 @@
 package com.alonsoruibal.chess;
 
+import com.alonsoruibal.chess.bitboard.AttackInfo;
 import com.alonsoruibal.chess.bitboard.BitboardAttacks;
 import com.alonsoruibal.chess.bitboard.BitboardUtils;
+import com.alonsoruibal.chess.hash.MaterialKey;
 import com.alonsoruibal.chess.hash.ZobristKey;
 import com.alonsoruibal.chess.log.Logger;
 import com.alonsoruibal.chess.movegen.LegalMoveGenerator;
@@ -61,6 +63,23 @@ public class Board {
     public int[] fiftyMovesRuleHistory;
     public char[] capturedPieces;
     public int[] seeGain;
+    // Attacks of the positions in the history, built lazily by getAttackInfo()
+    private AttackInfo[] attackInfoHistory;
+
+    // Piece square values set by the evaluator, [color][piece][square index] with the black ones negated
+    private int[][][] pieceSquareValues;
+    // Sum of the piece square values of all the pieces (whites - blacks), updated by doMove()
+    public int pieceSquareValue = 0;
+    public int[] pieceSquareValueHistory;
+    // Piece counts packed by MaterialKey, updated by doMove()
+    public long materialKey = 0;
+    public long[] materialKeyHistory;
+
+    // Counts the positions in the key history by the low bits of their key, so isDraw() can skip the scan
+    private static final int REPETITION_FILTER_MASK = 0x3ff;
+    private int[] repetitionFilter;
+    // First move number with a valid key history, may be lower than initialMoveNumber after setPosition()
+    private int keyHistoryStart = 0;
 
     // Flags: must be changed only when Moving!!!
     private static final long FLAG_TURN = 0x0001L;
@@ -90,8 +109,12 @@ public class Board {
         keyHistory = new long[MAX_MOVES][2];
         fiftyMovesRuleHistory = new int[MAX_MOVES];
         capturedPieces = new char[MAX_MOVES];
+        pieceSquareValueHistory = new int[MAX_MOVES];
+        materialKeyHistory = new long[MAX_MOVES];
 
         seeGain = new int[32];
+        attackInfoHistory = new AttackInfo[MAX_MOVES];
+        repetitionFilter = new int[REPETITION_FILTER_MASK + 1];
 
         moveHistory = new int[MAX_MOVES];
 
@@ -399,6 +422,7 @@ public class Board {
 
             initialFen = fen;
             initialMoveNumber = fenMoveNumber;
+            keyHistoryStart = fenMoveNumber;
             moveNumber = fenMoveNumber;
             outBookMove = 9999;
 
@@ -420,6 +444,8 @@ public class Board {
             // Finally set zobrish key and check flags
             key = ZobristKey.getKey(this);
             setCheckFlags(getTurn());
+            pieceSquareValue = getPieceSquareValue(whites, pawns, knights, bishops, rooks, queens, kings);
+            materialKey = MaterialKey.getKey(this);
 
             // and save history
             resetHistory();
@@ -427,6 +453,109 @@ public class Board {
         }
     }
 
+    public int[][][] getPieceSquareValues() {
+        return pieceSquareValues;
+    }
+
+    /**
+     * Sets the piece square values that doMove() keeps summed in pieceSquareValue, indexed by
+     * [color][piece][square index] and with the values of the black pieces already negated.
+     * The sums of the current position and of the moves that can be undone are recomputed
+     */
+    public void setPieceSquareValues(int[][][] pieceSquareValues) {
+        this.pieceSquareValues = pieceSquareValues;
+        for (int i = initialMoveNumber; i < moveNumber; i++) {
+            pieceSquareValueHistory[i] = getPieceSquareValue(whitesHistory[i], pawnsHistory[i], knightsHistory[i], bishopsHistory[i],
+                    rooksHistory[i], queensHistory[i], kingsHistory[i]);
+        }
+        pieceSquareValue = getPieceSquareValue(whites, pawns, knights, bishops, rooks, queens, kings);
+    }
+
+    private int getPieceSquareValue(long whites, long pawns, long knights, long bishops, long rooks, long queens, long kings) {
+        if (pieceSquareValues == null) {
+            return 0;
+        }
+        return getPieceSquareValue(Move.PAWN, pawns, whites) + getPieceSquareValue(Move.KNIGHT, knights, whites)
+                + getPieceSquareValue(Move.BISHOP, bishops, whites) + getPieceSquareValue(Move.ROOK, rooks, whites)
+                + getPieceSquareValue(Move.QUEEN, queens, whites) + getPieceSquareValue(Move.KING, kings, whites);
+    }
+
+    private int getPieceSquareValue(int piece, long pieces, long whites) {
+        int value = 0;
+        while (pieces != 0) {
+            long square = BitboardUtils.lsb(pieces);
+            pieces ^= square;
+            value += pieceSquareValues[(square & whites) != 0 ? 0 : 1][piece][BitboardUtils.square2Index(square)];
+        }
+        return value;
+    }
+
+    /**
+     * Type of the piece in a square as in Move.PAWN...Move.KING, 0 if empty
+     */
+    private int getPieceTypeAt(long square) {
+        return ((pawns & square) != 0 ? Move.PAWN : //
+                ((knights & square) != 0 ? Move.KNIGHT : //
+                        ((bishops & square) != 0 ? Move.BISHOP : //
+                                ((rooks & square) != 0 ? Move.ROOK : //
+                                        ((queens & square) != 0 ? Move.QUEEN : //
+                                                ((kings & square) != 0 ? Move.KING : 0))))));
+    }
+
+    /**
+     * Gets an immutable copy of the position with the keys of the positions
+     * that can be repeated
+     */
+    public Position getPosition() {
+        int firstIndex = Math.max(moveNumber - fiftyMovesRule, keyHistoryStart);
+        long[] keys = new long[(moveNumber - firstIndex) << 1];
+        for (int i = firstIndex, j = 0; i < moveNumber; i++) {
+            keys[j++] = keyHistory[i][0];
+            keys[j++] = keyHistory[i][1];
+        }
+        return new Position(whites, blacks, pawns, rooks, queens, bishops, knights, kings, flags,
+                key[0], key[1], fiftyMovesRule, moveNumber, keys);
+    }
+
+    /**
+     * Loads a position, only its repetition history is kept so the moves
+     * before it cannot be undone
+     */
+    public void setPosition(Position position) {
+        whites = position.whites;
+        blacks = position.blacks;
+        pawns = position.pawns;
+        rooks = position.rooks;
+        queens = position.queens;
+        bishops = position.bishops;
+        knights = position.knights;
+        kings = position.kings;
+        flags = position.flags;
+        key[0] = position.key0;
+        key[1] = position.key1;
+        fiftyMovesRule = position.fiftyMovesRule;
+        moveNumber = position.moveNumber;
+        initialMoveNumber = position.moveNumber;
+        outBookMove = 9999;
+        sanMoves.clear();
+        pieceSquareValue = getPieceSquareValue(whites, pawns, knights, bishops, rooks, queens, kings);
+        materialKey = MaterialKey.getKey(this);
+
+        // Restores the keys reachable by isDraw()
+        Arrays.fill(repetitionFilter, 0);
+        int historyLength = position.getKeyHistoryLength();
+        keyHistoryStart = moveNumber - historyLength;
+        for (int i = 0; i < historyLength; i++) {
+            int index = moveNumber - historyLength + i;
+            keyHistory[index][0] = position.getKeyHistory(i, 0);
+            keyHistory[index][1] = position.getKeyHistory(i, 1);
+            moveHistory[index] = 0;
+            capturedPieces[index] = '.';
+            repetitionFilter[(int) (keyHistory[index][0] ^ keyHistory[index][1]) & REPETITION_FILTER_MASK]++;
+        }
+        initialFen = getFen();
+    }
+
     /**
      * Does some board verification
      */
@@ -492,6 +621,7 @@ public class Board {
         Arrays.fill(fiftyMovesRuleHistory, 0);
         Arrays.fill(capturedPieces, '.');
         Arrays.fill(moveHistory, 0);
+        Arrays.fill(repetitionFilter, 0);
         sanMoves.clear();
     }
 
@@ -517,6 +647,8 @@ public class Board {
         keyHistory[moveNumber][0] = key[0];
         keyHistory[moveNumber][1] = key[1];
         fiftyMovesRuleHistory[moveNumber] = fiftyMovesRule;
+        pieceSquareValueHistory[moveNumber] = pieceSquareValue;
+        materialKeyHistory[moveNumber] = materialKey;
     }
 
     public int getLastMove() {
@@ -577,6 +709,7 @@ public class Board {
         }
         // Save history
         saveHistory(move, fillInfo);
+        repetitionFilter[(int) (key[0] ^ key[1]) & REPETITION_FILTER_MASK]++;
 
         long from = Move.getFromSquare(move);
         long to = Move.getToSquare(move);
@@ -627,6 +760,11 @@ public class Board {
                     toIndexCapture += (getTurn() ? -8 : 8);
                 }
                 key[1 - color] ^= ZobristKey.getKeyPieceIndex(toIndexCapture, getPieceAt(to));
+                int pieceCaptured = getPieceTypeAt(to);
+                materialKey -= MaterialKey.unit[1 - color][pieceCaptured];
+                if (pieceSquareValues != null) {
+                    pieceSquareValue -= pieceSquareValues[1 - color][pieceCaptured][toIndexCapture];
+                }
 
                 whites &= ~to;
                 blacks &= ~to;
@@ -637,6 +775,12 @@ public class Board {
                 knights &= ~to;
             }
 
+            // The piece in the destination square, only changes in promotions
+            int piecePromoted = pieceMoved;
+            // Castling rook origin and destination indexes
+            int rookFromIndex = -1;
+            int rookToIndex = -1;
+
             // Pawn movements
             switch (pieceMoved) {
                 case Move.PAWN:
@@ -664,18 +808,22 @@ public class Board {
                             case Move.TYPE_PROMOTION_QUEEN:
                                 queens |= to;
                                 key[color] ^= ZobristKey.queen[color][toIndex];
+                                piecePromoted = Move.QUEEN;
                                 break;
                             case Move.TYPE_PROMOTION_KNIGHT:
                                 knights |= to;
                                 key[color] ^= ZobristKey.knight[color][toIndex];
+                                piecePromoted = Move.KNIGHT;
                                 break;
                             case Move.TYPE_PROMOTION_BISHOP:
                                 bishops |= to;
                                 key[color] ^= ZobristKey.bishop[color][toIndex];
+                                piecePromoted = Move.BISHOP;
                                 break;
                             case Move.TYPE_PROMOTION_ROOK:
                                 rooks |= to;
                                 key[color] ^= ZobristKey.rook[color][toIndex];
+                                piecePromoted = Move.ROOK;
                                 break;
                         }
                     } else {
@@ -705,10 +853,14 @@ public class Board {
                         case Move.TYPE_KINGSIDE_CASTLING:
                             rookMask = (getTurn() ? 0x05L : 0x0500000000000000L);
                             key[color] ^= ZobristKey.rook[color][toIndex - 1] ^ ZobristKey.rook[color][toIndex + 1];
+                            rookFromIndex = toIndex - 1;
+                            rookToIndex = toIndex + 1;
                             break;
                         case Move.TYPE_QUEENSIDE_CASTLING:
                             rookMask = (getTurn() ? 0x90L : 0x9000000000000000L);
                             key[color] ^= ZobristKey.rook[color][toIndex - 1] ^ ZobristKey.rook[color][toIndex + 2];
+                            rookFromIndex = toIndex + 2;
+                            rookToIndex = toIndex - 1;
                             break;
                     }
                     if (rookMask != 0) {
@@ -730,6 +882,18 @@ public class Board {
                 blacks ^= moveMask;
             }
 
+            if (piecePromoted != pieceMoved) {
+                materialKey += MaterialKey.unit[color][piecePromoted] - MaterialKey.unit[color][Move.PAWN];
+            }
+
+            if (pieceSquareValues != null) {
+                int[][] values = pieceSquareValues[color];
+                pieceSquareValue += values[piecePromoted][toIndex] - values[pieceMoved][fromIndex];
+                if (rookFromIndex >= 0) {
+                    pieceSquareValue += values[Move.ROOK][rookToIndex] - values[Move.ROOK][rookFromIndex];
+                }
+            }
+
             // Tests to disable castling
             if ((moveMask & 0x0000000000000009L) != 0 && (flags & FLAG_WHITE_DISABLE_KINGSIDE_CASTLING) == 0) {
                 flags |= FLAG_WHITE_DISABLE_KINGSIDE_CASTLING;
@@ -806,6 +970,9 @@ public class Board {
         if (moveNumber < 0 || moveNumber < initialMoveNumber) {
             return;
         }
+        for (int i = this.moveNumber - 1; i >= moveNumber; i--) {
+            repetitionFilter[(int) (keyHistory[i][0] ^ keyHistory[i][1]) & REPETITION_FILTER_MASK]--;
+        }
         this.moveNumber = moveNumber;
 
         whites = whitesHistory[moveNumber];
@@ -820,6 +987,8 @@ public class Board {
         key[0] = keyHistory[moveNumber][0];
         key[1] = keyHistory[moveNumber][1];
         fiftyMovesRule = fiftyMovesRuleHistory[moveNumber];
+        pieceSquareValue = pieceSquareValueHistory[moveNumber];
+        materialKey = materialKeyHistory[moveNumber];
     }
 
     /**
@@ -849,53 +1018,161 @@ public class Board {
      * checks draw by fiftymoves rule and threefold repetition
      */
     public boolean isDraw() {
+        return isDraw(MAX_MOVES);
+    }
+
+    /**
+     * checks draw by fiftymoves rule and repetition, a position repeated once
+     * after treeMoveNumber (the search root) is also a draw
+     */
+    public boolean isDraw(int treeMoveNumber) {
         if (fiftyMovesRule >= 100) {
             return true;
         }
-        int repetitions = 0;
-        // logger.debug("My keys key0=" + key[0] + " " + " key1=" + key[1]);
-        for (int i = 0; i < (moveNumber - 1); i++) {
-            if (keyHistory[i][0] == key[0] && keyHistory[i][1] == key[1]) {
-                repetitions++;
-            }
-			// logger.debug("movenumber="+i+" key0=" + keyHistory[i][0] + " " +
-            // " key1=" + keyHistory[i][1] + " Repetitions="+repetitions);
-            if (repetitions >= 2) { // with the las one they are 3
-                return true;
+        // Only positions after the last capture or pawn move can repeat, and
+        // only those with the same side to move: go back two plies at a time
+        if (fiftyMovesRule >= 4 && repetitionFilter[(int) (key[0] ^ key[1]) & REPETITION_FILTER_MASK] != 0) {
+            int repetitions = 0;
+            int lastIndex = Math.max(moveNumber - fiftyMovesRule, keyHistoryStart);
+            for (int i = moveNumber - 4; i >= lastIndex; i -= 2) {
+                if (keyHistory[i][0] == key[0] && keyHistory[i][1] == key[1]) {
+                    repetitions++;
+                    if (repetitions >= 2 || i > treeMoveNumber) { // with the last one they are 3
+                        return true;
+                    }
+                }
             }
         }
         // Draw by no material to mate
         return pawns == 0 && rooks == 0 && queens == 0 && bishops == 0 && knights == 0;
     }
 
+    /**
+     * Attacks of the current position, shared by all the users of the same
+     * node and only built the first time they are requested
+     */
+    public AttackInfo getAttackInfo() {
+        AttackInfo attackInfo = attackInfoHistory[moveNumber];
+        if (attackInfo == null) {
+            attackInfo = new AttackInfo();
+            attackInfoHistory[moveNumber] = attackInfo;
+        }
+        if (!attackInfo.isBuiltFor(this)) {
+            attackInfo.build(this);
+        }
+        return attackInfo;
+    }
+
     /**
      * The SWAP algorithm
      */
     public int see(int move) {
-        int pieceCaptured = 0;
+        return see(Move.getFromIndex(move), Move.getToIndex(move), Move.getPieceMoved(move), getSeeTargetPiece(move));
+    }
+
+    /**
+     * Checks if SEE >= threshold, cheaper than computing the full SEE value
+     */
+    public boolean seeGE(int move, int threshold) {
+        return seeGE(Move.getFromIndex(move), Move.getToIndex(move), Move.getPieceMoved(move), getSeeTargetPiece(move), threshold);
+    }
+
+    private int getSeeTargetPiece(int move) {
         long to = Move.getToSquare(move);
 
         if ((to & knights) != 0) {
-            pieceCaptured = Move.KNIGHT;
+            return Move.KNIGHT;
         } else if ((to & bishops) != 0) {
-            pieceCaptured = Move.BISHOP;
+            return Move.BISHOP;
         } else if ((to & rooks) != 0) {
-            pieceCaptured = Move.ROOK;
+            return Move.ROOK;
         } else if ((to & queens) != 0) {
-            pieceCaptured = Move.QUEEN;
+            return Move.QUEEN;
         } else if (Move.isCapture(move)) {
-            pieceCaptured = Move.PAWN;
+            return Move.PAWN;
         }
+        return 0;
+    }
 
-        return see(Move.getFromIndex(move), Move.getToIndex(move), Move.getPieceMoved(move), pieceCaptured);
+    /**
+     * Same exchanges than see(), but the swap list is not stored: at each
+     * capture "swap" is what the side capturing must win to reach the
+     * threshold, and it stops as soon as the side to capture cannot change
+     * the result
+     */
+    public boolean seeGE(int fromIndex, int toIndex, int pieceMoved, int targetPiece, int threshold) {
+        int swap = SEE_PIECE_VALUES[targetPiece] - threshold;
+        if (swap < 0) { // Not enough even if the piece is not recaptured
+            return false;
+        }
+        swap = SEE_PIECE_VALUES[pieceMoved] - swap;
+        if (swap <= 0) { // Enough even losing the capturing piece
+            return true;
+        }
+
+        long fromSquare = 1L << fromIndex;
+        long all = getAll() ^ fromSquare;
+        long attacks = bbAttacks.getIndexAttacks(this, toIndex);
+        if ((fromSquare & (pawns | bishops | rooks | queens)) != 0) {
+            attacks |= bbAttacks.getXrayAttacks(this, toIndex, all);
+        }
+        // The other side captures first
+        long mines = getMines();
+        long others = getOthers();
+        int side = 1;
+        int result = 1;
+        while (true) {
+            attacks &= all;
+            long attackers = attacks & (side == 1 ? others : mines);
+            if (attackers == 0) {
+                break;
+            }
+            result ^= 1;
+
+            long fromCandidates;
+            if ((fromCandidates = attackers & pawns) != 0) {
+                pieceMoved = Move.PAWN;
+            } else if ((fromCandidates = attackers & knights) != 0) {
+                pieceMoved = Move.KNIGHT;
+            } else if ((fromCandidates = attackers & bishops) != 0) {
+                pieceMoved = Move.BISHOP;
+            } else if ((fromCandidates = attackers & rooks) != 0) {
+                pieceMoved = Move.ROOK;
+            } else if ((fromCandidates = attackers & queens) != 0) {
+                pieceMoved = Move.QUEEN;
+            } else { // King: can only capture if the square is not defended
+                if ((attacks & (side == 1 ? mines : others)) != 0) {
+                    result ^= 1;
+                }
+                return result == 1;
+            }
+
+            swap = SEE_PIECE_VALUES[pieceMoved] - swap;
+            if (swap < result) {
+                break;
+            }
+            fromSquare = BitboardUtils.lsb(fromCandidates);
+            all ^= fromSquare;
+            if (pieceMoved != Move.KNIGHT) {
+                attacks |= bbAttacks.getXrayAttacks(this, toIndex, all);
+            }
+            side ^= 1;
+        }
+        return result == 1;
     }
 
     public int see(int fromIndex, int toIndex, int pieceMoved, int targetPiece) {
+        long attacks = bbAttacks.getIndexAttacks(this, toIndex);
+        // Not defended and no slider can be discovered behind the capturing piece
+        if ((attacks & getOthers()) == 0
+                && (pieceMoved == Move.KNIGHT || pieceMoved == Move.KING
+                || ((bbAttacks.rook[toIndex] & (rooks | queens) | bbAttacks.bishop[toIndex] & (bishops | queens)) & getOthers()) == 0)) {
+            return SEE_PIECE_VALUES[targetPiece];
+        }
         int d = 0;
         long mayXray = pawns | bishops | rooks | queens; // not kings nor knights
-        long fromSquare = 1 << fromIndex;
+        long fromSquare = 1L << fromIndex;
         long all = getAll();
-        long attacks = bbAttacks.getIndexAttacks(this, toIndex);
         long fromCandidates;
 
         seeGain[d] = SEE_PIECE_VALUES[targetPiece];
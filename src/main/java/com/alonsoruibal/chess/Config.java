@@ -18,6 +18,9 @@ public class Config {
     public final static boolean DEFAULT_USE_BOOK = true;
     public final static int DEFAULT_BOOK_KNOWGLEDGE = 100;
     public final static String DEFAULT_EVALUATOR = "experimental";
+    public final static String DEFAULT_NNUE_FILE = "carballo.nnue";
+    public final static String DEFAULT_EVAL_PARAMETERS_FILE = null;
+    public final static String DEFAULT_TABLEBASE_DIRECTORY = null;
     public final static boolean DEFAULT_NULL_MOVE = true;
     public final static int DEFAULT_NULL_MOVE_MARGIN = 200;
     public final static boolean DEFAULT_STATIC_NULL_MOVE = true;
@@ -41,6 +44,15 @@ public class Config {
     public final static int DEFAULT_FUTILITY_MARGIN_QS = 150;
     public final static boolean DEFAULT_RAZORING = true;
     public final static int DEFAULT_RAZORING_MARGIN = 900;
+    public final static boolean DEFAULT_LMP = true;
+    public final static int DEFAULT_LMP_DEPTH = 3; // in plies
+    public final static int DEFAULT_LMP_MOVES = 3; // plus depth^2
+    public final static boolean DEFAULT_HISTORY_PRUNING = true;
+    public final static int DEFAULT_HISTORY_PRUNING_DEPTH = 2; // in plies
+    public final static int DEFAULT_HISTORY_PRUNING_THRESHOLD = 512; // times depth^2, HISTORY_MAX / 32 at depth 1
+    public final static boolean DEFAULT_PROBCUT = true;
+    public final static int DEFAULT_PROBCUT_DEPTH = 5; // in plies
+    public final static int DEFAULT_PROBCUT_MARGIN = 200;
 
     // >0 refuses draw <0 looks for draw
     public final static int DEFAULT_CONTEMPT_FACTOR = 90;
@@ -59,6 +71,9 @@ public class Config {
     private Book book;
     private int bookKnowledge = DEFAULT_BOOK_KNOWGLEDGE;
     private String evaluator = DEFAULT_EVALUATOR;
+    private String nnueFile = DEFAULT_NNUE_FILE;
+    private String evalParametersFile = DEFAULT_EVAL_PARAMETERS_FILE;
+    private String tablebaseDirectory = DEFAULT_TABLEBASE_DIRECTORY;
     private boolean nullMove = DEFAULT_NULL_MOVE;
     private int nullMoveMargin = DEFAULT_NULL_MOVE_MARGIN;
     private boolean staticNullMove = DEFAULT_STATIC_NULL_MOVE;
@@ -82,6 +97,15 @@ public class Config {
     private int futilityMarginQS = DEFAULT_FUTILITY_MARGIN_QS;
     private boolean razoring = DEFAULT_RAZORING;
     private int razoringMargin = DEFAULT_RAZORING_MARGIN;
+    private boolean lmp = DEFAULT_LMP;
+    private int lmpDepth = DEFAULT_LMP_DEPTH;
+    private int lmpMoves = DEFAULT_LMP_MOVES;
+    private boolean historyPruning = DEFAULT_HISTORY_PRUNING;
+    private int historyPruningDepth = DEFAULT_HISTORY_PRUNING_DEPTH;
+    private int historyPruningThreshold = DEFAULT_HISTORY_PRUNING_THRESHOLD;
+    private boolean probcut = DEFAULT_PROBCUT;
+    private int probcutDepth = DEFAULT_PROBCUT_DEPTH;
+    private int probcutMargin = DEFAULT_PROBCUT_MARGIN;
     private int contemptFactor = DEFAULT_CONTEMPT_FACTOR;
 
     private int evalCenter = DEFAULT_EVAL_CENTER;
@@ -130,6 +154,39 @@ public class Config {
         this.evaluator = evaluator;
     }
 
+    /**
+     * Network file of the "nnue" evaluator, if it is not found it is looked up in the classpath
+     */
+    public String getNnueFile() {
+        return nnueFile;
+    }
+
+    public void setNnueFile(String nnueFile) {
+        this.nnueFile = nnueFile;
+    }
+
+    /**
+     * Parameters of the "complete" evaluator written by the TexelTuner, null to use the built-in values
+     */
+    public String getEvalParametersFile() {
+        return evalParametersFile;
+    }
+
+    public void setEvalParametersFile(String evalParametersFile) {
+        this.evalParametersFile = evalParametersFile;
+    }
+
+    /**
+     * Directory with the files written by the TablebaseGenerator, null to disable the tablebases
+     */
+    public String getTablebaseDirectory() {
+        return tablebaseDirectory;
+    }
+
+    public void setTablebaseDirectory(String tablebaseDirectory) {
+        this.tablebaseDirectory = tablebaseDirectory;
+    }
+
     public boolean getNullMove() {
         return nullMove;
     }
@@ -210,6 +267,90 @@ public class Config {
         this.aggressiveFutilityMargin = aggressiveFutilityMargin;
     }
 
+    /**
+     * Late move pruning: at non PV nodes with depth <= lmpDepth plies, quiet moves are
+     * not searched after lmpMoves + depth^2 moves
+     */
+    public boolean getLmp() {
+        return lmp;
+    }
+
+    public void setLmp(boolean lmp) {
+        this.lmp = lmp;
+    }
+
+    public int getLmpDepth() {
+        return lmpDepth;
+    }
+
+    public void setLmpDepth(int lmpDepth) {
+        this.lmpDepth = lmpDepth;
+    }
+
+    public int getLmpMoves() {
+        return lmpMoves;
+    }
+
+    public void setLmpMoves(int lmpMoves) {
+        this.lmpMoves = lmpMoves;
+    }
+
+    /**
+     * History pruning: at non PV nodes with depth <= historyPruningDepth plies, quiet moves
+     * with a history score lower than -historyPruningThreshold * depth^2 (depth in plies) are not searched
+     */
+    public boolean getHistoryPruning() {
+        return historyPruning;
+    }
+
+    public void setHistoryPruning(boolean historyPruning) {
+        this.historyPruning = historyPruning;
+    }
+
+    public int getHistoryPruningDepth() {
+        return historyPruningDepth;
+    }
+
+    public void setHistoryPruningDepth(int historyPruningDepth) {
+        this.historyPruningDepth = historyPruningDepth;
+    }
+
+    public int getHistoryPruningThreshold() {
+        return historyPruningThreshold;
+    }
+
+    public void setHistoryPruningThreshold(int historyPruningThreshold) {
+        this.historyPruningThreshold = historyPruningThreshold;
+    }
+
+    /**
+     * ProbCut: at non PV nodes with depth >= probcutDepth plies, good captures are searched
+     * 4 plies shallower against beta + probcutMargin, and the node is cut if they fail high
+     */
+    public boolean getProbcut() {
+        return probcut;
+    }
+
+    public void setProbcut(boolean probcut) {
+        this.probcut = probcut;
+    }
+
+    public int getProbcutDepth() {
+        return probcutDepth;
+    }
+
+    public void setProbcutDepth(int probcutDepth) {
+        this.probcutDepth = probcutDepth;
+    }
+
+    public int getProbcutMargin() {
+        return probcutMargin;
+    }
+
+    public void setProbcutMargin(int probcutMargin) {
+        this.probcutMargin = probcutMargin;
+    }
+
     public int getFutilityMarginQS() {
         return futilityMarginQS;
     }
@@ -416,10 +557,13 @@ public class Config {
         return "Config [aggressiveFutility=" + aggressiveFutility + ", aggressiveFutilityMargin=" + aggressiveFutilityMargin + ", aspirationWindow="
                 + aspirationWindow + ", aspirationWindowSizes=" + Arrays.toString(aspirationWindowSizes) + ", book=" + book + ", contemptFactor="
                 + contemptFactor + ", evalKingSafety=" + evalKingSafety + ", evalMobility=" + evalMobility + ", evalPassedPawns=" + evalPassedPawns
-                + ", evalPawnStructure=" + evalPawnStructure + ", evaluator=" + evaluator + ", extensionsCheck=" + extensionsCheck + ", extensionsMateThreat="
+                + ", evalPawnStructure=" + evalPawnStructure + ", evaluator=" + evaluator + ", nnueFile=" + nnueFile + ", evalParametersFile=" + evalParametersFile + ", tablebaseDirectory=" + tablebaseDirectory + ", extensionsCheck=" + extensionsCheck + ", extensionsMateThreat="
                 + extensionsMateThreat + ", extensionsPawnPush=" + extensionsPawnPush + ", extensionsPassedPawn=" + extensionsPassedPawn
                 + ", extensionsRecapture=" + extensionsRecapture + ", extensionsSingular=" + extensionsSingular + ", singularExtensionMargin="
-                + singularExtensionMargin + ", futility=" + futility + ", futilityMargin=" + futilityMargin + ", iid=" + iid + ", lmr=" + lmr + ", nullMove="
+                + singularExtensionMargin + ", futility=" + futility + ", futilityMargin=" + futilityMargin + ", iid=" + iid + ", lmr=" + lmr + ", lmp=" + lmp + ", lmpDepth="
+                + lmpDepth + ", lmpMoves=" + lmpMoves + ", historyPruning=" + historyPruning + ", historyPruningDepth=" + historyPruningDepth
+                + ", historyPruningThreshold=" + historyPruningThreshold + ", probcut=" + probcut + ", probcutDepth=" + probcutDepth
+                + ", probcutMargin=" + probcutMargin + ", nullMove="
                 + nullMove + ", nullMoveMargin=" + nullMoveMargin + ", staticNullMove=" + staticNullMove + ", razoring=" + razoring + ", razoringMargin="
                 + razoringMargin + ", transpositionTableSize=" + transpositionTableSize + ", useBook=" + useBook + "]";
     }
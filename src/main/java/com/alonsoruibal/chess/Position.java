@@ -0,0 +1,95 @@
+package com.alonsoruibal.chess;
+
+import java.util.Arrays;
+
+/**
+ * Immutable snapshot of a board: bitboards, flags, zobrist key and counters.
+ * <p/>
+ * Only the keys of the positions since the last capture or pawn move are kept
+ * from the history (those are the only ones that can be repeated), so it is
+ * small enough to be passed to other threads or used as a cache key. Being
+ * immutable, the same instance can be shared without copying.
+ * <p/>
+ * Created with Board.getPosition() and loaded with Board.setPosition()
+ */
+public final class Position {
+
+    public final long whites;
+    public final long blacks;
+    public final long pawns;
+    public final long rooks;
+    public final long queens;
+    public final long bishops;
+    public final long knights;
+    public final long kings;
+    public final long flags;
+
+    public final long key0;
+    public final long key1;
+
+    public final int fiftyMovesRule;
+    public final int moveNumber;
+
+    // Both key halves of the previous positions, oldest first: {key0, key1, key0, key1...}
+    private final long[] keyHistory;
+
+    Position(long whites, long blacks, long pawns, long rooks, long queens, long bishops, long knights, long kings, long flags,
+             long key0, long key1, int fiftyMovesRule, int moveNumber, long[] keyHistory) {
+        this.whites = whites;
+        this.blacks = blacks;
+        this.pawns = pawns;
+        this.rooks = rooks;
+        this.queens = queens;
+        this.bishops = bishops;
+        this.knights = knights;
+        this.kings = kings;
+        this.flags = flags;
+        this.key0 = key0;
+        this.key1 = key1;
+        this.fiftyMovesRule = fiftyMovesRule;
+        this.moveNumber = moveNumber;
+        this.keyHistory = keyHistory;
+    }
+
+    public long getKey() {
+        return key0 ^ key1;
+    }
+
+    /**
+     * Number of previous positions stored
+     */
+    public int getKeyHistoryLength() {
+        return keyHistory.length >> 1;
+    }
+
+    /**
+     * Key half (0 or 1) of the previous position i, 0 is the oldest one
+     */
+    public long getKeyHistory(int i, int half) {
+        return keyHistory[(i << 1) + half];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Position)) {
+            return false;
+        }
+        Position p = (Position) o;
+        return key0 == p.key0 && key1 == p.key1 //
+                && whites == p.whites && blacks == p.blacks //
+                && pawns == p.pawns && rooks == p.rooks && queens == p.queens //
+                && bishops == p.bishops && knights == p.knights && kings == p.kings //
+                && flags == p.flags //
+                && fiftyMovesRule == p.fiftyMovesRule && moveNumber == p.moveNumber //
+                && Arrays.equals(keyHistory, p.keyHistory);
+    }
+
+    @Override
+    public int hashCode() {
+        long key = key0 ^ key1;
+        return (int) (key ^ (key >>> 32));
+    }
+}
@@ -0,0 +1,138 @@
+package com.alonsoruibal.chess.bitboard;
+
+import com.alonsoruibal.chess.Board;
+
+/**
+ * Attacks of a position, built once and shared by the move generation, SEE,
+ * evaluation and check detection of the same node.
+ * <p/>
+ * Obtained with Board.getAttackInfo(), that keeps one per ply and only
+ * rebuilds it when the position changes. Indexes by color are 0 for white
+ * and 1 for black.
+ * <p/>
+ * Pinned pieces are not kept: the move generators check the legality of
+ * each move after doing it and the evaluators score their own x-ray pins,
+ * so nothing would read them.
+ */
+public class AttackInfo {
+    public final static int W = 0;
+    public final static int B = 1;
+
+    // Zobrist key of the position this info was built for
+    public long key0;
+    public long key1;
+
+    // Attacks of the piece on each square, only set for the occupied squares
+    public long[] attacksFromSquare = new long[64];
+
+    // Squares attacked by each piece type of each color
+    public long[] pawnAttacks = {0, 0};
+    public long[] knightAttacks = {0, 0};
+    public long[] bishopAttacks = {0, 0};
+    public long[] rookAttacks = {0, 0};
+    public long[] queenAttacks = {0, 0};
+    public long[] kingAttacks = {0, 0};
+
+    // All the squares attacked by each color
+    public long[] attackedSquares = {0, 0};
+
+    // Pieces of the other side giving check to the side to move
+    public long checkers;
+
+    BitboardAttacks bbAttacks;
+
+    public AttackInfo() {
+        bbAttacks = BitboardAttacks.getInstance();
+    }
+
+    public boolean isBuiltFor(Board board) {
+        return key0 == board.key[0] && key1 == board.key[1];
+    }
+
+    public void build(Board board) {
+        long all = board.getAll();
+        key0 = board.key[0];
+        key1 = board.key[1];
+
+        for (int color = W; color <= B; color++) {
+            long mines = color == W ? board.whites : board.blacks;
+            long[] pawnAttacksFrom = color == W ? bbAttacks.pawnUpwards : bbAttacks.pawnDownwards;
+            long attacks = 0;
+            long pieces = board.pawns & mines;
+            while (pieces != 0) {
+                long square = BitboardUtils.lsb(pieces);
+                pieces ^= square;
+                int index = BitboardUtils.square2Index(square);
+                attacksFromSquare[index] = pawnAttacksFrom[index];
+                attacks |= pawnAttacksFrom[index];
+            }
+            pawnAttacks[color] = attacks;
+
+            attacks = 0;
+            pieces = board.knights & mines;
+            while (pieces != 0) {
+                long square = BitboardUtils.lsb(pieces);
+                pieces ^= square;
+                int index = BitboardUtils.square2Index(square);
+                attacksFromSquare[index] = bbAttacks.knight[index];
+                attacks |= bbAttacks.knight[index];
+            }
+            knightAttacks[color] = attacks;
+
+            attacks = 0;
+            pieces = board.bishops & mines;
+            while (pieces != 0) {
+                long square = BitboardUtils.lsb(pieces);
+                pieces ^= square;
+                int index = BitboardUtils.square2Index(square);
+                long pieceAttacks = bbAttacks.getBishopAttacks(index, all);
+                attacksFromSquare[index] = pieceAttacks;
+                attacks |= pieceAttacks;
+            }
+            bishopAttacks[color] = attacks;
+
+            attacks = 0;
+            pieces = board.rooks & mines;
+            while (pieces != 0) {
+                long square = BitboardUtils.lsb(pieces);
+                pieces ^= square;
+                int index = BitboardUtils.square2Index(square);
+                long pieceAttacks = bbAttacks.getRookAttacks(index, all);
+                attacksFromSquare[index] = pieceAttacks;
+                attacks |= pieceAttacks;
+            }
+            rookAttacks[color] = attacks;
+
+            attacks = 0;
+            pieces = board.queens & mines;
+            while (pieces != 0) {
+                long square = BitboardUtils.lsb(pieces);
+                pieces ^= square;
+                int index = BitboardUtils.square2Index(square);
+                long pieceAttacks = bbAttacks.getRookAttacks(index, all) | bbAttacks.getBishopAttacks(index, all);
+                attacksFromSquare[index] = pieceAttacks;
+                attacks |= pieceAttacks;
+            }
+            queenAttacks[color] = attacks;
+
+            attacks = 0;
+            pieces = board.kings & mines;
+            while (pieces != 0) {
+                long square = BitboardUtils.lsb(pieces);
+                pieces ^= square;
+                int index = BitboardUtils.square2Index(square);
+                attacksFromSquare[index] = bbAttacks.king[index];
+                attacks |= bbAttacks.king[index];
+            }
+            kingAttacks[color] = attacks;
+        }
+
+        for (int color = 0; color < 2; color++) {
+            attackedSquares[color] = pawnAttacks[color] | knightAttacks[color] | bishopAttacks[color] | rookAttacks[color]
+                    | queenAttacks[color] | kingAttacks[color];
+        }
+
+        long myKing = board.kings & board.getMines();
+        checkers = myKing == 0 ? 0 : bbAttacks.getIndexAttacks(board, BitboardUtils.square2Index(myKing)) & board.getOthers();
+    }
+}
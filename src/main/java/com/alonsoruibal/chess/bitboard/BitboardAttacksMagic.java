@@ -2,6 +2,20 @@ package com.alonsoruibal.chess.bitboard;
 
 import com.alonsoruibal.chess.log.Logger;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
 public class BitboardAttacksMagic extends BitboardAttacks {
 
     private static final Logger logger = Logger.getLogger("BitboardAttacksMagic");
@@ -48,22 +62,28 @@ public class BitboardAttacksMagic extends BitboardAttacks {
         0x11100248084000L, 0x210111000908000L, 0x2048102020080L, 0x1000108208024000L, 0x1004100882000L, 0x41044100L, 0x840400L, 0x4208204L,
         0x80000200282020cL, 0x8a001240100L, 0x2040104040080L};
 
+    // Classpath resource with the precomputed attack table, generated at build time running main()
+    public static final String TABLE_RESOURCE = "/magic-attacks.bin";
+
     // Mask = Attacks without border for magic bitboards
     public long[] rookMask;
-    public long[][] rookMagic;
     public long[] bishopMask;
-    public long[][] bishopMagic;
+    // Rook and bishop attacks of all the squares in a single contiguous table
+    public long[] magicAttacks;
+    // Start of the attacks of each square in the table
+    public int[] rookOffset;
+    public int[] bishopOffset;
 
     public BitboardAttacksMagic() {
         super();
-        logger.debug("Generating magic tables...");
         long time1 = System.currentTimeMillis();
         rookMask = new long[64];
-        rookMagic = new long[64][];
         bishopMask = new long[64];
-        bishopMagic = new long[64][];
+        rookOffset = new int[64];
+        bishopOffset = new int[64];
 
         long square = 1;
+        int offset = 0;
         byte i = 0;
         while (square != 0) {
 
@@ -77,27 +97,136 @@ public class BitboardAttacksMagic extends BitboardAttacks {
                     | squareAttackedAuxSliderMask(square, -7, BitboardUtils.b_d | BitboardUtils.b_l) //
                     | squareAttackedAuxSliderMask(square, -9, BitboardUtils.b_d | BitboardUtils.b_r);
 
-            // And now generate magics
+            rookOffset[i] = offset;
+            offset += (1 << rookShiftBits[i]);
+            bishopOffset[i] = offset;
+            offset += (1 << bishopShiftBits[i]);
+
+            square <<= 1;
+            i++;
+        }
+        magicAttacks = new long[offset];
+
+        if (loadTable()) {
+            long time2 = System.currentTimeMillis();
+            logger.debug("Loaded magic tables in " + (time2 - time1) + "ms");
+        } else {
+            logger.debug("Generating magic tables...");
+            generateTable();
+            long time2 = System.currentTimeMillis();
+            logger.debug("Generated attack tables in " + (time2 - time1) + "ms");
+        }
+    }
+
+    private void generateTable() {
+        long square = 1;
+        byte i = 0;
+        while (square != 0) {
             int rookPositions = (1 << rookShiftBits[i]);
-            rookMagic[i] = new long[rookPositions];
             for (int j = 0; j < rookPositions; j++) {
                 long pieces = generatePieces(j, rookShiftBits[i], rookMask[i]);
                 int magicIndex = magicTransform(pieces, rookMagicNumber[i], rookShiftBits[i]);
-                rookMagic[i][magicIndex] = getRookShiftAttacks(square, pieces);
+                magicAttacks[rookOffset[i] + magicIndex] = getRookShiftAttacks(square, pieces);
             }
 
             int bishopPositions = (1 << bishopShiftBits[i]);
-            bishopMagic[i] = new long[bishopPositions];
             for (int j = 0; j < bishopPositions; j++) {
                 long pieces = generatePieces(j, bishopShiftBits[i], bishopMask[i]);
                 int magicIndex = magicTransform(pieces, bishopMagicNumber[i], bishopShiftBits[i]);
-                bishopMagic[i][magicIndex] = getBishopShiftAttacks(square, pieces);
+                magicAttacks[bishopOffset[i] + magicIndex] = getBishopShiftAttacks(square, pieces);
             }
             square <<= 1;
             i++;
         }
-        long time2 = System.currentTimeMillis();
-        logger.debug("Generated attack tables in " + (time2 - time1) + "ms");
+    }
+
+    /**
+     * Identifies the magic numbers and shifts used to build the table, a stale resource is discarded
+     */
+    private static long tableSignature() {
+        long signature = 0;
+        for (int i = 0; i < 64; i++) {
+            signature = 31 * signature + rookMagicNumber[i];
+            signature = 31 * signature + bishopMagicNumber[i];
+            signature = 31 * signature + (rookShiftBits[i] << 8 | bishopShiftBits[i]);
+        }
+        return signature;
+    }
+
+    /**
+     * Reads the table from the classpath resource: {signature, length, attacks...} as big-endian longs.
+     * When it is a plain file it is memory mapped, inside a jar it is read with a single channel.
+     */
+    private boolean loadTable() {
+        URL url = BitboardAttacksMagic.class.getResource(TABLE_RESOURCE);
+        if (url == null) {
+            return false;
+        }
+        int bytes = (magicAttacks.length + 2) << 3;
+        try {
+            ByteBuffer buffer;
+            if ("file".equals(url.getProtocol())) {
+                RandomAccessFile file = new RandomAccessFile(new File(url.toURI()), "r");
+                try {
+                    if (file.length() != bytes) {
+                        return false;
+                    }
+                    buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, bytes);
+                } finally {
+                    file.close();
+                }
+            } else {
+                buffer = ByteBuffer.allocate(bytes);
+                ReadableByteChannel channel = Channels.newChannel(url.openStream());
+                try {
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer) < 0) {
+                            break;
+                        }
+                    }
+                } finally {
+                    channel.close();
+                }
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+                buffer.flip();
+            }
+            LongBuffer longs = buffer.asLongBuffer();
+            if (longs.get() != tableSignature() || longs.get() != magicAttacks.length) {
+                logger.debug("Discarding stale magic tables resource");
+                return false;
+            }
+            longs.get(magicAttacks);
+            return true;
+        } catch (Exception e) {
+            logger.error("Error loading magic tables: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public void writeTable(OutputStream os) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+        dos.writeLong(tableSignature());
+        dos.writeLong(magicAttacks.length);
+        for (long attacks : magicAttacks) {
+            dos.writeLong(attacks);
+        }
+        dos.flush();
+    }
+
+    /**
+     * Generates the table resource, invoked from the build with the destination file as argument
+     */
+    public static void main(String[] args) throws IOException {
+        BitboardAttacksMagic magic = new BitboardAttacksMagic();
+        magic.generateTable();
+        FileOutputStream fos = new FileOutputStream(args[0]);
+        try {
+            magic.writeTable(fos);
+        } finally {
+            fos.close();
+        }
     }
 
     /**
@@ -143,12 +272,12 @@ public class BitboardAttacksMagic extends BitboardAttacks {
     @Override
     public long getRookAttacks(int index, long all) {
         int i = magicTransform(all & rookMask[index], rookMagicNumber[index], rookShiftBits[index]);
-        return rookMagic[index][i];
+        return magicAttacks[rookOffset[index] + i];
     }
 
     @Override
     public long getBishopAttacks(int index, long all) {
         int i = magicTransform(all & bishopMask[index], bishopMagicNumber[index], bishopShiftBits[index]);
-        return bishopMagic[index][i];
+        return magicAttacks[bishopOffset[index] + i];
     }
 }
@@ -265,6 +265,31 @@ public class BitboardUtils {
         return board & (-board);
     }
 
+    /**
+     * Adds to each square all the squares above it
+     */
+    public static long fillUpwards(long board) {
+        board |= board << 8;
+        board |= board << 16;
+        return board | board << 32;
+    }
+
+    /**
+     * Adds to each square all the squares below it
+     */
+    public static long fillDownwards(long board) {
+        board |= board >>> 8;
+        board |= board >>> 16;
+        return board | board >>> 32;
+    }
+
+    /**
+     * The full columns with any square of the board
+     */
+    public static long fillColumns(long board) {
+        return fillUpwards(fillDownwards(board));
+    }
+
     /**
      * Distance between two indexes
      */
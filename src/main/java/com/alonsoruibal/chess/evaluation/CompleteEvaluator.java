@@ -2,11 +2,10 @@ package com.alonsoruibal.chess.evaluation;
 
 import com.alonsoruibal.chess.Board;
 import com.alonsoruibal.chess.Config;
+import com.alonsoruibal.chess.bitboard.AttackInfo;
 import com.alonsoruibal.chess.bitboard.BitboardUtils;
 import com.alonsoruibal.chess.log.Logger;
 
-import java.util.Arrays;
-
 /**
  * Evaluation is done in centipawns
  * <p/>
@@ -33,57 +32,63 @@ public class CompleteEvaluator extends Evaluator {
     public final static int ROOK = 500;
     public final static int QUEEN = 975;
 
+    // Lazy evaluation: margin for the terms not evaluated yet, the largest difference found
+    // between the material and the full evaluation over random positions is under 600
+    private final static int LAZY_EVAL_MARGIN_MATERIAL = 600;
+
+    // The oe() values are not final, they can be loaded with setParameters()
+
     // Bishops
     private final static int BISHOP_M_UNITS = 6;
-    private final static int BISHOP_M = oe(5, 5); // Mobility units: this value is added for each destination square not occupied by one of our pieces
-    private final static int BISHOP_TRAPPED = oe(-100, -100);
+    private int BISHOP_M = oe(5, 5); // Mobility units: this value is added for each destination square not occupied by one of our pieces
+    private int BISHOP_TRAPPED = oe(-100, -100);
 
     // Bishops
     private final static int KNIGHT_M_UNITS = 4;
-    private final static int KNIGHT_M = oe(4, 4);
+    private int KNIGHT_M = oe(4, 4);
     private final static int KNIGHT_KAUF_BONUS = 7;
 
     // Rooks
     private final static int ROOK_M_UNITS = 7;
-    private final static int ROOK_M = oe(2, 4);
-    private final static int ROOK_COLUMN_OPEN = oe(25, 20); // No pawns in rook column
-    private final static int ROOK_COLUMN_SEMIOPEN = oe(15, 10); // Only opposite pawns in rook column
-    private final static int ROOK_CONNECT = oe(20, 10); // Rook connects with other rook TODO???
+    private int ROOK_M = oe(2, 4);
+    private int ROOK_COLUMN_OPEN = oe(25, 20); // No pawns in rook column
+    private int ROOK_COLUMN_SEMIOPEN = oe(15, 10); // Only opposite pawns in rook column
+    private int ROOK_CONNECT = oe(20, 10); // Rook connects with other rook TODO???
     private final static int ROOK_KAUF_BONUS = -12;
 
     // Queen
     private final static int QUEEN_M_UNITS = 13;
-    private final static int QUEEN_M = oe(2, 4);
+    private int QUEEN_M = oe(2, 4);
 
-    private final static int KING_PAWN_NEAR = oe(5, 0); // Protection: sums for each pawn near king (opening)
+    private int KING_PAWN_NEAR = oe(5, 0); // Protection: sums for each pawn near king (opening)
     // King Safety: not in endgame!!!
-    private final static int PAWN_ATTACKS_KING = oe(1, 0);
-    private final static int KNIGHT_ATTACKS_KING = oe(4, 0);
-    private final static int BISHOP_ATTACKS_KING = oe(2, 0);
-    private final static int ROOK_ATTACKS_KING = oe(3, 0);
-    private final static int QUEEN_ATTACKS_KING = oe(5, 0);
+    private int PAWN_ATTACKS_KING = oe(1, 0);
+    private int KNIGHT_ATTACKS_KING = oe(4, 0);
+    private int BISHOP_ATTACKS_KING = oe(2, 0);
+    private int ROOK_ATTACKS_KING = oe(3, 0);
+    private int QUEEN_ATTACKS_KING = oe(5, 0);
 
     // Pawns
-    private final static int PAWN_ISOLATED = oe(-10, -20);
-    private final static int PAWN_DOUBLED = oe(-10, -20); // Penalty for each pawn in a doubled rank
+    private int PAWN_ISOLATED = oe(-10, -20);
+    private int PAWN_DOUBLED = oe(-10, -20); // Penalty for each pawn in a doubled rank
     //	private final static int PAWN_BACKWARD         = oe(-8,-10);
 //	private final static int PAWN_BLOCKED          = oe(0,0); //-20; // Pawn blocked by opposite pawn
-    private final static int PAWN_WEAK = oe(-10, -15); // Weak pawn
+    private int PAWN_WEAK = oe(-10, -15); // Weak pawn
 
-    private final static int[] PAWN_PASSER = {0, oe(5, 10), oe(10, 20), oe(20, 40), oe(30, 60), oe(50, 100), oe(75, 150), 0}; // Depends of the rank
-    private final static int[] PAWN_PASSER_SUPPORT = {0, 0, oe(5, 10), oe(10, 20), oe(15, 30), oe(25, 50), oe(37, 75), 0}; // Depends of the rank
-    private final static int[] PAWN_PASSER_KING_D = {0, 0, oe(1, 2), oe(2, 4), oe(3, 6), oe(5, 10), oe(7, 15), 0}; // Sums by each square away of the other opposite king
+    private int[] PAWN_PASSER = {0, oe(5, 10), oe(10, 20), oe(20, 40), oe(30, 60), oe(50, 100), oe(75, 150), 0}; // Depends of the rank
+    private int[] PAWN_PASSER_SUPPORT = {0, 0, oe(5, 10), oe(10, 20), oe(15, 30), oe(25, 50), oe(37, 75), 0}; // Depends of the rank
+    private int[] PAWN_PASSER_KING_D = {0, 0, oe(1, 2), oe(2, 4), oe(3, 6), oe(5, 10), oe(7, 15), 0}; // Sums by each square away of the other opposite king
 
     // Ponder kings attacks by the number of attackers (not pawns) later divided by 8
     private final static int[] KING_SAFETY_PONDER = {0, 1, 4, 8, 16, 25, 36, 49, 50, 50, 50, 50, 50, 50, 50, 50};
 
-    private final static int HUNG_PIECES = oe(16, 25); // two or more pieces of the other side attacked by inferior pieces
-    private final static int PINNED_PIECE = oe(25, 35);
+    private int HUNG_PIECES = oe(16, 25); // two or more pieces of the other side attacked by inferior pieces
+    private int PINNED_PIECE = oe(25, 35);
 
     // Tempo
     public final static int TEMPO = 10; // Add to moving side score
 
-    private final static int[] KNIGTH_OUTPOST = {
+    private int[] KNIGTH_OUTPOST = {
         0, 0, 0, 0, 0, 0, 0, 0,
         0, 0, 0, 0, 0, 0, 0, 0,
         0, 0, oe(7, 7), oe(9, 9), oe(9, 9), oe(7, 7), 0, 0,
@@ -106,20 +111,20 @@ public class CompleteEvaluator extends Evaluator {
     };
 
     // The pair of values are {opening, endgame}
-    private final static int PawnColumnValue = oe(5, 0);
-    private final static int KnightCenterValue = oe(5, 5);
-    private final static int KnightRankValue = oe(5, 0);
-    private final static int KnightBackRankValue = oe(0, 0);
-    private final static int KnightTrappedValue = oe(-100, 0);
-    private final static int BishopCenterValue = oe(2, 3);
-    private final static int BishopBackRankValue = oe(-10, 0);
-    private final static int BishopDiagonalValue = oe(4, 0);
-    private final static int RookColumnValue = oe(3, 0);
-    private final static int QueenCenterValue = oe(0, 4);
-    private final static int QueenBackRankValue = oe(-5, 0);
-    private final static int KingCenterValue = oe(0, 12);
-    private final static int KingColumnValue = oe(10, 0);
-    private final static int KingRankValue = oe(10, 0);
+    private int PawnColumnValue = oe(5, 0);
+    private int KnightCenterValue = oe(5, 5);
+    private int KnightRankValue = oe(5, 0);
+    private int KnightBackRankValue = oe(0, 0);
+    private int KnightTrappedValue = oe(-100, 0);
+    private int BishopCenterValue = oe(2, 3);
+    private int BishopBackRankValue = oe(-10, 0);
+    private int BishopDiagonalValue = oe(4, 0);
+    private int RookColumnValue = oe(3, 0);
+    private int QueenCenterValue = oe(0, 4);
+    private int QueenBackRankValue = oe(-5, 0);
+    private int KingCenterValue = oe(0, 12);
+    private int KingColumnValue = oe(10, 0);
+    private int KingRankValue = oe(10, 0);
 
     private final static int[] PawnColumn = {-3, -1, +0, +1, +1, +0, -1, -3};
     private final static int[] KnightLine = {-4, -2, +0, +1, +1, +0, -2, -4};
@@ -132,12 +137,13 @@ public class CompleteEvaluator extends Evaluator {
     private final static int[] KingRank = {+1, +0, -2, -3, -4, -5, -6, -7};
 
     // Values are rotated for whites, so when white is playing is like shown in the code
-    private final static int[] pawnIndexValue = new int[64];
-    private final static int[] knightIndexValue = new int[64];
-    private final static int[] bishopIndexValue = new int[64];
-    private final static int[] rookIndexValue = new int[64];
-    private final static int[] queenIndexValue = new int[64];
-    private final static int[] kingIndexValue = new int[64];
+    private int[] pawnIndexValue = new int[64];
+    private int[] knightIndexValue = new int[64];
+    private int[] bishopIndexValue = new int[64];
+    private int[] rookIndexValue = new int[64];
+    private int[] queenIndexValue = new int[64];
+    private int[] kingIndexValue = new int[64];
+    private int[][][] pieceSquareValues;
 
     Config config;
 
@@ -145,9 +151,107 @@ public class CompleteEvaluator extends Evaluator {
 
     public CompleteEvaluator(Config config) {
         this.config = config;
+        EvaluatorParameters parameters = null;
+        if (config.getEvalParametersFile() != null) {
+            parameters = EvaluatorParameters.load(config.getEvalParametersFile());
+        }
+        if (parameters != null) {
+            setParameters(parameters);
+        } else {
+            initPieceSquareValues();
+        }
     }
 
-    static {
+    /**
+     * The evaluation parameters that can be tuned: the packed opening/endgame values
+     */
+    public EvaluatorParameters getParameters() {
+        EvaluatorParameters p = new EvaluatorParameters();
+        p.put("BISHOP_M", BISHOP_M);
+        p.put("BISHOP_TRAPPED", BISHOP_TRAPPED);
+        p.put("KNIGHT_M", KNIGHT_M);
+        p.put("ROOK_M", ROOK_M);
+        p.put("ROOK_COLUMN_OPEN", ROOK_COLUMN_OPEN);
+        p.put("ROOK_COLUMN_SEMIOPEN", ROOK_COLUMN_SEMIOPEN);
+        p.put("ROOK_CONNECT", ROOK_CONNECT);
+        p.put("QUEEN_M", QUEEN_M);
+        p.put("KING_PAWN_NEAR", KING_PAWN_NEAR);
+        p.put("PAWN_ATTACKS_KING", PAWN_ATTACKS_KING);
+        p.put("KNIGHT_ATTACKS_KING", KNIGHT_ATTACKS_KING);
+        p.put("BISHOP_ATTACKS_KING", BISHOP_ATTACKS_KING);
+        p.put("ROOK_ATTACKS_KING", ROOK_ATTACKS_KING);
+        p.put("QUEEN_ATTACKS_KING", QUEEN_ATTACKS_KING);
+        p.put("PAWN_ISOLATED", PAWN_ISOLATED);
+        p.put("PAWN_DOUBLED", PAWN_DOUBLED);
+        p.put("PAWN_WEAK", PAWN_WEAK);
+        p.put("PAWN_PASSER", PAWN_PASSER);
+        p.put("PAWN_PASSER_SUPPORT", PAWN_PASSER_SUPPORT);
+        p.put("PAWN_PASSER_KING_D", PAWN_PASSER_KING_D);
+        p.put("HUNG_PIECES", HUNG_PIECES);
+        p.put("PINNED_PIECE", PINNED_PIECE);
+        p.put("KNIGTH_OUTPOST", KNIGTH_OUTPOST);
+        p.put("PawnColumnValue", PawnColumnValue);
+        p.put("KnightCenterValue", KnightCenterValue);
+        p.put("KnightRankValue", KnightRankValue);
+        p.put("KnightBackRankValue", KnightBackRankValue);
+        p.put("KnightTrappedValue", KnightTrappedValue);
+        p.put("BishopCenterValue", BishopCenterValue);
+        p.put("BishopBackRankValue", BishopBackRankValue);
+        p.put("BishopDiagonalValue", BishopDiagonalValue);
+        p.put("RookColumnValue", RookColumnValue);
+        p.put("QueenCenterValue", QueenCenterValue);
+        p.put("QueenBackRankValue", QueenBackRankValue);
+        p.put("KingCenterValue", KingCenterValue);
+        p.put("KingColumnValue", KingColumnValue);
+        p.put("KingRankValue", KingRankValue);
+        return p;
+    }
+
+    /**
+     * Sets the evaluation parameters, the missing ones keep their values
+     */
+    public void setParameters(EvaluatorParameters p) {
+        BISHOP_M = p.get("BISHOP_M", BISHOP_M);
+        BISHOP_TRAPPED = p.get("BISHOP_TRAPPED", BISHOP_TRAPPED);
+        KNIGHT_M = p.get("KNIGHT_M", KNIGHT_M);
+        ROOK_M = p.get("ROOK_M", ROOK_M);
+        ROOK_COLUMN_OPEN = p.get("ROOK_COLUMN_OPEN", ROOK_COLUMN_OPEN);
+        ROOK_COLUMN_SEMIOPEN = p.get("ROOK_COLUMN_SEMIOPEN", ROOK_COLUMN_SEMIOPEN);
+        ROOK_CONNECT = p.get("ROOK_CONNECT", ROOK_CONNECT);
+        QUEEN_M = p.get("QUEEN_M", QUEEN_M);
+        KING_PAWN_NEAR = p.get("KING_PAWN_NEAR", KING_PAWN_NEAR);
+        PAWN_ATTACKS_KING = p.get("PAWN_ATTACKS_KING", PAWN_ATTACKS_KING);
+        KNIGHT_ATTACKS_KING = p.get("KNIGHT_ATTACKS_KING", KNIGHT_ATTACKS_KING);
+        BISHOP_ATTACKS_KING = p.get("BISHOP_ATTACKS_KING", BISHOP_ATTACKS_KING);
+        ROOK_ATTACKS_KING = p.get("ROOK_ATTACKS_KING", ROOK_ATTACKS_KING);
+        QUEEN_ATTACKS_KING = p.get("QUEEN_ATTACKS_KING", QUEEN_ATTACKS_KING);
+        PAWN_ISOLATED = p.get("PAWN_ISOLATED", PAWN_ISOLATED);
+        PAWN_DOUBLED = p.get("PAWN_DOUBLED", PAWN_DOUBLED);
+        PAWN_WEAK = p.get("PAWN_WEAK", PAWN_WEAK);
+        PAWN_PASSER = p.get("PAWN_PASSER", PAWN_PASSER);
+        PAWN_PASSER_SUPPORT = p.get("PAWN_PASSER_SUPPORT", PAWN_PASSER_SUPPORT);
+        PAWN_PASSER_KING_D = p.get("PAWN_PASSER_KING_D", PAWN_PASSER_KING_D);
+        HUNG_PIECES = p.get("HUNG_PIECES", HUNG_PIECES);
+        PINNED_PIECE = p.get("PINNED_PIECE", PINNED_PIECE);
+        KNIGTH_OUTPOST = p.get("KNIGTH_OUTPOST", KNIGTH_OUTPOST);
+        PawnColumnValue = p.get("PawnColumnValue", PawnColumnValue);
+        KnightCenterValue = p.get("KnightCenterValue", KnightCenterValue);
+        KnightRankValue = p.get("KnightRankValue", KnightRankValue);
+        KnightBackRankValue = p.get("KnightBackRankValue", KnightBackRankValue);
+        KnightTrappedValue = p.get("KnightTrappedValue", KnightTrappedValue);
+        BishopCenterValue = p.get("BishopCenterValue", BishopCenterValue);
+        BishopBackRankValue = p.get("BishopBackRankValue", BishopBackRankValue);
+        BishopDiagonalValue = p.get("BishopDiagonalValue", BishopDiagonalValue);
+        RookColumnValue = p.get("RookColumnValue", RookColumnValue);
+        QueenCenterValue = p.get("QueenCenterValue", QueenCenterValue);
+        QueenBackRankValue = p.get("QueenBackRankValue", QueenBackRankValue);
+        KingCenterValue = p.get("KingCenterValue", KingCenterValue);
+        KingColumnValue = p.get("KingColumnValue", KingColumnValue);
+        KingRankValue = p.get("KingRankValue", KingRankValue);
+        initPieceSquareValues();
+    }
+
+    private void initPieceSquareValues() {
         // Initialize Piece square values Fruit/Toga style 
         int i;
 
@@ -182,6 +286,9 @@ public class CompleteEvaluator extends Evaluator {
         pawnIndexValue[35] += oe(10, 0); // E5
         pawnIndexValue[36] += oe(10, 0); // D5
 
+        pieceSquareValues = pieceSquareValues(new int[][]{null, pawnIndexValue, knightIndexValue, bishopIndexValue,
+                rookIndexValue, queenIndexValue, kingIndexValue});
+
 //		logger.debug("***PAWN");
 //		printPcsq(pawnIndexValue);
 //		logger.debug("***KNIGHT");
@@ -215,301 +322,290 @@ public class CompleteEvaluator extends Evaluator {
 //		}
 //		logger.debug(sb.toString());
 //	}
-    private int[] bishopCount = {0, 0};
-    private long[] superiorPieceAttacked = {0, 0};
-
-    private int[] material = {0, 0};
-    private int[] pawnMaterial = {0, 0};
-    private int[] mobility = {0, 0};
-    private int[] attacks = {0, 0};
-    private int[] center = {0, 0};
-    private int[] positional = {0, 0};
-    private int[] kingAttackersCount = {0, 0};
-    private int[] kingSafety = {0, 0};
-    //	int kingDefense[] = {0,0};
-    private int[] pawnStructure = {0, 0};
-    private int[] passedPawns = {0, 0};
-
-    // Squares attackeds by pawns
-    private long[] pawnAttacks = {0, 0};
-
-    // Squares surrounding King
-    private long[] squaresNearKing = {0, 0};
-
-    private int[] knightKaufBonus = {0, 0};
-    private int[] rookKaufBonus = {0, 0};
-
-    private long all, pieceAttacks, pieceAttacksXray, mines, others, square;
-    private int auxInt, pcsqIndex, color, index;
-    private boolean isWhite;
-
-    public int evaluateBoard(Board board, int alpha, int beta) {
-        all = board.getAll();
-
-        Arrays.fill(bishopCount, 0);
-        Arrays.fill(superiorPieceAttacked, 0);
-        Arrays.fill(material, 0);
-        Arrays.fill(pawnMaterial, 0);
-        Arrays.fill(mobility, 0);
-        Arrays.fill(attacks, 0);
-        Arrays.fill(center, 0);
-        Arrays.fill(positional, 0);
-        Arrays.fill(kingAttackersCount, 0);
-        Arrays.fill(kingSafety, 0);
-        Arrays.fill(pawnStructure, 0);
-        Arrays.fill(passedPawns, 0);
+    /**
+     * The squares in COLUMNS_ADJACENTS of the columns with any square of the board, only in the same ranks:
+     * the B column has the A and B columns as adjacents
+     */
+    private static long adjacentColumns(long board) {
+        return ((board & ~BitboardUtils.COLUMN[2] & ~BitboardUtils.b_l) << 1) | ((board & ~BitboardUtils.b_r) >>> 1)
+                | (board & BitboardUtils.COLUMN[1]);
+    }
+
+    /**
+     * Squares behind the board squares from the point of view of a side, so a pawn there has them in front
+     */
+    private static long frontSpan(boolean isWhite, long board) {
+        return isWhite ? BitboardUtils.fillDownwards(board >>> 8) : BitboardUtils.fillUpwards(board << 8);
+    }
+
+    @Override
+    public int[][][] getPieceSquareValues() {
+        return pieceSquareValues;
+    }
+
+    public int evaluateBoard(Board board, EvaluationContext context, int alpha, int beta) {
+        // Endgames with exact scores or with a scale factor for the general evaluation
+        Endgame endgame = Endgame.get(board);
+        if (endgame != null) {
+            int score = endgame.evaluate(board);
+            if (score != Endgame.NO_SCORE) {
+                context.lazy = false;
+                return score;
+            }
+            // The lazy margins are not valid for the scaled scores
+            alpha = -VICTORY;
+            beta = VICTORY;
+        }
+
+        long all = board.getAll();
+        long pieceAttacks, pieceAttacksXray, mines, others, square;
+        int color, index;
+        boolean isWhite;
+
+        // Terms by color, in the context so the evaluator can be shared
+        long[] superiorPieceAttacked = context.superiorPieceAttacked;
+        int[] material = context.material;
+        int[] pawnMaterial = context.pawnMaterial;
+        int[] mobility = context.mobility;
+        int[] attacks = context.attacks;
+        int[] positional = context.positional;
+        int[] kingAttackersCount = context.kingAttackersCount;
+        int[] kingSafety = context.kingSafety;
+        int[] pawnStructure = context.pawnStructure;
+        int[] passedPawns = context.passedPawns;
+        long[] pawnAttacks = context.pawnAttacks;
+        long[] squaresNearKing = context.squaresNearKing;
+
+        superiorPieceAttacked[0] = superiorPieceAttacked[1] = 0;
+        mobility[0] = mobility[1] = 0;
+        attacks[0] = attacks[1] = 0;
+        positional[0] = positional[1] = 0;
+        kingAttackersCount[0] = kingAttackersCount[1] = 0;
+        kingSafety[0] = kingSafety[1] = 0;
+        pawnStructure[0] = pawnStructure[1] = 0;
+        passedPawns[0] = passedPawns[1] = 0;
+
+        // Attacks info is shared with the move generation
+        AttackInfo attackInfo = board.getAttackInfo();
+        long[] attacksSquare = attackInfo.attacksFromSquare;
 
         // Squares attackeds by pawns
-        pawnAttacks[0] = ((board.pawns & board.whites & ~BitboardUtils.b_l) << 9) | ((board.pawns & board.whites & ~BitboardUtils.b_r) << 7);
-        pawnAttacks[1] = ((board.pawns & board.blacks & ~BitboardUtils.b_r) >>> 9) | ((board.pawns & board.blacks & ~BitboardUtils.b_l) >>> 7);
+        pawnAttacks[0] = attackInfo.pawnAttacks[0];
+        pawnAttacks[1] = attackInfo.pawnAttacks[1];
 
         // Squares surrounding King
         squaresNearKing[0] = bbAttacks.king[BitboardUtils.square2Index(board.whites & board.kings)];
         squaresNearKing[1] = bbAttacks.king[BitboardUtils.square2Index(board.blacks & board.kings)];
 
-		// From material imbalances (Larry Kaufmann):
+        // Material from the piece counts, not in the piece square sums of the board: those are scaled by the
+        // center weight, the knight and rook values depend on the pawns and the material of each color gives
+        // the game phase. With the imbalances from Larry Kaufmann:
         // A further refinement would be to raise the knight's value by 1/16 and lower the rook's value by 1/8
         // for each pawn above five of the side being valued, with the opposite adjustment for each pawn short of five
-        int whitePawnsCount = BitboardUtils.popCount(board.pawns & board.whites);
-        int blackPawnsCount = BitboardUtils.popCount(board.pawns & board.blacks);
-        knightKaufBonus[0] = KNIGHT_KAUF_BONUS * (whitePawnsCount - 5);
-        knightKaufBonus[1] = KNIGHT_KAUF_BONUS * (blackPawnsCount - 5);
-        rookKaufBonus[0] = ROOK_KAUF_BONUS * (whitePawnsCount - 5);
-        rookKaufBonus[1] = ROOK_KAUF_BONUS * (blackPawnsCount - 5);
-
-        square = 1;
-        index = 0;
-        while (square != 0) {
-            isWhite = ((board.whites & square) != 0);
-            color = (isWhite ? 0 : 1);
-            mines = (isWhite ? board.whites : board.blacks);
-            others = (isWhite ? board.blacks : board.whites);
-            pcsqIndex = (isWhite ? index : 63 - index);
-
-            if ((square & all) != 0) {
-                int rank = index >> 3;
-                int column = 7 - index & 7;
-
-                if ((square & board.pawns) != 0) {
-                    pawnMaterial[color] += PAWN;
-                    center[color] += pawnIndexValue[pcsqIndex];
-
-                    pieceAttacks = (isWhite ? bbAttacks.pawnUpwards[index] : bbAttacks.pawnDownwards[index]);
-
-                    superiorPieceAttacked[color] |= pieceAttacks & others & (board.knights | board.bishops | board.rooks | board.queens);
-
-                    if ((pieceAttacks & squaresNearKing[1 - color]) != 0) {
-                        kingSafety[color] += PAWN_ATTACKS_KING;
-                    }
-
-                    // Doubled pawn detection
-                    if ((BitboardUtils.COLUMN[column] & BitboardUtils.RANKS_FORWARD[color][rank] & board.pawns & mines) != square) {
-                        pawnStructure[color] += PAWN_DOUBLED;
-                    }
-
-					// Blocked Pawn
-//					boolean blocked = ((isWhite ? (square<< 8)  : (square >>> 8)) & others) != 0;
-//					if (blocked) pawnStructure[color] += PAWN_BLOCKED;
-					// Backwards Pawn
-//					if (((BitboardUtils.COLUMN[column] | BitboardUtils.COLUMNS_ADJACENTS[column]) & ~BitboardUtils.RANKS_FORWARD[color][rank] & board.pawns & mines) == 0)
-//						pawnStructure[color] += PAWN_BACKWARD;
-                    // Passed Pawn
-                    if (((BitboardUtils.COLUMN[column] | BitboardUtils.COLUMNS_ADJACENTS[column])
-                            & (isWhite ? BitboardUtils.RANKS_UPWARDS[rank] : BitboardUtils.RANKS_DOWNWARDS[rank])
-                            & board.pawns & others) == 0) {
-                        passedPawns[color] += PAWN_PASSER[(isWhite ? rank : 7 - rank)];
-                        if ((square & pawnAttacks[color]) != 0) {
-                            passedPawns[color] += PAWN_PASSER_SUPPORT[(isWhite ? rank : 7 - rank)];
-                        }
-                        passedPawns[color] += PAWN_PASSER_KING_D[(isWhite ? rank : 7 - rank)] * BitboardUtils.distance(index, BitboardUtils.square2Index(board.kings & others));
-                    }
-
-                    // Isolated pawn
-                    boolean isolated = (BitboardUtils.COLUMNS_ADJACENTS[column] & board.pawns & mines) == 0;
-                    if (isolated) {
-                        pawnStructure[color] += PAWN_ISOLATED;
-                    }
-
-                    long auxLong, auxLong2;
-                    boolean weak = !isolated && (pawnAttacks[color] & square) == 0 //						&& pcsqIndex >= 24
-                            ; // not defended is weak and only if over rank 2
-                    if (weak) {
-                        // Can be defended advancing one square
-                        auxLong = (isWhite ? bbAttacks.pawnDownwards[color] : bbAttacks.pawnUpwards[color]) & ~pawnAttacks[1 - color] & ~all;
-                        while (auxLong != 0) { // Not attacked by other pawn and empty
-                            auxLong2 = BitboardUtils.lsb(auxLong);
-                            auxLong &= ~auxLong2;
-                            auxLong2 = isWhite ? auxLong2 >>> 8 : auxLong2 << 8;
-                            if ((auxLong2 & mines & board.pawns) != 0) {
-                                weak = false;
-                            } else { // Defended advancing one pawn two squares
-                                if ((auxLong2 & all) == 0) { // empty square								
-                                    auxLong2 = (isWhite ? auxLong2 >>> 8 : auxLong2 << 8);
-                                    if (((isWhite ? BitboardUtils.RANK[1] : BitboardUtils.RANK[6]) & auxLong2 & board.pawns & mines) != 0) {
-                                        weak = false;
-                                    }
-                                }
-                            }
-                        }
-
-                        if (weak) {
-                            // Can advance to be supported
-                            auxLong = (isWhite ? square << 8 : square >>> 8) & ~pawnAttacks[1 - color] & ~all;
-                            if (auxLong != 0) {
-                                if ((auxLong & pawnAttacks[color]) != 0) {
-                                    weak = false;
-                                } else {
-                                    // Checks advancing two squares if in initial position
-                                    if (((isWhite ? BitboardUtils.RANK[1] : BitboardUtils.RANK[6]) & square) != 0) {
-                                        auxLong = (isWhite ? square << 16 : square >>> 16) & ~pawnAttacks[1 - color] & ~all;
-                                        if ((auxLong & pawnAttacks[color]) != 0) {
-                                            weak = false;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    if (weak) {
-                        pawnStructure[color] += PAWN_WEAK;
-                    }
-//					if (weak) {
-//						System.out.println("weak pawn: \n" + board.toString());
-//						System.out.println("square: \n" + BitboardUtils.toString(square));
-//					}
-
-                } else if ((square & board.knights) != 0) {
-                    material[color] += KNIGHT + knightKaufBonus[color];
-                    center[color] += knightIndexValue[pcsqIndex];
-
-                    pieceAttacks = bbAttacks.knight[index];
-                    auxInt = BitboardUtils.popCount(pieceAttacks & ~mines & ~pawnAttacks[1 - color]) - KNIGHT_M_UNITS;
-                    mobility[color] += KNIGHT_M * auxInt;
-
-                    if ((pieceAttacks & squaresNearKing[color]) != 0) {
-                        kingSafety[color] += KNIGHT_ATTACKS_KING;
-                        kingAttackersCount[color]++;
-                    }
-
-                    superiorPieceAttacked[color] |= pieceAttacks & others & (board.rooks | board.queens);
-
-                    // Knight outpost: no opposite pawns can attack the square and is defended by one of our pawns
-                    if (((BitboardUtils.COLUMNS_ADJACENTS[column]
-                            & (isWhite ? BitboardUtils.RANKS_UPWARDS[rank] : BitboardUtils.RANKS_DOWNWARDS[rank])
-                            & board.pawns & others) == 0)
-                            && (((isWhite ? bbAttacks.pawnDownwards[index] : bbAttacks.pawnUpwards[index]) & board.pawns & mines) != 0)) {
-                        positional[color] += KNIGTH_OUTPOST[pcsqIndex];
-                    }
-
-                } else if ((square & board.bishops) != 0) {
-                    material[color] += BISHOP;
-                    if (bishopCount[color]++ == 2) {
-                        material[color] += BISHOP_PAIR;
-                    }
-
-                    center[color] += bishopIndexValue[pcsqIndex];
-
-                    pieceAttacks = bbAttacks.getBishopAttacks(index, all);
-                    auxInt = BitboardUtils.popCount(pieceAttacks & ~mines & ~pawnAttacks[1 - color]) - BISHOP_M_UNITS;
-                    mobility[color] += BISHOP_M * auxInt;
-
-                    if ((pieceAttacks & squaresNearKing[1 - color]) != 0) {
-                        kingSafety[color] += BISHOP_ATTACKS_KING;
-                        kingAttackersCount[color]++;
-                    }
-
-                    pieceAttacksXray = bbAttacks.getBishopAttacks(index, all & ~(pieceAttacks & others)) & ~pieceAttacks;
-                    if ((pieceAttacksXray & (board.rooks | board.queens | board.kings) & others) != 0) {
-                        attacks[color] += PINNED_PIECE;
-                    }
-
-                    superiorPieceAttacked[color] |= pieceAttacks & others & (board.rooks | board.queens);
-
-                    if ((BISHOP_TRAPPING[index] & board.pawns & others) != 0) {
-                        mobility[color] += BISHOP_TRAPPED;
-                    }
-
-                } else if ((square & board.rooks) != 0) {
-                    material[color] += ROOK + rookKaufBonus[color];
-                    center[color] += rookIndexValue[pcsqIndex];
-
-                    pieceAttacks = bbAttacks.getRookAttacks(index, all);
-                    auxInt = BitboardUtils.popCount(pieceAttacks & ~mines & ~pawnAttacks[1 - color]) - ROOK_M_UNITS;
-                    mobility[color] += ROOK_M * auxInt;
-
-                    pieceAttacksXray = bbAttacks.getRookAttacks(index, all & ~(pieceAttacks & others)) & ~pieceAttacks;
-                    if ((pieceAttacksXray & (board.queens | board.kings) & others) != 0) {
-                        attacks[color] += PINNED_PIECE;
-                    }
-
-                    if ((pieceAttacks & squaresNearKing[1 - color]) != 0) {
-                        kingSafety[color] += ROOK_ATTACKS_KING;
-                        kingAttackersCount[color]++;
-                    }
-
-                    superiorPieceAttacked[color] |= pieceAttacks & others & board.queens;
-
-                    if ((pieceAttacks & mines & (board.rooks)) != 0) {
-                        positional[color] += ROOK_CONNECT;
-                    }
-                    pieceAttacks = BitboardUtils.COLUMN[column];
-                    if ((pieceAttacks & board.pawns) == 0) {
-                        positional[color] += ROOK_COLUMN_OPEN;
-                    } else if ((pieceAttacks & board.pawns & mines) == 0) {
-                        positional[color] += ROOK_COLUMN_SEMIOPEN;
-                    }
-
-                } else if ((square & board.queens) != 0) {
-                    center[color] += queenIndexValue[pcsqIndex];
-                    material[color] += QUEEN;
-
-                    pieceAttacks = bbAttacks.getRookAttacks(index, all) | bbAttacks.getBishopAttacks(index, all);
-                    auxInt = BitboardUtils.popCount(pieceAttacks & ~mines & ~pawnAttacks[1 - color]) - QUEEN_M_UNITS;
-                    mobility[color] += QUEEN_M * auxInt;
-
-                    if ((pieceAttacks & squaresNearKing[1 - color]) != 0) {
-                        kingSafety[color] += QUEEN_ATTACKS_KING;
-                        kingAttackersCount[color]++;
-                    }
-
-                    pieceAttacksXray = (bbAttacks.getRookAttacks(index, all & ~(pieceAttacks & others)) | bbAttacks.getBishopAttacks(index, all
-                            & ~(pieceAttacks & others)))
-                            & ~pieceAttacks;
-                    if ((pieceAttacksXray & board.kings & others) != 0) {
-                        attacks[color] += PINNED_PIECE;
-                    }
-
-                } else if ((square & board.kings) != 0) {
-                    pieceAttacks = bbAttacks.king[index];
-                    center[color] += kingIndexValue[pcsqIndex];
-                    // TODO
-                    if ((square & (isWhite ? BitboardUtils.RANK[1] : BitboardUtils.RANK[7])) != 0) {
-                        positional[color] += KING_PAWN_NEAR * BitboardUtils.popCount(pieceAttacks & mines & board.pawns);
-                    }
-                }
-            }
-            square <<= 1;
-            index++;
+        for (int c = 0; c < 2; c++) {
+            long colorPieces = (c == 0 ? board.whites : board.blacks);
+            int pawnsCount = BitboardUtils.popCount(board.pawns & colorPieces);
+            int bishopsCount = BitboardUtils.popCount(board.bishops & colorPieces);
+            pawnMaterial[c] = PAWN * pawnsCount;
+            material[c] = (KNIGHT + KNIGHT_KAUF_BONUS * (pawnsCount - 5)) * BitboardUtils.popCount(board.knights & colorPieces)
+                    + BISHOP * bishopsCount + (bishopsCount > 2 ? BISHOP_PAIR : 0)
+                    + (ROOK + ROOK_KAUF_BONUS * (pawnsCount - 5)) * BitboardUtils.popCount(board.rooks & colorPieces)
+                    + QUEEN * BitboardUtils.popCount(board.queens & colorPieces);
         }
 
 		// Ponder opening and Endgame value depending of the non-pawn pieces:
         // opening=> gamephase = 255 / ending => gamephase ~= 0
         int gamePhase = ((material[0] + material[1]) << 8) / 5000;
         if (gamePhase > 256) {
-            gamePhase = 256; // Security		
+            gamePhase = 256; // Security
+        }
+        int value = pawnMaterial[0] - pawnMaterial[1] + material[0] - material[1] + (board.getTurn() ? TEMPO : -TEMPO);
+        int oe = config.getEvalCenter() * board.pieceSquareValue;
+
+        // Lazy evaluation: the cheap terms are evaluated first and the rest are skipped
+        // when the partial score is out of the window by more than their margin
+        context.evalProbe++;
+        int lazyValue = value + (gamePhase * o(oe)) / (256 * 100) + ((256 - gamePhase) * e(oe)) / (256 * 100);
+        if (lazyValue + LAZY_EVAL_MARGIN_MATERIAL <= alpha || lazyValue - LAZY_EVAL_MARGIN_MATERIAL >= beta) {
+            context.lazyEvalMaterialHit++;
+            context.lazy = true;
+            return lazyValue;
+        }
+        context.lazy = false;
+
+        // Pawns, set-wise with column fills and shifts
+        long pieces;
+        for (color = 0; color < 2; color++) {
+            isWhite = (color == 0);
+            mines = (isWhite ? board.whites : board.blacks);
+            others = (isWhite ? board.blacks : board.whites);
+            long myPawns = board.pawns & mines;
+            long otherPawns = board.pawns & others;
+
+            superiorPieceAttacked[color] |= pawnAttacks[color] & others & (board.knights | board.bishops | board.rooks | board.queens);
+
+            // Pawns attacking the squares near the other king
+            long kingAttackSquares = ((squaresNearKing[1 - color] & ~BitboardUtils.b_l) << 1) | ((squaresNearKing[1 - color] & ~BitboardUtils.b_r) >>> 1);
+            kingSafety[color] += PAWN_ATTACKS_KING * BitboardUtils.popCount(myPawns & (isWhite ? kingAttackSquares >>> 8 : kingAttackSquares << 8));
+
+            // Doubled pawns: the test compared the pawns in front with the pawn square and always matched, so all the pawns get the penalty
+            pawnStructure[color] += PAWN_DOUBLED * BitboardUtils.popCount(myPawns);
+
+            // Isolated pawns, with COLUMNS_ADJACENTS the B column pawns are adjacent to themselves and never isolated
+            long myColumns = BitboardUtils.fillColumns(myPawns);
+            long isolated = myPawns & ~(((myColumns & ~BitboardUtils.b_l) << 1) | ((myColumns & ~BitboardUtils.b_r) >>> 1))
+                    & ~BitboardUtils.COLUMN[1];
+            pawnStructure[color] += PAWN_ISOLATED * BitboardUtils.popCount(isolated);
+
+            // Passed pawns: no other pawns in front in the same or adjacent columns
+            long passers = myPawns & ~frontSpan(isWhite, otherPawns | adjacentColumns(otherPawns));
+            int otherKingIndex = BitboardUtils.square2Index(board.kings & others);
+            while (passers != 0) {
+                square = BitboardUtils.lsb(passers);
+                passers ^= square;
+                index = BitboardUtils.square2Index(square);
+                int relativeRank = (isWhite ? index >> 3 : 7 - (index >> 3));
+                passedPawns[color] += PAWN_PASSER[relativeRank];
+                if ((square & pawnAttacks[color]) != 0) {
+                    passedPawns[color] += PAWN_PASSER_SUPPORT[relativeRank];
+                }
+                passedPawns[color] += PAWN_PASSER_KING_D[relativeRank] * BitboardUtils.distance(index, otherKingIndex);
+            }
+
+            // Weak pawns: not isolated nor defended by our pawns
+            long weak = myPawns & ~isolated & ~pawnAttacks[color];
+            // Can be defended advancing one square: the test was done from the squares attacked from H1/G1 (indexed by color)
+            // instead of from the pawn, so it only finds the black pawns in H3/F3 and then none of them is weak
+            if (!isWhite && (((bbAttacks.pawnUpwards[color] & ~pawnAttacks[1 - color] & ~all) << 8) & myPawns) != 0) {
+                weak = 0;
+            }
+            // Can advance to be supported, or advance two squares from the initial rank
+            long advance = (isWhite ? weak << 8 : weak >>> 8) & ~pawnAttacks[1 - color] & ~all;
+            long supported = advance & pawnAttacks[color];
+            advance &= ~supported & (isWhite ? BitboardUtils.RANK[2] : BitboardUtils.RANK[5]);
+            long supportedTwo = (isWhite ? advance << 8 : advance >>> 8) & ~pawnAttacks[1 - color] & ~all & pawnAttacks[color];
+            weak &= ~(isWhite ? (supported >>> 8) | (supportedTwo >>> 16) : (supported << 8) | (supportedTwo << 16));
+            pawnStructure[color] += PAWN_WEAK * BitboardUtils.popCount(weak);
         }
-        int value = 0;
-        // First Material
-        value += pawnMaterial[0] - pawnMaterial[1] + material[0] - material[1];
-        // Tempo
-        value += (board.getTurn() ? TEMPO : -TEMPO);
-
-        int oe = config.getEvalCenter() * (center[0] - center[1])
-                + config.getEvalPositional() * (positional[0] - positional[1])
+
+        oe += config.getEvalPawnStructure() * (pawnStructure[0] - pawnStructure[1])
+                + config.getEvalPassedPawns() * (passedPawns[0] - passedPawns[1]);
+
+        // Pieces, by piece bitboards
+        long openColumns = ~BitboardUtils.fillColumns(board.pawns);
+        for (color = 0; color < 2; color++) {
+            isWhite = (color == 0);
+            mines = (isWhite ? board.whites : board.blacks);
+            others = (isWhite ? board.blacks : board.whites);
+            long mobilitySquares = ~mines & ~pawnAttacks[1 - color];
+
+            pieces = board.knights & mines;
+            while (pieces != 0) {
+                square = BitboardUtils.lsb(pieces);
+                pieces ^= square;
+                pieceAttacks = attacksSquare[BitboardUtils.square2Index(square)];
+                mobility[color] += KNIGHT_M * (BitboardUtils.popCount(pieceAttacks & mobilitySquares) - KNIGHT_M_UNITS);
+
+                if ((pieceAttacks & squaresNearKing[color]) != 0) {
+                    kingSafety[color] += KNIGHT_ATTACKS_KING;
+                    kingAttackersCount[color]++;
+                }
+
+                superiorPieceAttacked[color] |= pieceAttacks & others & (board.rooks | board.queens);
+            }
+
+            // Knight outpost: no opposite pawns can attack the square and is defended by one of our pawns
+            pieces = board.knights & mines & pawnAttacks[color] & ~frontSpan(isWhite, adjacentColumns(board.pawns & others));
+            while (pieces != 0) {
+                square = BitboardUtils.lsb(pieces);
+                pieces ^= square;
+                index = BitboardUtils.square2Index(square);
+                positional[color] += KNIGTH_OUTPOST[isWhite ? index : 63 - index];
+            }
+
+            pieces = board.bishops & mines;
+            while (pieces != 0) {
+                square = BitboardUtils.lsb(pieces);
+                pieces ^= square;
+                index = BitboardUtils.square2Index(square);
+                pieceAttacks = attacksSquare[index];
+                mobility[color] += BISHOP_M * (BitboardUtils.popCount(pieceAttacks & mobilitySquares) - BISHOP_M_UNITS);
+
+                if ((pieceAttacks & squaresNearKing[1 - color]) != 0) {
+                    kingSafety[color] += BISHOP_ATTACKS_KING;
+                    kingAttackersCount[color]++;
+                }
+
+                pieceAttacksXray = bbAttacks.getBishopAttacks(index, all & ~(pieceAttacks & others)) & ~pieceAttacks;
+                if ((pieceAttacksXray & (board.rooks | board.queens | board.kings) & others) != 0) {
+                    attacks[color] += PINNED_PIECE;
+                }
+
+                superiorPieceAttacked[color] |= pieceAttacks & others & (board.rooks | board.queens);
+
+                if ((BISHOP_TRAPPING[index] & board.pawns & others) != 0) {
+                    mobility[color] += BISHOP_TRAPPED;
+                }
+            }
+
+            pieces = board.rooks & mines;
+            while (pieces != 0) {
+                square = BitboardUtils.lsb(pieces);
+                pieces ^= square;
+                index = BitboardUtils.square2Index(square);
+                pieceAttacks = attacksSquare[index];
+                mobility[color] += ROOK_M * (BitboardUtils.popCount(pieceAttacks & mobilitySquares) - ROOK_M_UNITS);
+
+                pieceAttacksXray = bbAttacks.getRookAttacks(index, all & ~(pieceAttacks & others)) & ~pieceAttacks;
+                if ((pieceAttacksXray & (board.queens | board.kings) & others) != 0) {
+                    attacks[color] += PINNED_PIECE;
+                }
+
+                if ((pieceAttacks & squaresNearKing[1 - color]) != 0) {
+                    kingSafety[color] += ROOK_ATTACKS_KING;
+                    kingAttackersCount[color]++;
+                }
+
+                superiorPieceAttacked[color] |= pieceAttacks & others & board.queens;
+
+                if ((pieceAttacks & mines & (board.rooks)) != 0) {
+                    positional[color] += ROOK_CONNECT;
+                }
+            }
+            positional[color] += ROOK_COLUMN_OPEN * BitboardUtils.popCount(board.rooks & mines & openColumns)
+                    + ROOK_COLUMN_SEMIOPEN * BitboardUtils.popCount(board.rooks & mines & ~openColumns & ~BitboardUtils.fillColumns(board.pawns & mines));
+
+            pieces = board.queens & mines;
+            while (pieces != 0) {
+                square = BitboardUtils.lsb(pieces);
+                pieces ^= square;
+                index = BitboardUtils.square2Index(square);
+                pieceAttacks = attacksSquare[index];
+                mobility[color] += QUEEN_M * (BitboardUtils.popCount(pieceAttacks & mobilitySquares) - QUEEN_M_UNITS);
+
+                if ((pieceAttacks & squaresNearKing[1 - color]) != 0) {
+                    kingSafety[color] += QUEEN_ATTACKS_KING;
+                    kingAttackersCount[color]++;
+                }
+
+                pieceAttacksXray = (bbAttacks.getRookAttacks(index, all & ~(pieceAttacks & others)) | bbAttacks.getBishopAttacks(index, all
+                        & ~(pieceAttacks & others)))
+                        & ~pieceAttacks;
+                if ((pieceAttacksXray & board.kings & others) != 0) {
+                    attacks[color] += PINNED_PIECE;
+                }
+            }
+
+            // TODO
+            square = board.kings & mines;
+            if ((square & (isWhite ? BitboardUtils.RANK[1] : BitboardUtils.RANK[7])) != 0) {
+                positional[color] += KING_PAWN_NEAR * BitboardUtils.popCount(attacksSquare[BitboardUtils.square2Index(square)] & mines & board.pawns);
+            }
+        }
+
+        oe += config.getEvalPositional() * (positional[0] - positional[1])
                 + config.getEvalAttacks() * (attacks[0] - attacks[1])
                 + config.getEvalMobility() * (mobility[0] - mobility[1])
-                + config.getEvalPawnStructure() * (pawnStructure[0] - pawnStructure[1])
-                + config.getEvalPassedPawns() * (passedPawns[0] - passedPawns[1])
                 + (config.getEvalKingSafety() / 8) * ((KING_SAFETY_PONDER[kingAttackersCount[0]] * kingSafety[0] - KING_SAFETY_PONDER[kingAttackersCount[1]] * kingSafety[1])) // Divide by eight
                 + config.getEvalAttacks() * ((BitboardUtils.popCount(superiorPieceAttacked[0]) >= 2 ? HUNG_PIECES : 0) - (BitboardUtils.popCount(superiorPieceAttacked[1]) >= 2 ? HUNG_PIECES : 0));
 
@@ -523,8 +619,8 @@ public class CompleteEvaluator extends Evaluator {
             logger.debug("materialValue          = " + (material[0] - material[1]));
             logger.debug("pawnMaterialValue      = " + (pawnMaterial[0] - pawnMaterial[1]));
 
-            logger.debug("centerOpening          = " + o(center[0] - center[1]));
-            logger.debug("centerEndgame          = " + e(center[0] - center[1]));
+            logger.debug("centerOpening          = " + o(board.pieceSquareValue));
+            logger.debug("centerEndgame          = " + e(board.pieceSquareValue));
 
             logger.debug("positionalOpening      = " + o(positional[0] - positional[1]));
             logger.debug("positionalEndgame      = " + e(positional[0] - positional[1]));
@@ -552,6 +648,9 @@ public class CompleteEvaluator extends Evaluator {
             logger.debug("value                  = " + value);
         }
 
+        if (endgame != null) {
+            value = endgame.scaleScore(board, value);
+        }
         return value;
     }
 }
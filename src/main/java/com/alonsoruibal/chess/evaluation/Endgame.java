@@ -0,0 +1,315 @@
+package com.alonsoruibal.chess.evaluation;
+
+import com.alonsoruibal.chess.Board;
+import com.alonsoruibal.chess.Move;
+import com.alonsoruibal.chess.bitboard.BitboardUtils;
+import com.alonsoruibal.chess.hash.MaterialKey;
+
+/**
+ * Specialised evaluation of the endgames, selected by the material key kept by the board. An endgame can
+ * give an exact score (evaluate) or a scale factor for the score of the general evaluator (scale).
+ * <p/>
+ * The known material sets are in a registry with one entry for each color of the strong side. The rest are
+ * matched by rules over the material key: mop-up when a side has only the king, opposite colored bishops
+ * and no pawns with a small material advantage.
+ *
+ * @author rui
+ */
+public abstract class Endgame {
+
+    public final static int NO_SCORE = Integer.MIN_VALUE;
+    public final static int SCALE_NORMAL = 64;
+    public final static int SCALE_DRAW = 0;
+
+    private final static int PAWN = 100;
+    private final static int KNIGHT = 325;
+    private final static int BISHOP = 325;
+    private final static int ROOK = 500;
+    private final static int QUEEN = 975;
+
+    // Open addressing hash of the registered endgames by material key
+    private final static int REGISTRY_SIZE = 256;
+    private final static long[] registryKeys = new long[REGISTRY_SIZE];
+    private final static Endgame[] registry = new Endgame[REGISTRY_SIZE];
+
+    private final static Endgame[] MOP_UP = {new MopUp(0), new MopUp(1)};
+    private final static Endgame OPPOSITE_BISHOPS = new OppositeBishops();
+    private final static Endgame NO_PAWNS = new NoPawns();
+
+    static {
+        register("KvK", new Draw(0), new Draw(1));
+        register("KNvK", new Draw(0), new Draw(1));
+        register("KBvK", new Draw(0), new Draw(1));
+        register("KNNvK", new Draw(0), new Draw(1));
+        register("KPvK", new Kpk(0), new Kpk(1));
+        register("KBNvK", new Kbnk(0), new Kbnk(1));
+        register("KQvKR", new Kqkr(0), new Kqkr(1));
+        register("KBPvK", new Kbpk(0), new Kbpk(1));
+        register("KBPPvK", new Kbpk(0), new Kbpk(1));
+        register("KBPPPvK", new Kbpk(0), new Kbpk(1));
+    }
+
+    // The side with the material of the first part of the registered name
+    protected final int strong;
+    protected final int weak;
+
+    protected Endgame(int strong) {
+        this.strong = strong;
+        this.weak = 1 - strong;
+    }
+
+    /**
+     * Exact score from the white side, NO_SCORE to use the general evaluation
+     */
+    public int evaluate(Board board) {
+        return NO_SCORE;
+    }
+
+    /**
+     * Factor of SCALE_NORMAL applied to the general evaluation when a side is ahead
+     */
+    public int scale(Board board, int ahead) {
+        return SCALE_NORMAL;
+    }
+
+    /**
+     * Scales a score of the general evaluation, from the white side
+     */
+    public int scaleScore(Board board, int score) {
+        return score * scale(board, score >= 0 ? 0 : 1) / SCALE_NORMAL;
+    }
+
+    private static void register(String name, Endgame white, Endgame black) {
+        long key = MaterialKey.getKey(name);
+        put(key, white);
+        put(MaterialKey.flipColors(key), black);
+    }
+
+    private static void put(long key, Endgame endgame) {
+        int i = slot(key);
+        while (registry[i] != null && registryKeys[i] != key) {
+            i = (i + 1) & (REGISTRY_SIZE - 1);
+        }
+        registryKeys[i] = key;
+        registry[i] = endgame;
+    }
+
+    private static int slot(long key) {
+        return (int) ((key * 0x9e3779b97f4a7c15L) >>> 56);
+    }
+
+    /**
+     * The specialised endgame of a board or null if there is not any
+     */
+    public static Endgame get(Board board) {
+        long key = board.materialKey;
+        for (int i = slot(key); registry[i] != null; i = (i + 1) & (REGISTRY_SIZE - 1)) {
+            if (registryKeys[i] == key) {
+                return registry[i];
+            }
+        }
+        if (MaterialKey.isBareKing(key, 1)) {
+            return MOP_UP[0];
+        }
+        if (MaterialKey.isBareKing(key, 0)) {
+            return MOP_UP[1];
+        }
+        if (MaterialKey.getCount(key, 0, Move.BISHOP) == 1 && MaterialKey.getCount(key, 1, Move.BISHOP) == 1
+                && (board.knights | board.rooks | board.queens) == 0
+                && (board.bishops & BitboardUtils.WHITE_SQUARES) != 0 && (board.bishops & BitboardUtils.BLACK_SQUARES) != 0) {
+            return OPPOSITE_BISHOPS;
+        }
+        for (int color = 0; color < 2; color++) {
+            if (MaterialKey.getCount(key, color, Move.PAWN) == 0
+                    && getPiecesMaterial(key, color) - getPiecesMaterial(key, 1 - color) <= BISHOP) {
+                return NO_PAWNS;
+            }
+        }
+        return null;
+    }
+
+    private static int getPiecesMaterial(long key, int color) {
+        return KNIGHT * MaterialKey.getCount(key, color, Move.KNIGHT) + BISHOP * MaterialKey.getCount(key, color, Move.BISHOP)
+                + ROOK * MaterialKey.getCount(key, color, Move.ROOK) + QUEEN * MaterialKey.getCount(key, color, Move.QUEEN);
+    }
+
+    private static int getMaterial(long key, int color) {
+        return PAWN * MaterialKey.getCount(key, color, Move.PAWN) + getPiecesMaterial(key, color);
+    }
+
+    /**
+     * Bonus for the weak king near the edges
+     */
+    private static int pushToEdge(int index) {
+        int column = 7 - index & 7;
+        int rank = index >> 3;
+        return 10 * (Math.max(3 - column, column - 4) + Math.max(3 - rank, rank - 4));
+    }
+
+    /**
+     * Bonus for the kings near each other
+     */
+    private static int pushClose(int index1, int index2) {
+        return 10 * (7 - BitboardUtils.distance(index1, index2));
+    }
+
+    private static int kingIndex(Board board, int color) {
+        return BitboardUtils.square2Index(board.kings & (color == 0 ? board.whites : board.blacks));
+    }
+
+    private static int fromWhite(int score, int color) {
+        return color == 0 ? score : -score;
+    }
+
+    /**
+     * Insufficient material to mate
+     */
+    private static class Draw extends Endgame {
+        Draw(int strong) {
+            super(strong);
+        }
+
+        @Override
+        public int evaluate(Board board) {
+            return 0;
+        }
+    }
+
+    private static class Kpk extends Endgame {
+        Kpk(int strong) {
+            super(strong);
+        }
+
+        @Override
+        public int evaluate(Board board) {
+            return KpkBitbase.evaluate(board);
+        }
+    }
+
+    /**
+     * Drives the bare king to the edge with the other king, only with material enough to force the mate
+     */
+    private static class MopUp extends Endgame {
+        MopUp(int strong) {
+            super(strong);
+        }
+
+        @Override
+        public int evaluate(Board board) {
+            long key = board.materialKey;
+            long strongBishops = board.bishops & (strong == 0 ? board.whites : board.blacks);
+            if (MaterialKey.getCount(key, strong, Move.QUEEN) == 0 && MaterialKey.getCount(key, strong, Move.ROOK) == 0
+                    && ((strongBishops & BitboardUtils.WHITE_SQUARES) == 0 || (strongBishops & BitboardUtils.BLACK_SQUARES) == 0)
+                    && (strongBishops == 0 || MaterialKey.getCount(key, strong, Move.KNIGHT) == 0)) {
+                return NO_SCORE;
+            }
+            int weakKingIndex = kingIndex(board, weak);
+            return fromWhite(Evaluator.KNOWN_WIN + getMaterial(key, strong) + pushToEdge(weakKingIndex)
+                    + pushClose(kingIndex(board, strong), weakKingIndex), strong);
+        }
+    }
+
+    /**
+     * Bishop and knight: the bare king is driven to a corner of the color of the bishop
+     */
+    private static class Kbnk extends Endgame {
+        Kbnk(int strong) {
+            super(strong);
+        }
+
+        @Override
+        public int evaluate(Board board) {
+            int weakKingIndex = kingIndex(board, weak);
+            // A1 (7) and H8 (56) are black squares, H1 (0) and A8 (63) white
+            boolean blackBishop = (board.bishops & BitboardUtils.BLACK_SQUARES) != 0;
+            int cornerDistance = blackBishop ? Math.min(manhattanDistance(weakKingIndex, 7), manhattanDistance(weakKingIndex, 56))
+                    : Math.min(manhattanDistance(weakKingIndex, 0), manhattanDistance(weakKingIndex, 63));
+            return fromWhite(Evaluator.KNOWN_WIN + KNIGHT + BISHOP + 20 * (14 - cornerDistance)
+                    + pushClose(kingIndex(board, strong), weakKingIndex), strong);
+        }
+
+        private static int manhattanDistance(int index1, int index2) {
+            return Math.abs((index1 & 7) - (index2 & 7)) + Math.abs((index1 >> 3) - (index2 >> 3));
+        }
+    }
+
+    /**
+     * Queen versus rook: won driving the king to the edge and out of the rook protection
+     */
+    private static class Kqkr extends Endgame {
+        Kqkr(int strong) {
+            super(strong);
+        }
+
+        @Override
+        public int evaluate(Board board) {
+            int weakKingIndex = kingIndex(board, weak);
+            return fromWhite(Evaluator.KNOWN_WIN + QUEEN - ROOK + pushToEdge(weakKingIndex)
+                    + pushClose(kingIndex(board, strong), weakKingIndex), strong);
+        }
+    }
+
+    /**
+     * Rook pawns with the bishop of the wrong color: a draw if the bare king reaches the promotion corner
+     */
+    private static class Kbpk extends Endgame {
+        Kbpk(int strong) {
+            super(strong);
+        }
+
+        @Override
+        public int evaluate(Board board) {
+            long pawns = board.pawns;
+            boolean aColumn = (pawns & ~BitboardUtils.COLUMN[0]) == 0;
+            if (!aColumn && (pawns & ~BitboardUtils.COLUMN[7]) != 0) {
+                return NO_SCORE;
+            }
+            // A8/H8 for white or A1/H1 for black
+            int promotionIndex = (strong == 0 ? 56 : 0) | (aColumn ? 7 : 0);
+            long promotionSquare = 1L << promotionIndex;
+            boolean promotionBlack = (promotionSquare & BitboardUtils.BLACK_SQUARES) != 0;
+            boolean bishopBlack = (board.bishops & BitboardUtils.BLACK_SQUARES) != 0;
+            if (promotionBlack != bishopBlack && BitboardUtils.distance(kingIndex(board, weak), promotionIndex) <= 1) {
+                return 0;
+            }
+            return NO_SCORE;
+        }
+    }
+
+    /**
+     * Opposite colored bishops and pawns: drawish with a small pawn difference
+     */
+    private static class OppositeBishops extends Endgame {
+        OppositeBishops() {
+            super(0);
+        }
+
+        @Override
+        public int scale(Board board, int ahead) {
+            long key = board.materialKey;
+            int pawnDifference = MaterialKey.getCount(key, ahead, Move.PAWN) - MaterialKey.getCount(key, 1 - ahead, Move.PAWN);
+            return pawnDifference <= 0 ? SCALE_NORMAL / 8 : Math.min(SCALE_NORMAL, (SCALE_NORMAL / 8) << pawnDifference);
+        }
+    }
+
+    /**
+     * The side ahead has no pawns and a material advantage of at most a minor piece: drawish, a draw if
+     * it has less than a rook
+     */
+    private static class NoPawns extends Endgame {
+        NoPawns() {
+            super(0);
+        }
+
+        @Override
+        public int scale(Board board, int ahead) {
+            long key = board.materialKey;
+            int aheadMaterial = getPiecesMaterial(key, ahead);
+            int otherMaterial = getPiecesMaterial(key, 1 - ahead);
+            if (MaterialKey.getCount(key, ahead, Move.PAWN) != 0 || aheadMaterial - otherMaterial > BISHOP) {
+                return SCALE_NORMAL;
+            }
+            return aheadMaterial < ROOK ? SCALE_DRAW : otherMaterial <= BISHOP ? SCALE_NORMAL / 16 : SCALE_NORMAL * 14 / 64;
+        }
+    }
+}
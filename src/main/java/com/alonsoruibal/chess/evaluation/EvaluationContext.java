@@ -0,0 +1,37 @@
+package com.alonsoruibal.chess.evaluation;
+
+/**
+ * State of the evaluations of one thread: the terms of each color filled by evaluateBoard() and the result
+ * flags. The evaluators only keep their parameters, so an evaluator can be shared by several threads, each
+ * one with its own context created with Evaluator.newContext() and reused for all its evaluations.
+ *
+ * @author rui
+ */
+public class EvaluationContext {
+
+    // True when the last evaluateBoard() returned before evaluating all the terms
+    public boolean lazy = false;
+
+    // Statistics of the evaluations done with this context
+    public long evalProbe = 0;
+    public long lazyEvalMaterialHit = 0;
+
+    // Terms indexed by color, each evaluation sets them before adding to them
+    public final int[] material = {0, 0};
+    public final int[] pawnMaterial = {0, 0};
+    public final int[] positional = {0, 0};
+    public final int[] mobility = {0, 0};
+    public final int[] attacks = {0, 0};
+    public final int[] kingAttackersCount = {0, 0};
+    public final int[] kingSafety = {0, 0};
+    public final int[] kingDefense = {0, 0};
+    public final int[] pawnStructure = {0, 0};
+    public final int[] passedPawns = {0, 0};
+
+    // Squares indexed by color
+    public final long[] superiorPieceAttacked = {0, 0};
+    public final long[] minorPiecesDefendedByPawns = {0, 0};
+    public final long[] pawnAttacks = {0, 0};
+    public final long[] pawnCanAttack = {0, 0};
+    public final long[] squaresNearKing = {0, 0};
+}
@@ -6,18 +6,74 @@ import com.alonsoruibal.chess.bitboard.BitboardAttacks;
 public abstract class Evaluator {
 
     public final static int VICTORY = Short.MAX_VALUE - 1;
+    // Base score of the positions known to be won by a bitbase or endgame knowledge, it is less than the
+    // material of a queen so after a promotion the score does not drop and the search wants to promote
+    public final static int KNOWN_WIN = 500;
 //	private final static Random random = new Random(System.currentTimeMillis());
 
     public BitboardAttacks bbAttacks;
 
+    // Contexts for the evaluations without an explicit one
+    private final ThreadLocal<EvaluationContext> contexts = new ThreadLocal<EvaluationContext>() {
+        @Override
+        protected EvaluationContext initialValue() {
+            return newContext();
+        }
+    };
+
     public Evaluator() {
         bbAttacks = BitboardAttacks.getInstance();
     }
 
     /**
-     * Board evaluator
+     * A context for the evaluations of one thread
+     */
+    public EvaluationContext newContext() {
+        return new EvaluationContext();
+    }
+
+    /**
+     * Piece square values of this evaluator, kept summed by the board in Board.pieceSquareValue, or null
+     * if it does not use them. Whoever binds the evaluator to a board must set them once with
+     * board.setPieceSquareValues(evaluator.getPieceSquareValues()), that recomputes the sums of the
+     * board history
+     */
+    public int[][][] getPieceSquareValues() {
+        return null;
+    }
+
+    /**
+     * Board evaluator, from the white side. The score may be lazy (only approximated, flagged in the
+     * context) when it is out of the alpha/beta window, also from the white side. It has no side
+     * effects: the evaluator is not modified, so it can be used by several threads at the same time
+     * with different contexts, and the board is only read. The board must have the piece square values
+     * of this evaluator.
      */
-    public abstract int evaluateBoard(Board board, int alpha, int beta);
+    public abstract int evaluateBoard(Board board, EvaluationContext context, int alpha, int beta);
+
+    /**
+     * Board evaluator with a context of the calling thread
+     */
+    public int evaluateBoard(Board board, int alpha, int beta) {
+        return evaluateBoard(board, contexts.get(), alpha, beta);
+    }
+
+    /**
+     * Piece square values for Board.setPieceSquareValues() from the values of the white pieces indexed
+     * by [piece][square index], the values of the black pieces are rotated and negated
+     */
+    public static int[][][] pieceSquareValues(int[][] whiteValues) {
+        int[][][] values = new int[2][whiteValues.length][64];
+        for (int piece = 0; piece < whiteValues.length; piece++) {
+            if (whiteValues[piece] != null) {
+                for (int i = 0; i < 64; i++) {
+                    values[0][piece][i] = whiteValues[piece][i];
+                    values[1][piece][i] = -whiteValues[piece][63 - i];
+                }
+            }
+        }
+        return values;
+    }
 
     public static int oe(int opening, int endgame) {
         return (((short) (opening)) << 16) + (short) (endgame);
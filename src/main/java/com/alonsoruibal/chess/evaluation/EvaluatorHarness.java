@@ -0,0 +1,262 @@
+package com.alonsoruibal.chess.evaluation;
+
+import com.alonsoruibal.chess.Board;
+import com.alonsoruibal.chess.Config;
+import com.alonsoruibal.chess.Position;
+import com.alonsoruibal.chess.log.Logger;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Measures and compares evaluators over a corpus of positions, a FEN or EPD file with one position by
+ * line (only the first four fields are used):
+ * <ul>
+ * <li>Throughput: evaluations per second with the full window, timing whole passes over boards already set
+ * up with up to 256 positions spread over the corpus</li>
+ * <li>Color symmetry: each position is mirrored (ranks, colors, side to move, castling and en passant)
+ * and its score must be the same with the opposite sign</li>
+ * <li>Equivalence: with two evaluators, the scores of each position must be the same</li>
+ * </ul>
+ * The first mismatching positions are printed with their scores. It exits with 1 if any score differs
+ * between the two evaluators, so an optimised rewrite can be checked against the original one.
+ * <p/>
+ * The evaluators are the names of Config.setEvaluator() ("simplified", "complete", "experimental" or "nnue")
+ * or the class name of another implementation, with a Config or an empty constructor.
+ * <p/>
+ * Usage: EvaluatorHarness corpusFile [evaluator [otherEvaluator]]
+ *
+ * @author rui
+ */
+public class EvaluatorHarness {
+    private static final Logger logger = Logger.getLogger("EvaluatorHarness");
+
+    private final static String[] DEFAULT_EVALUATORS = {"simplified", "complete", "experimental"};
+    // Min time of evaluations measured for each evaluator
+    private final static long MIN_TIME_NS = 2000000000L;
+    // Max boards set up for the throughput, a board keeps the histories of a game so they are not cheap
+    private final static int MEASURE_BOARDS = 256;
+    // Passes over the boards not timed, warming up the JIT
+    private final static int WARM_UP_PASSES = 1000;
+    private final static int MAX_MISMATCHES_SHOWN = 10;
+
+    private final Board board = new Board();
+    private final ArrayList<Position> positions = new ArrayList<Position>();
+    private final ArrayList<Position> mirroredPositions = new ArrayList<Position>();
+    private final ArrayList<String> fens = new ArrayList<String>();
+    // Sum of the timed scores, so the JIT cannot remove the evaluations
+    private long scoreSum;
+
+    /**
+     * Reads the positions of a FEN or EPD file, with their mirrored ones
+     */
+    public void load(String fileName) throws IOException {
+        BufferedReader br = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length < 2 || tokens[0].startsWith("#")) {
+                    continue;
+                }
+                // Only the four EPD fields, the operations could be taken as the FEN counters
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < Math.min(4, tokens.length); i++) {
+                    if (i > 0) {
+                        sb.append(' ');
+                    }
+                    sb.append(tokens[i]);
+                }
+                board.setFen(sb.toString());
+                String fen = board.getFen();
+                positions.add(board.getPosition());
+                fens.add(fen);
+                board.setFen(mirrorFen(fen));
+                mirroredPositions.add(board.getPosition());
+            }
+        } finally {
+            br.close();
+        }
+        logger.debug("Loaded " + positions.size() + " positions");
+    }
+
+    /**
+     * The FEN of the position with the ranks reversed and the colors swapped
+     */
+    static String mirrorFen(String fen) {
+        String[] tokens = fen.split(" ");
+        String[] ranks = tokens[0].split("/");
+        StringBuilder sb = new StringBuilder();
+        for (int i = ranks.length - 1; i >= 0; i--) {
+            sb.append(swapCase(ranks[i]));
+            if (i > 0) {
+                sb.append('/');
+            }
+        }
+        sb.append("w".equals(tokens[1]) ? " b " : " w ");
+        sb.append(swapCase(tokens[2]));
+        sb.append(' ');
+        String passant = tokens[3];
+        if ("-".equals(passant)) {
+            sb.append(passant);
+        } else {
+            sb.append(passant.charAt(0));
+            sb.append((char) ('1' + '8' - passant.charAt(1)));
+        }
+        for (int i = 4; i < tokens.length; i++) {
+            sb.append(' ');
+            sb.append(tokens[i]);
+        }
+        return sb.toString();
+    }
+
+    private static String swapCase(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            sb.append(Character.isUpperCase(c) ? Character.toLowerCase(c) : Character.toUpperCase(c));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Scores of all the positions from the white side
+     */
+    public int[] evaluate(Evaluator evaluator, ArrayList<Position> positions) {
+        EvaluationContext context = evaluator.newContext();
+        board.setPieceSquareValues(evaluator.getPieceSquareValues());
+        int[] scores = new int[positions.size()];
+        for (int i = 0; i < scores.length; i++) {
+            board.setPosition(positions.get(i));
+            scores[i] = evaluator.evaluateBoard(board, context, -Evaluator.VICTORY, Evaluator.VICTORY);
+        }
+        return scores;
+    }
+
+    /**
+     * Evaluations per second, the boards are set up with the positions before timing the passes over them
+     */
+    public double measure(Evaluator evaluator) {
+        EvaluationContext context = evaluator.newContext();
+        Board[] boards = new Board[Math.min(MEASURE_BOARDS, positions.size())];
+        for (int i = 0; i < boards.length; i++) {
+            boards[i] = new Board();
+            boards[i].setPieceSquareValues(evaluator.getPieceSquareValues());
+            boards[i].setPosition(positions.get((int) ((long) i * positions.size() / boards.length)));
+        }
+        long time = 0;
+        long passes = 0;
+        for (int pass = 0; time < MIN_TIME_NS; pass++) {
+            long start = System.nanoTime();
+            for (Board measuredBoard : boards) {
+                scoreSum += evaluator.evaluateBoard(measuredBoard, context, -Evaluator.VICTORY, Evaluator.VICTORY);
+            }
+            if (pass >= WARM_UP_PASSES) {
+                time += System.nanoTime() - start;
+                passes++;
+            }
+        }
+        return passes * boards.length * 1e9 / time;
+    }
+
+    /**
+     * Counts the positions whose mirrored score is not the opposite, printing the first ones
+     */
+    public int checkSymmetry(Evaluator evaluator, String name) {
+        int[] scores = evaluate(evaluator, positions);
+        int[] mirroredScores = evaluate(evaluator, mirroredPositions);
+        int violations = 0;
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] != -mirroredScores[i]) {
+                if (violations++ < MAX_MISMATCHES_SHOWN) {
+                    System.out.println("  " + name + " asymmetric: " + fens.get(i) + " score " + scores[i] + " mirrored " + mirroredScores[i]);
+                }
+            }
+        }
+        return violations;
+    }
+
+    /**
+     * Counts the positions with different scores, printing the first ones
+     */
+    public int compare(Evaluator evaluator1, String name1, Evaluator evaluator2, String name2) {
+        int[] scores1 = evaluate(evaluator1, positions);
+        int[] scores2 = evaluate(evaluator2, positions);
+        int mismatches = 0;
+        int maxDifference = 0;
+        for (int i = 0; i < scores1.length; i++) {
+            if (scores1[i] != scores2[i]) {
+                maxDifference = Math.max(maxDifference, Math.abs(scores1[i] - scores2[i]));
+                if (mismatches++ < MAX_MISMATCHES_SHOWN) {
+                    System.out.println("  mismatch: " + fens.get(i) + " " + name1 + " " + scores1[i] + " " + name2 + " " + scores2[i]);
+                }
+            }
+        }
+        System.out.println(name1 + " vs " + name2 + ": " + mismatches + " mismatches of " + scores1.length + " positions, max difference " + maxDifference);
+        return mismatches;
+    }
+
+    private void report(Evaluator evaluator, String name) {
+        double evalsPerSecond = measure(evaluator);
+        int violations = checkSymmetry(evaluator, name);
+        System.out.println(name + ": " + Math.round(evalsPerSecond) + " evals/s, " + Math.round(1e9 / evalsPerSecond) + " ns/eval, "
+                + violations + " color symmetry violations of " + positions.size() + " positions");
+    }
+
+    /**
+     * Evaluator by the name in Config or by class name
+     */
+    public static Evaluator createEvaluator(String name, Config config) {
+        if ("simplified".equals(name)) {
+            return new SimplifiedEvaluator();
+        } else if ("complete".equals(name)) {
+            return new CompleteEvaluator(config);
+        } else if ("experimental".equals(name)) {
+            return new ExperimentalEvaluator(config);
+        } else if ("nnue".equals(name)) {
+            NnueNetwork network = NnueNetwork.load(config.getNnueFile());
+            return network != null ? new NnueEvaluator(network) : null;
+        }
+        try {
+            Class<?> evaluatorClass = Class.forName(name);
+            try {
+                return (Evaluator) evaluatorClass.getConstructor(Config.class).newInstance(config);
+            } catch (NoSuchMethodException e) {
+                return (Evaluator) evaluatorClass.getDeclaredConstructor().newInstance();
+            }
+        } catch (Exception e) {
+            logger.error("Cannot create the evaluator " + name + ": " + e);
+            return null;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: EvaluatorHarness corpusFile [evaluator [otherEvaluator]]");
+            return;
+        }
+        EvaluatorHarness harness = new EvaluatorHarness();
+        harness.load(args[0]);
+        if (harness.positions.isEmpty()) {
+            System.out.println("No positions in " + args[0]);
+            return;
+        }
+        Config config = new Config();
+        String[] names = args.length > 1 ? new String[args.length - 1] : DEFAULT_EVALUATORS;
+        System.arraycopy(args, 1, names, 0, args.length - 1);
+        Evaluator[] evaluators = new Evaluator[names.length];
+        for (int i = 0; i < names.length; i++) {
+            evaluators[i] = createEvaluator(names[i], config);
+            if (evaluators[i] == null) {
+                System.out.println("Unknown evaluator: " + names[i]);
+                System.exit(2);
+            }
+            harness.report(evaluators[i], names[i]);
+        }
+        if (args.length > 2 && harness.compare(evaluators[0], names[0], evaluators[1], names[1]) > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.alonsoruibal.chess.evaluation;
+
+import com.alonsoruibal.chess.log.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Named evaluation parameters, each one a list of values packed with Evaluator.oe().
+ * Used to load the evaluator weights from data and by the TexelTuner to write the tuned ones.
+ * <p/>
+ * Text format, one parameter per line and "#" for comments, with the opening and endgame values of
+ * each element separated by spaces and the elements by commas:
+ * <pre>
+ * BISHOP_M = 5 5
+ * PAWN_PASSER = 0 0, 5 10, 10 20, 20 40, 30 60, 50 100, 75 150, 0 0
+ * </pre>
+ *
+ * @author rui
+ */
+public class EvaluatorParameters {
+    private static final Logger logger = Logger.getLogger("EvaluatorParameters");
+
+    private final LinkedHashMap<String, int[]> values = new LinkedHashMap<String, int[]>();
+
+    public Set<String> getNames() {
+        return values.keySet();
+    }
+
+    /**
+     * The packed values of a parameter, or null if it is not present
+     */
+    public int[] getValues(String name) {
+        return values.get(name);
+    }
+
+    public int get(String name, int defaultValue) {
+        int[] v = values.get(name);
+        return v != null && v.length == 1 ? v[0] : defaultValue;
+    }
+
+    /**
+     * The values of a parameter if present and with the same length of the default values
+     */
+    public int[] get(String name, int[] defaultValues) {
+        int[] v = values.get(name);
+        return v != null && v.length == defaultValues.length ? v.clone() : defaultValues;
+    }
+
+    public void put(String name, int value) {
+        values.put(name, new int[]{value});
+    }
+
+    public void put(String name, int[] values) {
+        this.values.put(name, values.clone());
+    }
+
+    /**
+     * Opening value of a packed value, Evaluator.o() is one less when the endgame value is negative
+     */
+    public static int opening(int oe) {
+        return (oe - Evaluator.e(oe)) >> 16;
+    }
+
+    public static int endgame(int oe) {
+        return Evaluator.e(oe);
+    }
+
+    /**
+     * Loads the parameters from a file, or from a classpath resource with that name if the file does not exist
+     *
+     * @return null if they could not be loaded
+     */
+    public static EvaluatorParameters load(String fileName) {
+        try {
+            InputStream is;
+            File file = new File(fileName);
+            if (file.exists()) {
+                is = new FileInputStream(file);
+            } else {
+                is = EvaluatorParameters.class.getResourceAsStream(fileName.startsWith("/") ? fileName : "/" + fileName);
+                if (is == null) {
+                    logger.error("Evaluator parameters file not found: " + fileName);
+                    return null;
+                }
+            }
+            try {
+                return read(is);
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error loading evaluator parameters: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static EvaluatorParameters read(InputStream is) throws IOException {
+        EvaluatorParameters parameters = new EvaluatorParameters();
+        BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        String line;
+        int lineNumber = 0;
+        while ((line = br.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            int equals = line.indexOf('=');
+            if (equals <= 0) {
+                throw new IOException("Invalid parameter in line " + lineNumber);
+            }
+            String[] elements = line.substring(equals + 1).split(",");
+            int[] v = new int[elements.length];
+            try {
+                for (int i = 0; i < elements.length; i++) {
+                    String[] pair = elements[i].trim().split("\\s+");
+                    if (pair.length != 2) {
+                        throw new IOException("Expected opening and endgame values in line " + lineNumber);
+                    }
+                    v[i] = Evaluator.oe(Integer.parseInt(pair[0]), Integer.parseInt(pair[1]));
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid number in line " + lineNumber);
+            }
+            parameters.values.put(line.substring(0, equals).trim(), v);
+        }
+        return parameters;
+    }
+
+    public void write(OutputStream os) throws IOException {
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
+        for (String name : values.keySet()) {
+            pw.print(name);
+            pw.print(" =");
+            int[] v = values.get(name);
+            for (int i = 0; i < v.length; i++) {
+                pw.print(i == 0 ? " " : ", ");
+                pw.print(opening(v[i]));
+                pw.print(' ');
+                pw.print(endgame(v[i]));
+            }
+            pw.println();
+        }
+        pw.flush();
+        if (pw.checkError()) {
+            throw new IOException("Error writing evaluator parameters");
+        }
+    }
+}
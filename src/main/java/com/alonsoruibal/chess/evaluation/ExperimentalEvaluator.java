@@ -2,6 +2,7 @@ package com.alonsoruibal.chess.evaluation;
 
 import com.alonsoruibal.chess.Board;
 import com.alonsoruibal.chess.Config;
+import com.alonsoruibal.chess.bitboard.AttackInfo;
 import com.alonsoruibal.chess.bitboard.BitboardUtils;
 import com.alonsoruibal.chess.log.Logger;
 
@@ -195,6 +196,7 @@ public class ExperimentalEvaluator extends Evaluator {
     private final static int[] rookIndexValue = new int[64];
     private final static int[] queenIndexValue = new int[64];
     private final static int[] kingIndexValue = new int[64];
+    private final static int[][][] pieceSquareValues;
 
     static {
         // Initialize Piece square values
@@ -220,6 +222,9 @@ public class ExperimentalEvaluator extends Evaluator {
                     KingColumn[ENDGAME][column] + KingRank[ENDGAME][rank] + KingLine[ENDGAME][d] + KingLine[ENDGAME][e]);
         }
 
+        pieceSquareValues = pieceSquareValues(new int[][]{null, pawnIndexValue, knightIndexValue, bishopIndexValue,
+                rookIndexValue, queenIndexValue, kingIndexValue});
+
 //		logger.debug("***PAWN");
 //		printPcsq(pawnIndexValue);
 //		logger.debug("***KNIGHT");
@@ -253,39 +258,51 @@ public class ExperimentalEvaluator extends Evaluator {
 //		}
 //		logger.debug(sb.toString());
 //	}
-    private long all, pieceAttacks, pieceAttacksXray, auxLong, auxLong2;
-    private long[] attacksSquare = new long[64];
-    private long[] superiorPieceAttacked = {0, 0};
-    private long[] attacksColor = {0, 0};
-    private long[] minorPiecesDefendedByPawns = {0, 0};
-    private long[] pawnAttacks = {0, 0};
-    private long[] pawnCanAttack = {0, 0};
-    private long[] squaresNearKing = {0, 0};
-
-    private int[] material = {0, 0};
-    private int[] pawnMaterial = {0, 0};
-    private int[] center = {0, 0};
-    private int[] positional = {0, 0};
-    private int[] mobility = {0, 0};
-    private int[] attacks = {0, 0};
-    private int[] kingAttackersCount = {0, 0};
-    private int[] kingSafety = {0, 0};
-    private int[] kingDefense = {0, 0};
-    private int[] pawnStructure = {0, 0};
-    private int[] passedPawns = {0, 0};
-    private int[] bishopCount = {0, 0};
-
-    public int evaluateBoard(Board board, int alpha, int beta) {
+
+    @Override
+    public int[][][] getPieceSquareValues() {
+        return pieceSquareValues;
+    }
+
+    public int evaluateBoard(Board board, EvaluationContext context, int alpha, int beta) {
+        // Endgames with exact scores or with a scale factor for the general evaluation
+        Endgame endgame = Endgame.get(board);
+        if (endgame != null) {
+            int score = endgame.evaluate(board);
+            if (score != Endgame.NO_SCORE) {
+                context.lazy = false;
+                return score;
+            }
+            // The lazy margins are not valid for the scaled scores
+            alpha = -VICTORY;
+            beta = VICTORY;
+        }
+
         long square;
         byte index;
 
-        all = board.getAll();
+        long all = board.getAll();
+        long pieceAttacks, pieceAttacksXray, auxLong, auxLong2;
+
+        // Terms by color, in the context so the evaluator can be shared
+        long[] superiorPieceAttacked = context.superiorPieceAttacked;
+        long[] minorPiecesDefendedByPawns = context.minorPiecesDefendedByPawns;
+        long[] pawnAttacks = context.pawnAttacks;
+        long[] pawnCanAttack = context.pawnCanAttack;
+        long[] squaresNearKing = context.squaresNearKing;
+        int[] material = context.material;
+        int[] pawnMaterial = context.pawnMaterial;
+        int[] positional = context.positional;
+        int[] mobility = context.mobility;
+        int[] attacks = context.attacks;
+        int[] kingAttackersCount = context.kingAttackersCount;
+        int[] kingSafety = context.kingSafety;
+        int[] kingDefense = context.kingDefense;
+        int[] pawnStructure = context.pawnStructure;
+        int[] passedPawns = context.passedPawns;
+
         superiorPieceAttacked[0] = superiorPieceAttacked[1] = 0;
-        attacksColor[0] = attacksColor[1] = 0;
 
-        material[0] = material[1] = 0;
-        pawnMaterial[0] = pawnMaterial[1] = 0;
-        center[0] = center[1] = 0;
         positional[0] = positional[1] = 0;
         mobility[0] = mobility[1] = 0;
         attacks[0] = attacks[1] = 0;
@@ -294,7 +311,6 @@ public class ExperimentalEvaluator extends Evaluator {
         kingDefense[0] = kingDefense[1] = 0;
         pawnStructure[0] = pawnStructure[1] = 0;
         passedPawns[0] = passedPawns[1] = 0;
-        bishopCount[0] = bishopCount[1] = 0;
 
         // Squares attackeds by pawns
         pawnAttacks[0] = ((board.pawns & board.whites & ~BitboardUtils.b_l) << 9) | ((board.pawns & board.whites & ~BitboardUtils.b_r) << 7);
@@ -311,76 +327,63 @@ public class ExperimentalEvaluator extends Evaluator {
         minorPiecesDefendedByPawns[0] = board.whites & (board.bishops | board.knights) & pawnAttacks[0];
         minorPiecesDefendedByPawns[1] = board.blacks & (board.bishops | board.knights) & pawnAttacks[1];
 
-        // first build attacks info
-        square = 1;
-        for (index = 0; index < 64; index++) {
-            if ((square & all) != 0) {
-                boolean isWhite = ((board.whites & square) != 0);
-                int color = (isWhite ? 0 : 1);
-
-                if ((square & board.pawns) != 0) {
-                    pieceAttacks = (isWhite ? bbAttacks.pawnUpwards[index] : bbAttacks.pawnDownwards[index]);
-                } else if ((square & board.knights) != 0) {
-                    pieceAttacks = bbAttacks.knight[index];
-                } else if ((square & board.bishops) != 0) {
-                    pieceAttacks = bbAttacks.getBishopAttacks(index, all);
-                } else if ((square & board.rooks) != 0) {
-                    pieceAttacks = bbAttacks.getRookAttacks(index, all);
-                } else if ((square & board.queens) != 0) {
-                    pieceAttacks = bbAttacks.getRookAttacks(index, all) | bbAttacks.getBishopAttacks(index, all);
-                } else if ((square & board.kings) != 0) {
-                    pieceAttacks = bbAttacks.king[index];
-                } else {
-                    pieceAttacks = 0;
-                }
-                attacksColor[color] |= pieceAttacks;
-                attacksSquare[index] = pieceAttacks;
-            }
-            square <<= 1;
+        // Attacks info is shared with the move generation
+        AttackInfo attackInfo = board.getAttackInfo();
+        long[] attacksColor = attackInfo.attackedSquares;
+        long[] attacksSquare = attackInfo.attacksFromSquare;
+
+        // Material from the piece counts, not in the piece square sums of the board: those are scaled by the
+        // center weight and the material of each color gives the game phase
+        for (int c = 0; c < 2; c++) {
+            long colorPieces = (c == 0 ? board.whites : board.blacks);
+            int bishopsCount = BitboardUtils.popCount(board.bishops & colorPieces);
+            pawnMaterial[c] = PAWN * BitboardUtils.popCount(board.pawns & colorPieces);
+            material[c] = KNIGHT * BitboardUtils.popCount(board.knights & colorPieces)
+                    + BISHOP * bishopsCount + (bishopsCount > 2 ? BISHOP_PAIR : 0)
+                    + ROOK * BitboardUtils.popCount(board.rooks & colorPieces)
+                    + QUEEN * BitboardUtils.popCount(board.queens & colorPieces);
         }
         // Ok, ended initialization
 
-        square = 1;
-        index = 0;
-        while (square != 0) {
-            if ((square & all) != 0) {
-                boolean isWhite = ((board.whites & square) != 0);
-                int color = (isWhite ? 0 : 1);
-                long mines = (isWhite ? board.whites : board.blacks);
-                long others = (isWhite ? board.blacks : board.whites);
-                long otherPawnAttacks = (isWhite ? pawnAttacks[1] : pawnAttacks[0]);
-                int pcsqIndex = (isWhite ? index : 63 - index);
-                int rank = index >> 3;
-                int column = 7 - index & 7;
-
-                pieceAttacks = attacksSquare[index];
-
-                if ((square & board.pawns) != 0) {
-                    pawnMaterial[color] += PAWN;
-                    center[color] += pawnIndexValue[pcsqIndex];
-
-                    if ((pieceAttacks & squaresNearKing[1 - color] & ~otherPawnAttacks) != 0) {
-                        kingSafety[color] += PAWN_ATTACKS_KING;
-                    }
+        long pieces = all;
+        while (pieces != 0) {
+            square = BitboardUtils.lsb(pieces);
+            pieces ^= square;
+            index = BitboardUtils.square2Index(square);
+            boolean isWhite = ((board.whites & square) != 0);
+            int color = (isWhite ? 0 : 1);
+            long mines = (isWhite ? board.whites : board.blacks);
+            long others = (isWhite ? board.blacks : board.whites);
+            long otherPawnAttacks = (isWhite ? pawnAttacks[1] : pawnAttacks[0]);
+            int pcsqIndex = (isWhite ? index : 63 - index);
+            int rank = index >> 3;
+            int column = 7 - index & 7;
+
+            pieceAttacks = attacksSquare[index];
+
+            if ((square & board.pawns) != 0) {
+                if ((pieceAttacks & squaresNearKing[1 - color] & ~otherPawnAttacks) != 0) {
+                    kingSafety[color] += PAWN_ATTACKS_KING;
+                }
 
-                    // TODO: if two pawns attacks the same square, add only once
-                    if ((pieceAttacks & board.knights & others) != 0) {
-                        attacks[color] += PAWN_ATTACKS_KNIGHT;
-                    }
-                    if ((pieceAttacks & board.bishops & others) != 0) {
-                        attacks[color] += PAWN_ATTACKS_BISHOP;
-                    }
-                    if ((pieceAttacks & board.rooks & others) != 0) {
-                        attacks[color] += PAWN_ATTACKS_ROOK;
-                    }
-                    if ((pieceAttacks & board.queens & others) != 0) {
-                        attacks[color] += PAWN_ATTACKS_QUEEN;
-                    }
+                // TODO: if two pawns attacks the same square, add only once
+                if ((pieceAttacks & board.knights & others) != 0) {
+                    attacks[color] += PAWN_ATTACKS_KNIGHT;
+                }
+                if ((pieceAttacks & board.bishops & others) != 0) {
+                    attacks[color] += PAWN_ATTACKS_BISHOP;
+                }
+                if ((pieceAttacks & board.rooks & others) != 0) {
+                    attacks[color] += PAWN_ATTACKS_ROOK;
+                }
+                if ((pieceAttacks & board.queens & others) != 0) {
+                    attacks[color] += PAWN_ATTACKS_QUEEN;
+                }
 
-                    superiorPieceAttacked[color] |= pieceAttacks & others & (board.knights | board.bishops | board.rooks | board.queens);
+                superiorPieceAttacked[color] |= pieceAttacks & others & (board.knights | board.bishops | board.rooks | board.queens);
 
-                    boolean isolated = (BitboardUtils.COLUMNS_ADJACENTS[column] & board.pawns & mines) == 0;
-                    boolean doubled = (BitboardUtils.COLUMN[column] & BitboardUtils.RANKS_FORWARD[color][rank] & board.pawns & mines) != 0;
+                boolean isolated = (BitboardUtils.COLUMNS_ADJACENTS[column] & board.pawns & mines) == 0;
+                boolean doubled = (BitboardUtils.COLUMN[column] & BitboardUtils.RANKS_FORWARD[color][rank] & board.pawns & mines) != 0;
 //					boolean backwards = ((BitboardUtils.COLUMN[column] | BitboardUtils.COLUMNS_ADJACENTS[column]) & ~BitboardUtils.RANKS_FORWARD[color][rank] & board.pawns & mines) == 0;
 
 //					boolean weak = !isolated && (pawnAttacks[color] & square) == 0 
@@ -427,302 +430,281 @@ public class ExperimentalEvaluator extends Evaluator {
 ////						System.out.println("square: \n" + BitboardUtils.toString(square));
 ////					}
 //					
-                    // No pawns in front
-                    if ((BitboardUtils.COLUMN[column] & BitboardUtils.RANKS_FORWARD[color][rank] & board.pawns) == 0) {
-                        if (doubled) {
-                            pawnStructure[color] += PAWN_NO_FRONT_DOUBLED;
-                            if (isolated) {
-                                pawnStructure[color] += PAWN_NO_FRONT_DOUB_ISO;
-                            }
-                        } else if (isolated) {
-                            pawnStructure[color] += PAWN_NO_FRONT_ISOLATED;
+                // No pawns in front
+                if ((BitboardUtils.COLUMN[column] & BitboardUtils.RANKS_FORWARD[color][rank] & board.pawns) == 0) {
+                    if (doubled) {
+                        pawnStructure[color] += PAWN_NO_FRONT_DOUBLED;
+                        if (isolated) {
+                            pawnStructure[color] += PAWN_NO_FRONT_DOUB_ISO;
                         }
-                    } else { // pawns in front
-                        if (doubled) {
-                            pawnStructure[color] += PAWN_FRONT_DOUBLED;
-                            if (isolated) {
-                                pawnStructure[color] += PAWN_FRONT_DOUB_ISO;
-                            }
-                        } else if (isolated) {
-                            pawnStructure[color] += PAWN_FRONT_ISOLATED;
+                    } else if (isolated) {
+                        pawnStructure[color] += PAWN_NO_FRONT_ISOLATED;
+                    }
+                } else { // pawns in front
+                    if (doubled) {
+                        pawnStructure[color] += PAWN_FRONT_DOUBLED;
+                        if (isolated) {
+                            pawnStructure[color] += PAWN_FRONT_DOUB_ISO;
                         }
+                    } else if (isolated) {
+                        pawnStructure[color] += PAWN_FRONT_ISOLATED;
                     }
+                }
 
 					// Backwards pawns and advance squares attacked by opposite pawns (TODO only three) 
 //					if (backwards && (BitboardUtils.COLUMN[column] & BitboardUtils.RANKS_FORWARD[color][rank] & otherPawnAttacks) !=0)
 //						pawnStructure[color] += PAWN_BACKWARDS;
-                    // Passed Pawns
-                    if (((BitboardUtils.COLUMN[column] | BitboardUtils.COLUMNS_ADJACENTS[column])
-                            & BitboardUtils.RANKS_FORWARD[color][rank]
-                            & board.pawns & others) == 0) {
-
-                        // Static part
-                        passedPawns[color] += PAWN_PASSER[(isWhite ? rank : 7 - rank)];
-                        if ((square & pawnAttacks[color]) != 0) {
-                            passedPawns[color] += PAWN_PASSER_PROTECTED[(isWhite ? rank : 7 - rank)];
-                        }
-                        if ((BitboardUtils.ROWS_LEFT[column] & board.pawns & others) == 0
-                                && (BitboardUtils.ROWS_RIGHT[column] & board.pawns & others) == 0) {
-                            passedPawns[color] += PAWN_PASSER_OUTSIDE[(isWhite ? rank : 7 - rank)];
-                        }
+                // Passed Pawns
+                if (((BitboardUtils.COLUMN[column] | BitboardUtils.COLUMNS_ADJACENTS[column])
+                        & BitboardUtils.RANKS_FORWARD[color][rank]
+                        & board.pawns & others) == 0) {
 
-                        // Dynamic part
-                        auxLong = BitboardUtils.COLUMN[column] & BitboardUtils.RANKS_FORWARD[color][rank];
-                        if ((auxLong & mines) == 0) {
-                            passedPawns[color] += PAWN_PASSER_NO_MINES[(isWhite ? rank : 7 - rank)];
-                        }
-                        if ((auxLong & others) == 0) {
-                            passedPawns[color] += PAWN_PASSER_NO_OTHERS[(isWhite ? rank : 7 - rank)];
-                        }
-                        if (((isWhite ? square << 8 : square >>> 8) & others) == 0) {
-                            passedPawns[color] += PAWN_PASSER_MOBILE[(isWhite ? rank : 7 - rank)];
-                        }
-                        if ((auxLong & ~attacksColor[color] & attacksColor[1 - color]) == 0) {
-                            passedPawns[color] += PAWN_PASSER_RUNNER[(isWhite ? rank : 7 - rank)];
-                        }
-
-                        if ((BitboardUtils.COLUMN[column]
-                                & BitboardUtils.RANKS_BACKWARD[color][rank]
-                                & board.rooks & mines) != 0) {
-                            passedPawns[color] += PAWN_PASSER_ROOK_BEHIND[(isWhite ? rank : 7 - rank)];
-                        }
-                        // Candidates is the same check but removing opposite pawns attacking our square
-                    } else if (((BitboardUtils.COLUMN[column] | BitboardUtils.COLUMNS_ADJACENTS[column])
-                            & BitboardUtils.RANKS_FORWARD[color][rank]
-                            & (isWhite ? bbAttacks.pawnUpwards[index] : bbAttacks.pawnDownwards[index])
-                            & board.pawns & others) == 0) {
-                        passedPawns[color] += PAWN_CANDIDATE[(isWhite ? rank : 7 - rank)];
-                    }
-
-                } else if ((square & board.knights) != 0) {
-                    material[color] += KNIGHT;
-                    center[color] += knightIndexValue[pcsqIndex];
-
-                    // Only mobility forward
-                    mobility[color] += KNIGHT_M * BitboardUtils.popCount(pieceAttacks & ~mines & ~otherPawnAttacks
-                            & BitboardUtils.RANKS_FORWARD[color][rank]);
-
-                    if ((pieceAttacks & squaresNearKing[1 - color] & ~otherPawnAttacks) != 0) {
-                        kingSafety[color] += KNIGHT_ATTACKS_KING;
-                        kingAttackersCount[color]++;
+                    // Static part
+                    passedPawns[color] += PAWN_PASSER[(isWhite ? rank : 7 - rank)];
+                    if ((square & pawnAttacks[color]) != 0) {
+                        passedPawns[color] += PAWN_PASSER_PROTECTED[(isWhite ? rank : 7 - rank)];
                     }
-                    if ((pieceAttacks & squaresNearKing[color]) != 0) {
-                        kingDefense[color] += KNIGHT_DEFENDS_KING;
+                    if ((BitboardUtils.ROWS_LEFT[column] & board.pawns & others) == 0
+                            && (BitboardUtils.ROWS_RIGHT[column] & board.pawns & others) == 0) {
+                        passedPawns[color] += PAWN_PASSER_OUTSIDE[(isWhite ? rank : 7 - rank)];
                     }
 
-                    if ((pieceAttacks & board.pawns & others & ~otherPawnAttacks) != 0) {
-                        attacks[color] += KNIGHT_ATTACKS_PU_P;
+                    // Dynamic part
+                    auxLong = BitboardUtils.COLUMN[column] & BitboardUtils.RANKS_FORWARD[color][rank];
+                    if ((auxLong & mines) == 0) {
+                        passedPawns[color] += PAWN_PASSER_NO_MINES[(isWhite ? rank : 7 - rank)];
                     }
-                    if ((pieceAttacks & board.bishops & others & ~otherPawnAttacks) != 0) {
-                        attacks[color] += KNIGHT_ATTACKS_PU_B;
+                    if ((auxLong & others) == 0) {
+                        passedPawns[color] += PAWN_PASSER_NO_OTHERS[(isWhite ? rank : 7 - rank)];
                     }
-                    if ((pieceAttacks & (board.rooks | board.queens) & others) != 0) {
-                        attacks[color] += KNIGHT_ATTACKS_RQ;
+                    if (((isWhite ? square << 8 : square >>> 8) & others) == 0) {
+                        passedPawns[color] += PAWN_PASSER_MOBILE[(isWhite ? rank : 7 - rank)];
                     }
-
-                    superiorPieceAttacked[color] |= pieceAttacks & others & (board.rooks | board.queens);
-
-                    // Knight Outpost: no opposite pawns can attack the square
-                    if ((square & OUTPOST_MASK[color] & ~pawnCanAttack[1 - color]) != 0) {
-                        positional[color] += KNIGHT_OUTPOST;
-                        // Defended by one of our pawns
-                        if ((square & pawnAttacks[color]) != 0) {
-                            positional[color] += KNIGHT_OUTPOST;
-                            // Attacks squares near king or other pieces pawn undefended
-                            if ((pieceAttacks & (squaresNearKing[1 - color] | others) & ~otherPawnAttacks) != 0) {
-                                positional[color] += KNIGHT_OUTPOST_ATTACKS_NK_PU[pcsqIndex];
-                            }
-                        }
+                    if ((auxLong & ~attacksColor[color] & attacksColor[1 - color]) == 0) {
+                        passedPawns[color] += PAWN_PASSER_RUNNER[(isWhite ? rank : 7 - rank)];
                     }
 
-                } else if ((square & board.bishops) != 0) {
-                    material[color] += BISHOP;
-                    if (bishopCount[color]++ == 2) {
-                        material[color] += BISHOP_PAIR;
+                    if ((BitboardUtils.COLUMN[column]
+                            & BitboardUtils.RANKS_BACKWARD[color][rank]
+                            & board.rooks & mines) != 0) {
+                        passedPawns[color] += PAWN_PASSER_ROOK_BEHIND[(isWhite ? rank : 7 - rank)];
                     }
+                    // Candidates is the same check but removing opposite pawns attacking our square
+                } else if (((BitboardUtils.COLUMN[column] | BitboardUtils.COLUMNS_ADJACENTS[column])
+                        & BitboardUtils.RANKS_FORWARD[color][rank]
+                        & (isWhite ? bbAttacks.pawnUpwards[index] : bbAttacks.pawnDownwards[index])
+                        & board.pawns & others) == 0) {
+                    passedPawns[color] += PAWN_CANDIDATE[(isWhite ? rank : 7 - rank)];
+                }
 
-                    center[color] += bishopIndexValue[pcsqIndex];
-
-                    mobility[color] += BISHOP_M * BitboardUtils.popCount(pieceAttacks & ~mines & ~otherPawnAttacks
-                            & BitboardUtils.RANKS_FORWARD[color][rank]);
+            } else if ((square & board.knights) != 0) {
+                // Only mobility forward
+                mobility[color] += KNIGHT_M * BitboardUtils.popCount(pieceAttacks & ~mines & ~otherPawnAttacks
+                        & BitboardUtils.RANKS_FORWARD[color][rank]);
 
-                    if ((pieceAttacks & squaresNearKing[1 - color] & ~otherPawnAttacks) != 0) {
-                        kingSafety[color] += BISHOP_ATTACKS_KING;
-                        kingAttackersCount[color]++;
-                    }
-                    if ((pieceAttacks & squaresNearKing[color]) != 0) {
-                        kingDefense[color] += BISHOP_DEFENDS_KING;
-                    }
-
-                    if ((pieceAttacks & board.pawns & others & ~otherPawnAttacks) != 0) {
-                        attacks[color] += BISHOP_ATTACKS_PU_P;
-                    }
-                    if ((pieceAttacks & board.knights & others & ~otherPawnAttacks) != 0) {
-                        attacks[color] += BISHOP_ATTACKS_PU_K;
-                    }
-                    if ((pieceAttacks & (board.rooks | board.queens) & others) != 0) {
-                        attacks[color] += BISHOP_ATTACKS_RQ;
-                    }
+                if ((pieceAttacks & squaresNearKing[1 - color] & ~otherPawnAttacks) != 0) {
+                    kingSafety[color] += KNIGHT_ATTACKS_KING;
+                    kingAttackersCount[color]++;
+                }
+                if ((pieceAttacks & squaresNearKing[color]) != 0) {
+                    kingDefense[color] += KNIGHT_DEFENDS_KING;
+                }
 
-                    superiorPieceAttacked[color] |= pieceAttacks & others & (board.rooks | board.queens);
+                if ((pieceAttacks & board.pawns & others & ~otherPawnAttacks) != 0) {
+                    attacks[color] += KNIGHT_ATTACKS_PU_P;
+                }
+                if ((pieceAttacks & board.bishops & others & ~otherPawnAttacks) != 0) {
+                    attacks[color] += KNIGHT_ATTACKS_PU_B;
+                }
+                if ((pieceAttacks & (board.rooks | board.queens) & others) != 0) {
+                    attacks[color] += KNIGHT_ATTACKS_RQ;
+                }
 
-                    pieceAttacksXray = bbAttacks.getBishopAttacks(index, all & ~(pieceAttacks & others)) & ~pieceAttacks;
-                    if ((pieceAttacksXray & (board.rooks | board.queens | board.kings) & others) != 0) {
-                        attacks[color] += PINNED_PIECE;
-                    }
+                superiorPieceAttacked[color] |= pieceAttacks & others & (board.rooks | board.queens);
 
-                    // Bishop Outpost: no opposite pawns can attack the square and defended by one of our pawns
-                    if ((square & OUTPOST_MASK[color] & ~pawnCanAttack[1 - color] & pawnAttacks[color]) != 0) {
-                        positional[color] += BISHOP_OUTPOST;
+                // Knight Outpost: no opposite pawns can attack the square
+                if ((square & OUTPOST_MASK[color] & ~pawnCanAttack[1 - color]) != 0) {
+                    positional[color] += KNIGHT_OUTPOST;
+                    // Defended by one of our pawns
+                    if ((square & pawnAttacks[color]) != 0) {
+                        positional[color] += KNIGHT_OUTPOST;
                         // Attacks squares near king or other pieces pawn undefended
                         if ((pieceAttacks & (squaresNearKing[1 - color] | others) & ~otherPawnAttacks) != 0) {
-                            positional[color] += BISHOP_OUTPOST_ATT_NK_PU;
+                            positional[color] += KNIGHT_OUTPOST_ATTACKS_NK_PU[pcsqIndex];
                         }
                     }
+                }
 
-                    // Pawns in our color
-                    if ((square & BitboardUtils.WHITE_SQUARES) != 0) {
-                        auxLong = BitboardUtils.WHITE_SQUARES;
-                    } else {
-                        auxLong = BitboardUtils.BLACK_SQUARES;
-                    }
+            } else if ((square & board.bishops) != 0) {
+                mobility[color] += BISHOP_M * BitboardUtils.popCount(pieceAttacks & ~mines & ~otherPawnAttacks
+                        & BitboardUtils.RANKS_FORWARD[color][rank]);
 
-                    positional[color] += (BitboardUtils.popCount(auxLong & board.pawns & mines) + BitboardUtils.popCount(auxLong & board.pawns & mines) >>> 1) * BISHOP_PAWN_IN_COLOR;
-                    positional[color] += (BitboardUtils.popCount(auxLong & board.pawns & others & BitboardUtils.RANKS_FORWARD[color][rank]) >>> 1) * BISHOP_FORWARD_P_PU;
+                if ((pieceAttacks & squaresNearKing[1 - color] & ~otherPawnAttacks) != 0) {
+                    kingSafety[color] += BISHOP_ATTACKS_KING;
+                    kingAttackersCount[color]++;
+                }
+                if ((pieceAttacks & squaresNearKing[color]) != 0) {
+                    kingDefense[color] += BISHOP_DEFENDS_KING;
+                }
 
-                    if ((BISHOP_TRAPPING[index] & board.pawns & others) != 0) {
-                        mobility[color] += BISHOP_TRAPPED;
-                        // TODO protection
-                    }
+                if ((pieceAttacks & board.pawns & others & ~otherPawnAttacks) != 0) {
+                    attacks[color] += BISHOP_ATTACKS_PU_P;
+                }
+                if ((pieceAttacks & board.knights & others & ~otherPawnAttacks) != 0) {
+                    attacks[color] += BISHOP_ATTACKS_PU_K;
+                }
+                if ((pieceAttacks & (board.rooks | board.queens) & others) != 0) {
+                    attacks[color] += BISHOP_ATTACKS_RQ;
+                }
 
-                } else if ((square & board.rooks) != 0) {
-                    material[color] += ROOK;
-                    center[color] += rookIndexValue[pcsqIndex];
+                superiorPieceAttacked[color] |= pieceAttacks & others & (board.rooks | board.queens);
 
-                    mobility[color] += ROOK_M * BitboardUtils.popCount(pieceAttacks & ~mines & ~otherPawnAttacks);
+                pieceAttacksXray = bbAttacks.getBishopAttacks(index, all & ~(pieceAttacks & others)) & ~pieceAttacks;
+                if ((pieceAttacksXray & (board.rooks | board.queens | board.kings) & others) != 0) {
+                    attacks[color] += PINNED_PIECE;
+                }
 
-                    if ((pieceAttacks & squaresNearKing[1 - color] & ~otherPawnAttacks) != 0) {
-                        kingSafety[color] += ROOK_ATTACKS_KING;
-                        kingAttackersCount[color]++;
-                    }
-                    if ((pieceAttacks & squaresNearKing[color]) != 0) {
-                        kingDefense[color] += ROOK_DEFENDS_KING;
+                // Bishop Outpost: no opposite pawns can attack the square and defended by one of our pawns
+                if ((square & OUTPOST_MASK[color] & ~pawnCanAttack[1 - color] & pawnAttacks[color]) != 0) {
+                    positional[color] += BISHOP_OUTPOST;
+                    // Attacks squares near king or other pieces pawn undefended
+                    if ((pieceAttacks & (squaresNearKing[1 - color] | others) & ~otherPawnAttacks) != 0) {
+                        positional[color] += BISHOP_OUTPOST_ATT_NK_PU;
                     }
+                }
 
-                    if ((pieceAttacks & board.pawns & others & ~otherPawnAttacks) != 0) {
-                        attacks[color] += ROOK_ATTACKS_PU_P;
-                    }
-                    if ((pieceAttacks & (board.bishops | board.knights) & others & ~otherPawnAttacks) != 0) {
-                        attacks[color] += ROOK_ATTACKS_PU_BK;
-                    }
-                    if ((pieceAttacks & board.queens & others) != 0) {
-                        attacks[color] += ROOK_ATTACKS_Q;
-                    }
+                // Pawns in our color
+                if ((square & BitboardUtils.WHITE_SQUARES) != 0) {
+                    auxLong = BitboardUtils.WHITE_SQUARES;
+                } else {
+                    auxLong = BitboardUtils.BLACK_SQUARES;
+                }
 
-                    superiorPieceAttacked[color] |= pieceAttacks & others & board.queens;
+                positional[color] += (BitboardUtils.popCount(auxLong & board.pawns & mines) + BitboardUtils.popCount(auxLong & board.pawns & mines) >>> 1) * BISHOP_PAWN_IN_COLOR;
+                positional[color] += (BitboardUtils.popCount(auxLong & board.pawns & others & BitboardUtils.RANKS_FORWARD[color][rank]) >>> 1) * BISHOP_FORWARD_P_PU;
 
-                    pieceAttacksXray = bbAttacks.getRookAttacks(index, all & ~(pieceAttacks & others)) & ~pieceAttacks;
-                    if ((pieceAttacksXray & (board.queens | board.kings) & others) != 0) {
-                        attacks[color] += PINNED_PIECE;
-                    }
+                if ((BISHOP_TRAPPING[index] & board.pawns & others) != 0) {
+                    mobility[color] += BISHOP_TRAPPED;
+                    // TODO protection
+                }
 
-                    auxLong = (isWhite ? BitboardUtils.b_u : BitboardUtils.b_d);
-                    if ((square & auxLong) != 0 && (others & board.kings & auxLong) != 0) {
-                        positional[color] += ROOK_8_KING_8;
-                    }
+            } else if ((square & board.rooks) != 0) {
+                mobility[color] += ROOK_M * BitboardUtils.popCount(pieceAttacks & ~mines & ~otherPawnAttacks);
 
-                    if ((square & (isWhite ? BitboardUtils.r2_u : BitboardUtils.r2_d)) != 0
-                            & (others & (board.kings | board.pawns) & (isWhite ? BitboardUtils.b2_u : BitboardUtils.b2_d)) != 0) {
-                        positional[color] += ROOK_7_KP_78;
+                if ((pieceAttacks & squaresNearKing[1 - color] & ~otherPawnAttacks) != 0) {
+                    kingSafety[color] += ROOK_ATTACKS_KING;
+                    kingAttackersCount[color]++;
+                }
+                if ((pieceAttacks & squaresNearKing[color]) != 0) {
+                    kingDefense[color] += ROOK_DEFENDS_KING;
+                }
 
-                        if ((others & board.kings & auxLong) != 0 && (pieceAttacks & others & (board.queens | board.rooks) & (isWhite ? BitboardUtils.r2_u : BitboardUtils.r2_d)) != 0) {
-                            positional[color] += ROOK_7_P_78_K_8_RQ_7;
-                        }
-                    }
+                if ((pieceAttacks & board.pawns & others & ~otherPawnAttacks) != 0) {
+                    attacks[color] += ROOK_ATTACKS_PU_P;
+                }
+                if ((pieceAttacks & (board.bishops | board.knights) & others & ~otherPawnAttacks) != 0) {
+                    attacks[color] += ROOK_ATTACKS_PU_BK;
+                }
+                if ((pieceAttacks & board.queens & others) != 0) {
+                    attacks[color] += ROOK_ATTACKS_Q;
+                }
+
+                superiorPieceAttacked[color] |= pieceAttacks & others & board.queens;
+
+                pieceAttacksXray = bbAttacks.getRookAttacks(index, all & ~(pieceAttacks & others)) & ~pieceAttacks;
+                if ((pieceAttacksXray & (board.queens | board.kings) & others) != 0) {
+                    attacks[color] += PINNED_PIECE;
+                }
+
+                auxLong = (isWhite ? BitboardUtils.b_u : BitboardUtils.b_d);
+                if ((square & auxLong) != 0 && (others & board.kings & auxLong) != 0) {
+                    positional[color] += ROOK_8_KING_8;
+                }
 
-                    if ((square & (isWhite ? BitboardUtils.r3_u : BitboardUtils.r3_d)) != 0
-                            & (others & (board.kings | board.pawns) & (isWhite ? BitboardUtils.b3_u : BitboardUtils.b3_d)) != 0) {
-                        positional[color] += ROOK_6_KP_678;
+                if ((square & (isWhite ? BitboardUtils.r2_u : BitboardUtils.r2_d)) != 0
+                        & (others & (board.kings | board.pawns) & (isWhite ? BitboardUtils.b2_u : BitboardUtils.b2_d)) != 0) {
+                    positional[color] += ROOK_7_KP_78;
+
+                    if ((others & board.kings & auxLong) != 0 && (pieceAttacks & others & (board.queens | board.rooks) & (isWhite ? BitboardUtils.r2_u : BitboardUtils.r2_d)) != 0) {
+                        positional[color] += ROOK_7_P_78_K_8_RQ_7;
                     }
+                }
 
-                    auxLong = BitboardUtils.COLUMN[column] & BitboardUtils.RANKS_FORWARD[color][rank];
-                    if ((auxLong & board.pawns & mines) == 0) {
-                        positional[color] += ROOK_COLUMN_SEMIOPEN;
-                        if ((auxLong & board.pawns) == 0) {
-                            if ((auxLong & minorPiecesDefendedByPawns[1 - color]) == 0) {
-                                positional[color] += ROOK_COLUMN_OPEN_NO_MG;
-                            } else {
-                                if ((auxLong & minorPiecesDefendedByPawns[1 - color] & pawnCanAttack[color]) == 0) {
-                                    positional[color] += ROOK_COLUMN_OPEN_MG_NP;
-                                } else {
-                                    positional[color] += ROOK_COLUMN_OPEN_MG_P;
-                                }
-                            }
+                if ((square & (isWhite ? BitboardUtils.r3_u : BitboardUtils.r3_d)) != 0
+                        & (others & (board.kings | board.pawns) & (isWhite ? BitboardUtils.b3_u : BitboardUtils.b3_d)) != 0) {
+                    positional[color] += ROOK_6_KP_678;
+                }
+
+                auxLong = BitboardUtils.COLUMN[column] & BitboardUtils.RANKS_FORWARD[color][rank];
+                if ((auxLong & board.pawns & mines) == 0) {
+                    positional[color] += ROOK_COLUMN_SEMIOPEN;
+                    if ((auxLong & board.pawns) == 0) {
+                        if ((auxLong & minorPiecesDefendedByPawns[1 - color]) == 0) {
+                            positional[color] += ROOK_COLUMN_OPEN_NO_MG;
                         } else {
-                            // There is an opposite backward pawn
-                            if ((auxLong & board.pawns & others & pawnCanAttack[1 - color]) == 0) {
-                                positional[color] += ROOK_COLUMN_SEMIOPEN_BP;
+                            if ((auxLong & minorPiecesDefendedByPawns[1 - color] & pawnCanAttack[color]) == 0) {
+                                positional[color] += ROOK_COLUMN_OPEN_MG_NP;
+                            } else {
+                                positional[color] += ROOK_COLUMN_OPEN_MG_P;
                             }
                         }
-
-                        if ((auxLong & board.kings & others) != 0) {
-                            positional[color] += ROOK_COLUMN_SEMIOPEN_K;
-                        }
-                    }
-                    // Rook Outpost: no opposite pawns can attack the square and defended by one of our pawns
-                    if ((square & OUTPOST_MASK[color] & ~pawnCanAttack[1 - color] & pawnAttacks[color]) != 0) {
-                        positional[color] += ROOK_OUTPOST;
-                        // Attacks squares near king or other pieces pawn undefended
-                        if ((pieceAttacks & (squaresNearKing[1 - color] | others) & ~otherPawnAttacks) != 0) {
-                            positional[color] += ROOK_OUTPOST_ATT_NK_PU;
+                    } else {
+                        // There is an opposite backward pawn
+                        if ((auxLong & board.pawns & others & pawnCanAttack[1 - color]) == 0) {
+                            positional[color] += ROOK_COLUMN_SEMIOPEN_BP;
                         }
                     }
 
-                } else if ((square & board.queens) != 0) {
-                    material[color] += QUEEN;
-                    center[color] += queenIndexValue[pcsqIndex];
-
-                    mobility[color] += QUEEN_M * BitboardUtils.popCount(pieceAttacks & ~mines & ~otherPawnAttacks);
-
-                    if ((pieceAttacks & squaresNearKing[1 - color] & ~otherPawnAttacks) != 0) {
-                        kingSafety[color] += QUEEN_ATTACKS_KING;
-                        kingAttackersCount[color]++;
-                    }
-                    if ((pieceAttacks & squaresNearKing[color]) != 0) {
-                        kingDefense[color] += QUEEN_DEFENDS_KING;
+                    if ((auxLong & board.kings & others) != 0) {
+                        positional[color] += ROOK_COLUMN_SEMIOPEN_K;
                     }
-                    if ((pieceAttacks & others & ~otherPawnAttacks) != 0) {
-                        attacks[color] += QUEEN_ATTACKS_PU;
+                }
+                // Rook Outpost: no opposite pawns can attack the square and defended by one of our pawns
+                if ((square & OUTPOST_MASK[color] & ~pawnCanAttack[1 - color] & pawnAttacks[color]) != 0) {
+                    positional[color] += ROOK_OUTPOST;
+                    // Attacks squares near king or other pieces pawn undefended
+                    if ((pieceAttacks & (squaresNearKing[1 - color] | others) & ~otherPawnAttacks) != 0) {
+                        positional[color] += ROOK_OUTPOST_ATT_NK_PU;
                     }
+                }
 
-                    pieceAttacksXray = (bbAttacks.getRookAttacks(index, all & ~(pieceAttacks & others)) | bbAttacks.getBishopAttacks(index, all
-                            & ~(pieceAttacks & others)))
-                            & ~pieceAttacks;
-                    if ((pieceAttacksXray & board.kings & others) != 0) {
-                        attacks[color] += PINNED_PIECE;
-                    }
+            } else if ((square & board.queens) != 0) {
+                mobility[color] += QUEEN_M * BitboardUtils.popCount(pieceAttacks & ~mines & ~otherPawnAttacks);
 
-                    auxLong = (isWhite ? BitboardUtils.b_u : BitboardUtils.b_d);
-                    auxLong2 = (isWhite ? BitboardUtils.r2_u : BitboardUtils.r2_d);
-                    if ((square & auxLong2) != 0 && (others & (board.kings | board.pawns) & (auxLong | auxLong2)) != 0) {
-                        attacks[color] += QUEEN_7_KP_78;
-                        if ((board.rooks & mines & auxLong2 & pieceAttacks) != 0
-                                && (board.kings & others & auxLong) != 0) {
-                            positional[color] += QUEEN_7_P_78_K_8_R_7;
-                        }
-                    }
+                if ((pieceAttacks & squaresNearKing[1 - color] & ~otherPawnAttacks) != 0) {
+                    kingSafety[color] += QUEEN_ATTACKS_KING;
+                    kingAttackersCount[color]++;
+                }
+                if ((pieceAttacks & squaresNearKing[color]) != 0) {
+                    kingDefense[color] += QUEEN_DEFENDS_KING;
+                }
+                if ((pieceAttacks & others & ~otherPawnAttacks) != 0) {
+                    attacks[color] += QUEEN_ATTACKS_PU;
+                }
 
-                } else if ((square & board.kings) != 0) {
-                    center[color] += kingIndexValue[pcsqIndex];
+                pieceAttacksXray = (bbAttacks.getRookAttacks(index, all & ~(pieceAttacks & others)) | bbAttacks.getBishopAttacks(index, all
+                        & ~(pieceAttacks & others)))
+                        & ~pieceAttacks;
+                if ((pieceAttacksXray & board.kings & others) != 0) {
+                    attacks[color] += PINNED_PIECE;
+                }
 
-                    // If king is in the first rank, we add the pawn shield
-                    if ((square & (isWhite ? BitboardUtils.RANK[0] : BitboardUtils.RANK[7])) != 0) {
-                        kingDefense[color] += KING_PAWN_SHIELD * BitboardUtils.popCount(pieceAttacks & mines & board.pawns);
+                auxLong = (isWhite ? BitboardUtils.b_u : BitboardUtils.b_d);
+                auxLong2 = (isWhite ? BitboardUtils.r2_u : BitboardUtils.r2_d);
+                if ((square & auxLong2) != 0 && (others & (board.kings | board.pawns) & (auxLong | auxLong2)) != 0) {
+                    attacks[color] += QUEEN_7_KP_78;
+                    if ((board.rooks & mines & auxLong2 & pieceAttacks) != 0
+                            && (board.kings & others & auxLong) != 0) {
+                        positional[color] += QUEEN_7_P_78_K_8_R_7;
                     }
                 }
+
+            } else if ((square & board.kings) != 0) {
+                // If king is in the first rank, we add the pawn shield
+                if ((square & (isWhite ? BitboardUtils.RANK[0] : BitboardUtils.RANK[7])) != 0) {
+                    kingDefense[color] += KING_PAWN_SHIELD * BitboardUtils.popCount(pieceAttacks & mines & board.pawns);
+                }
             }
-            square <<= 1;
-            index++;
         }
 
 		// Ponder opening and Endgame value depending of the non-pawn pieces:
@@ -737,7 +719,7 @@ public class ExperimentalEvaluator extends Evaluator {
         // Tempo
         value += (board.getTurn() ? TEMPO : -TEMPO);
 
-        int oe = config.getEvalCenter() * (center[0] - center[1])
+        int oe = config.getEvalCenter() * board.pieceSquareValue
                 + config.getEvalPositional() * (positional[0] - positional[1])
                 + config.getEvalAttacks() * (attacks[0] - attacks[1])
                 + config.getEvalMobility() * (mobility[0] - mobility[1])
@@ -757,8 +739,8 @@ public class ExperimentalEvaluator extends Evaluator {
             logger.debug("materialValue          = " + (material[0] - material[1]));
             logger.debug("pawnMaterialValue      = " + (pawnMaterial[0] - pawnMaterial[1]));
 
-            logger.debug("centerOpening          = " + o(center[0] - center[1]));
-            logger.debug("centerEndgame          = " + e(center[0] - center[1]));
+            logger.debug("centerOpening          = " + o(board.pieceSquareValue));
+            logger.debug("centerEndgame          = " + e(board.pieceSquareValue));
 
             logger.debug("positionalOpening      = " + o(positional[0] - positional[1]));
             logger.debug("positionalEndgame      = " + e(positional[0] - positional[1]));
@@ -788,6 +770,9 @@ public class ExperimentalEvaluator extends Evaluator {
             logger.debug("tempo                  = " + (board.getTurn() ? TEMPO : -TEMPO));
             logger.debug("value                  = " + value);
         }
-        return value;
+
+        if (endgame != null) {
+            value = endgame.scaleScore(board, value);
+        }        return value;
     }
 }
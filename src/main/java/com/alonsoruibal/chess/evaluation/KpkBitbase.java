@@ -0,0 +1,202 @@
+package com.alonsoruibal.chess.evaluation;
+
+import com.alonsoruibal.chess.Board;
+import com.alonsoruibal.chess.bitboard.BitboardAttacks;
+import com.alonsoruibal.chess.bitboard.BitboardUtils;
+import com.alonsoruibal.chess.log.Logger;
+
+/**
+ * King and pawn versus king bitbase, generated by retrograde analysis when the class is loaded: all the
+ * positions are classified as invalid, draw, win or unknown by their immediate properties and then the
+ * unknown ones are iterated from their successors until nothing changes.
+ * <p/>
+ * Only the positions with the white pawn in the A-D columns are stored (the others are mirrored), one bit
+ * by position telling if white wins: 24 pawn squares x 64 x 64 king squares x 2 sides to move = 24K bytes.
+ *
+ * @author rui
+ */
+public class KpkBitbase {
+    private static final Logger logger = Logger.getLogger("KpkBitbase");
+
+    private final static int MAX_INDEX = 24 * 64 * 64 * 2;
+
+    private final static byte UNKNOWN = 0;
+    private final static byte INVALID = 1;
+    private final static byte DRAW = 2;
+    private final static byte WIN = 3;
+
+    // Score added by each rank advanced by the pawn of a won position, so the search makes progress
+    private final static int PAWN_RANK_BONUS = 10;
+
+    private final static long[] bitbase = new long[MAX_INDEX >> 6];
+
+    private static BitboardAttacks bbAttacks;
+
+    static {
+        logger.debug("Generating KPK bitbase...");
+        long time = System.currentTimeMillis();
+        bbAttacks = BitboardAttacks.getInstance();
+
+        byte[] results = new byte[MAX_INDEX];
+        for (int i = 0; i < MAX_INDEX; i++) {
+            results[i] = classify(i);
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < MAX_INDEX; i++) {
+                if (results[i] == UNKNOWN) {
+                    byte result = classify(results, i);
+                    if (result != UNKNOWN) {
+                        results[i] = result;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        // The unknown positions are draws
+        for (int i = 0; i < MAX_INDEX; i++) {
+            if (results[i] == WIN) {
+                bitbase[i >> 6] |= 1L << (i & 63);
+            }
+        }
+        logger.debug("Generated KPK bitbase in " + (System.currentTimeMillis() - time) + "ms");
+    }
+
+    /**
+     * The pawn must be in the A-D columns (square index & 7 >= 4) and in the ranks 2 to 7
+     */
+    private static int getIndex(int whiteKingIndex, int pawnIndex, int blackKingIndex, boolean whiteToMove) {
+        int pawnSlot = (((pawnIndex >> 3) - 1) << 2) + (pawnIndex & 3);
+        return (((((pawnSlot << 6) | whiteKingIndex) << 6) | blackKingIndex) << 1) | (whiteToMove ? 0 : 1);
+    }
+
+    /**
+     * Classifies a position by its immediate properties
+     */
+    private static byte classify(int index) {
+        boolean whiteToMove = (index & 1) == 0;
+        int blackKingIndex = (index >> 1) & 63;
+        int whiteKingIndex = (index >> 7) & 63;
+        int pawnSlot = index >> 13;
+        int pawnIndex = (((pawnSlot >> 2) + 1) << 3) | 4 | (pawnSlot & 3);
+        long pawn = 1L << pawnIndex;
+
+        if (BitboardUtils.distance(whiteKingIndex, blackKingIndex) <= 1 || whiteKingIndex == pawnIndex || blackKingIndex == pawnIndex) {
+            return INVALID;
+        }
+        if (whiteToMove) {
+            if ((bbAttacks.pawnUpwards[pawnIndex] & (1L << blackKingIndex)) != 0) {
+                return INVALID;
+            }
+            // Promotes and the queen cannot be captured
+            int promotionIndex = pawnIndex + 8;
+            if (pawnIndex >= 48 && whiteKingIndex != promotionIndex && blackKingIndex != promotionIndex
+                    && (BitboardUtils.distance(blackKingIndex, promotionIndex) > 1 || BitboardUtils.distance(whiteKingIndex, promotionIndex) == 1)) {
+                return WIN;
+            }
+        } else {
+            // Stalemate or the pawn can be captured
+            if ((bbAttacks.king[blackKingIndex] & ~(bbAttacks.king[whiteKingIndex] | bbAttacks.pawnUpwards[pawnIndex])) == 0
+                    || ((bbAttacks.king[blackKingIndex] & pawn) != 0 && (bbAttacks.king[whiteKingIndex] & pawn) == 0)) {
+                return DRAW;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Classifies a position from the results of its successors, the invalid ones are the illegal moves
+     */
+    private static byte classify(byte[] results, int index) {
+        boolean whiteToMove = (index & 1) == 0;
+        int blackKingIndex = (index >> 1) & 63;
+        int whiteKingIndex = (index >> 7) & 63;
+        int pawnSlot = index >> 13;
+        int pawnIndex = (((pawnSlot >> 2) + 1) << 3) | 4 | (pawnSlot & 3);
+
+        boolean unknown = false;
+        if (whiteToMove) {
+            long moves = bbAttacks.king[whiteKingIndex];
+            while (moves != 0) {
+                long square = BitboardUtils.lsb(moves);
+                moves ^= square;
+                byte result = results[getIndex(BitboardUtils.square2Index(square), pawnIndex, blackKingIndex, false)];
+                if (result == WIN) {
+                    return WIN;
+                }
+                unknown |= result == UNKNOWN;
+            }
+            // Promotions are only taken into account in the first classification
+            int pushIndex = pawnIndex + 8;
+            if (pushIndex < 56 && pushIndex != whiteKingIndex && pushIndex != blackKingIndex) {
+                byte result = results[getIndex(whiteKingIndex, pushIndex, blackKingIndex, false)];
+                if (result == WIN) {
+                    return WIN;
+                }
+                unknown |= result == UNKNOWN;
+                if (pawnIndex < 16) {
+                    result = results[getIndex(whiteKingIndex, pushIndex + 8, blackKingIndex, false)];
+                    if (result == WIN) {
+                        return WIN;
+                    }
+                    unknown |= result == UNKNOWN;
+                }
+            }
+            return unknown ? UNKNOWN : DRAW;
+        } else {
+            long moves = bbAttacks.king[blackKingIndex];
+            while (moves != 0) {
+                long square = BitboardUtils.lsb(moves);
+                moves ^= square;
+                byte result = results[getIndex(whiteKingIndex, pawnIndex, BitboardUtils.square2Index(square), true)];
+                if (result == DRAW) {
+                    return DRAW;
+                }
+                unknown |= result == UNKNOWN;
+            }
+            return unknown ? UNKNOWN : WIN;
+        }
+    }
+
+    /**
+     * If white wins, with the pawn in the A-D columns
+     */
+    public static boolean probe(int whiteKingIndex, int pawnIndex, int blackKingIndex, boolean whiteToMove) {
+        int index = getIndex(whiteKingIndex, pawnIndex, blackKingIndex, whiteToMove);
+        return (bitbase[index >> 6] & (1L << (index & 63))) != 0;
+    }
+
+    /**
+     * If the board has only the kings and one pawn
+     */
+    public static boolean isKpk(Board board) {
+        return (board.knights | board.bishops | board.rooks | board.queens) == 0 && BitboardUtils.popCount(board.pawns) == 1;
+    }
+
+    /**
+     * If the side with the pawn wins, the board must be KPK
+     */
+    public static boolean probe(Board board) {
+        boolean whitePawn = (board.pawns & board.whites) != 0;
+        int pawnIndex = BitboardUtils.square2Index(board.pawns);
+        int strongKingIndex = BitboardUtils.square2Index(board.kings & (whitePawn ? board.whites : board.blacks));
+        int weakKingIndex = BitboardUtils.square2Index(board.kings & (whitePawn ? board.blacks : board.whites));
+        // Flips the board to have a white pawn and mirrors it to the A-D columns
+        int flip = (whitePawn ? 0 : 56) | ((pawnIndex & 7) < 4 ? 7 : 0);
+        return probe(strongKingIndex ^ flip, pawnIndex ^ flip, weakKingIndex ^ flip, board.getTurn() == whitePawn);
+    }
+
+    /**
+     * Exact score from the white side: draw or a known win, bigger with the pawn more advanced
+     */
+    public static int evaluate(Board board) {
+        if (!probe(board)) {
+            return 0;
+        }
+        boolean whitePawn = (board.pawns & board.whites) != 0;
+        int rank = BitboardUtils.square2Index(board.pawns) >> 3;
+        int score = Evaluator.KNOWN_WIN + PAWN_RANK_BONUS * (whitePawn ? rank : 7 - rank);
+        return whitePawn ? score : -score;
+    }
+}
@@ -0,0 +1,213 @@
+package com.alonsoruibal.chess.evaluation;
+
+import com.alonsoruibal.chess.Board;
+import com.alonsoruibal.chess.Move;
+import com.alonsoruibal.chess.bitboard.BitboardUtils;
+
+/**
+ * Evaluates with a NnueNetwork. The accumulators are kept for each move number of the board and updated
+ * incrementally from the last computed one, adding and removing the features of the pieces that changed
+ * in the board history (so captures, promotions and castlings need no special cases). A side whose king
+ * moved is refreshed from scratch. The accumulators are in the context of each thread, created with
+ * newContext(), and nothing is allocated after it.
+ *
+ * @author rui
+ */
+public class NnueEvaluator extends Evaluator {
+
+    // Max moves to walk back looking for a computed accumulator, if not found it is refreshed
+    private final static int MAX_UPDATE_MOVES = 8;
+
+    private NnueNetwork network;
+    private int hiddenSize;
+
+    public static class Context extends EvaluationContext {
+        // Indexed by move number: the accumulators of each side and the key of their position
+        final short[][][] accumulators;
+        final long[][] accumulatorKeys = new long[Board.MAX_MOVES][2];
+        final boolean[] accumulatorValid = new boolean[Board.MAX_MOVES];
+
+        // Bitboards of the positions being diffed, by color and piece, 0 is unused
+        final long[][] previousPieces = new long[2][Move.KING + 1];
+        final long[][] pieces = new long[2][Move.KING + 1];
+
+        Context(int hiddenSize) {
+            accumulators = new short[Board.MAX_MOVES][2][hiddenSize];
+        }
+    }
+
+    public NnueEvaluator(NnueNetwork network) {
+        this.network = network;
+        hiddenSize = network.hiddenSize;
+    }
+
+    @Override
+    public EvaluationContext newContext() {
+        return new Context(hiddenSize);
+    }
+
+    public int evaluateBoard(Board board, EvaluationContext evaluationContext, int alpha, int beta) {
+        Context context = (Context) evaluationContext;
+        short[][][] accumulators = context.accumulators;
+        int moveNumber = board.moveNumber;
+        context.lazy = false;
+
+        if (!isComputed(context, moveNumber, board.key)) {
+            // Looks for the last computed accumulator that can be updated with the board history
+            int from = moveNumber - 1;
+            while (from >= board.initialMoveNumber && moveNumber - from <= MAX_UPDATE_MOVES
+                    && !isComputed(context, from, board.keyHistory[from])) {
+                from--;
+            }
+            if (from >= board.initialMoveNumber && moveNumber - from <= MAX_UPDATE_MOVES) {
+                for (int i = from + 1; i <= moveNumber; i++) {
+                    update(context, board, i);
+                }
+            } else {
+                loadPieces(board, moveNumber, context.pieces);
+                refresh(context, accumulators[moveNumber][0], 0);
+                refresh(context, accumulators[moveNumber][1], 1);
+                setComputed(context, board, moveNumber);
+            }
+        }
+
+        // Side to move first
+        int us = board.getTurn() ? 0 : 1;
+        short[] ourAccumulator = accumulators[moveNumber][us];
+        short[] theirAccumulator = accumulators[moveNumber][1 - us];
+        byte[] outputWeights = network.outputWeights;
+        int sum = network.outputBias;
+        for (int i = 0; i < hiddenSize; i++) {
+            int value = ourAccumulator[i];
+            if (value > 0) {
+                sum += (value < 127 ? value : 127) * outputWeights[i];
+            }
+            value = theirAccumulator[i];
+            if (value > 0) {
+                sum += (value < 127 ? value : 127) * outputWeights[hiddenSize + i];
+            }
+        }
+        int score = sum / network.outputScale;
+        return us == 0 ? score : -score;
+    }
+
+    private static boolean isComputed(Context context, int moveNumber, long[] key) {
+        return context.accumulatorValid[moveNumber] && context.accumulatorKeys[moveNumber][0] == key[0]
+                && context.accumulatorKeys[moveNumber][1] == key[1];
+    }
+
+    private static void setComputed(Context context, Board board, int moveNumber) {
+        long[] key = moveNumber == board.moveNumber ? board.key : board.keyHistory[moveNumber];
+        context.accumulatorKeys[moveNumber][0] = key[0];
+        context.accumulatorKeys[moveNumber][1] = key[1];
+        context.accumulatorValid[moveNumber] = true;
+    }
+
+    /**
+     * Computes the accumulators of a move number from the ones of the previous move number
+     */
+    private void update(Context context, Board board, int moveNumber) {
+        long[][] previousPieces = context.previousPieces;
+        long[][] pieces = context.pieces;
+        loadPieces(board, moveNumber - 1, previousPieces);
+        loadPieces(board, moveNumber, pieces);
+
+        for (int side = 0; side < 2; side++) {
+            short[] accumulator = context.accumulators[moveNumber][side];
+            if (pieces[side][Move.KING] != previousPieces[side][Move.KING]) {
+                refresh(context, accumulator, side);
+                continue;
+            }
+            System.arraycopy(context.accumulators[moveNumber - 1][side], 0, accumulator, 0, hiddenSize);
+
+            int flip = side == 0 ? 0 : 56;
+            int ownKingIndex = BitboardUtils.square2Index(pieces[side][Move.KING]) ^ flip;
+            for (int color = 0; color < 2; color++) {
+                for (int piece = Move.PAWN; piece < Move.KING; piece++) {
+                    long removed = previousPieces[color][piece] & ~pieces[color][piece];
+                    long added = pieces[color][piece] & ~previousPieces[color][piece];
+                    while (removed != 0) {
+                        long square = BitboardUtils.lsb(removed);
+                        removed ^= square;
+                        subtractFeature(accumulator, NnueNetwork.getFeature(ownKingIndex, piece, color == side, BitboardUtils.square2Index(square) ^ flip));
+                    }
+                    while (added != 0) {
+                        long square = BitboardUtils.lsb(added);
+                        added ^= square;
+                        addFeature(accumulator, NnueNetwork.getFeature(ownKingIndex, piece, color == side, BitboardUtils.square2Index(square) ^ flip));
+                    }
+                }
+            }
+        }
+        setComputed(context, board, moveNumber);
+    }
+
+    /**
+     * Computes the accumulator of a side from the pieces loaded in the pieces array of the context
+     */
+    private void refresh(Context context, short[] accumulator, int side) {
+        long[][] pieces = context.pieces;
+        System.arraycopy(network.featureBiases, 0, accumulator, 0, hiddenSize);
+        int flip = side == 0 ? 0 : 56;
+        int ownKingIndex = BitboardUtils.square2Index(pieces[side][Move.KING]) ^ flip;
+        for (int color = 0; color < 2; color++) {
+            for (int piece = Move.PAWN; piece < Move.KING; piece++) {
+                long squares = pieces[color][piece];
+                while (squares != 0) {
+                    long square = BitboardUtils.lsb(squares);
+                    squares ^= square;
+                    addFeature(accumulator, NnueNetwork.getFeature(ownKingIndex, piece, color == side, BitboardUtils.square2Index(square) ^ flip));
+                }
+            }
+        }
+    }
+
+    private void addFeature(short[] accumulator, int feature) {
+        short[] weights = network.featureWeights;
+        int offset = feature * hiddenSize;
+        for (int i = 0; i < hiddenSize; i++) {
+            accumulator[i] += weights[offset + i];
+        }
+    }
+
+    private void subtractFeature(short[] accumulator, int feature) {
+        short[] weights = network.featureWeights;
+        int offset = feature * hiddenSize;
+        for (int i = 0; i < hiddenSize; i++) {
+            accumulator[i] -= weights[offset + i];
+        }
+    }
+
+    /**
+     * Bitboards by color and piece of the position at a move number, from the board or from its history
+     */
+    private static void loadPieces(Board board, int moveNumber, long[][] pieces) {
+        long whites, pawns, knights, bishops, rooks, queens, kings;
+        if (moveNumber == board.moveNumber) {
+            whites = board.whites;
+            pawns = board.pawns;
+            knights = board.knights;
+            bishops = board.bishops;
+            rooks = board.rooks;
+            queens = board.queens;
+            kings = board.kings;
+        } else {
+            whites = board.whitesHistory[moveNumber];
+            pawns = board.pawnsHistory[moveNumber];
+            knights = board.knightsHistory[moveNumber];
+            bishops = board.bishopsHistory[moveNumber];
+            rooks = board.rooksHistory[moveNumber];
+            queens = board.queensHistory[moveNumber];
+            kings = board.kingsHistory[moveNumber];
+        }
+        for (int color = 0; color < 2; color++) {
+            long mines = color == 0 ? whites : ~whites;
+            pieces[color][Move.PAWN] = pawns & mines;
+            pieces[color][Move.KNIGHT] = knights & mines;
+            pieces[color][Move.BISHOP] = bishops & mines;
+            pieces[color][Move.ROOK] = rooks & mines;
+            pieces[color][Move.QUEEN] = queens & mines;
+            pieces[color][Move.KING] = kings & mines;
+        }
+    }
+}
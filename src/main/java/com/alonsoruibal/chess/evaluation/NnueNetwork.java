@@ -0,0 +1,131 @@
+package com.alonsoruibal.chess.evaluation;
+
+import com.alonsoruibal.chess.log.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Quantized weights of the network used by the NnueEvaluator, immutable so they can be shared.
+ * <p/>
+ * Feature transformer: for each side (perspective) one input per own king square, piece
+ * (type and color relative to the perspective, kings excluded) and square, giving an int16 accumulator
+ * of hiddenSize values. The output is the dot product of both clipped (0..127) accumulators, side to
+ * move first, with int8 weights, plus the output bias, divided by outputScale to get centipawns.
+ * <p/>
+ * File format, big-endian as written by DataOutputStream: {MAGIC, hiddenSize, outputScale, outputBias}
+ * as ints, featureBiases and featureWeights (feature major) as shorts and outputWeights as bytes.
+ *
+ * @author rui
+ */
+public class NnueNetwork {
+    private static final Logger logger = Logger.getLogger("NnueNetwork");
+
+    public final static int MAGIC = 0x4e4e5545; // "NNUE"
+    // Own king square x 10 pieces x square
+    public final static int FEATURES = 64 * 10 * 64;
+
+    public final int hiddenSize;
+    public final int outputScale;
+    public final int outputBias;
+    public final short[] featureBiases;
+    public final short[] featureWeights;
+    public final byte[] outputWeights;
+
+    public NnueNetwork(int hiddenSize, int outputScale, int outputBias, short[] featureBiases, short[] featureWeights, byte[] outputWeights) {
+        this.hiddenSize = hiddenSize;
+        this.outputScale = outputScale;
+        this.outputBias = outputBias;
+        this.featureBiases = featureBiases;
+        this.featureWeights = featureWeights;
+        this.outputWeights = outputWeights;
+    }
+
+    /**
+     * Index of a feature from one side: the squares are flipped vertically for the blacks
+     *
+     * @param ownKingIndex square index of the king of the perspective, already flipped
+     * @param piece        Move.PAWN...Move.QUEEN
+     * @param own          if the piece is of the perspective side
+     * @param index        square index of the piece, already flipped
+     */
+    public static int getFeature(int ownKingIndex, int piece, boolean own, int index) {
+        return ((ownKingIndex * 10 + ((piece - 1) << 1) + (own ? 0 : 1)) << 6) + index;
+    }
+
+    /**
+     * Loads the network from a file, or from a classpath resource with that name if the file does not exist
+     *
+     * @return null if it could not be loaded
+     */
+    public static NnueNetwork load(String fileName) {
+        try {
+            InputStream is;
+            File file = new File(fileName);
+            if (file.exists()) {
+                is = new FileInputStream(file);
+            } else {
+                is = NnueNetwork.class.getResourceAsStream(fileName.startsWith("/") ? fileName : "/" + fileName);
+                if (is == null) {
+                    logger.error("Network file not found: " + fileName);
+                    return null;
+                }
+            }
+            try {
+                return read(is);
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error loading network: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static NnueNetwork read(InputStream is) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("Not a network file");
+        }
+        int hiddenSize = dis.readInt();
+        int outputScale = dis.readInt();
+        int outputBias = dis.readInt();
+        if (hiddenSize <= 0 || outputScale <= 0) {
+            throw new IOException("Invalid network header");
+        }
+        short[] featureBiases = new short[hiddenSize];
+        for (int i = 0; i < featureBiases.length; i++) {
+            featureBiases[i] = dis.readShort();
+        }
+        short[] featureWeights = new short[FEATURES * hiddenSize];
+        for (int i = 0; i < featureWeights.length; i++) {
+            featureWeights[i] = dis.readShort();
+        }
+        byte[] outputWeights = new byte[2 * hiddenSize];
+        dis.readFully(outputWeights);
+        return new NnueNetwork(hiddenSize, outputScale, outputBias, featureBiases, featureWeights, outputWeights);
+    }
+
+    public void write(OutputStream os) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+        dos.writeInt(MAGIC);
+        dos.writeInt(hiddenSize);
+        dos.writeInt(outputScale);
+        dos.writeInt(outputBias);
+        for (short bias : featureBiases) {
+            dos.writeShort(bias);
+        }
+        for (short weight : featureWeights) {
+            dos.writeShort(weight);
+        }
+        dos.write(outputWeights);
+        dos.flush();
+    }
+}
@@ -1,6 +1,8 @@
 package com.alonsoruibal.chess.evaluation;
 
 import com.alonsoruibal.chess.Board;
+import com.alonsoruibal.chess.Move;
+import com.alonsoruibal.chess.bitboard.BitboardUtils;
 
 /**
  * Piece square values from Tomasz Michniewski, got from:
@@ -94,70 +96,49 @@ public class SimplifiedEvaluator extends Evaluator {
         -50, -30, -30, -30, -30, -30, -30, -50 //
     };
 
-    public int evaluateBoard(Board board, int alpha, int beta) {
-        long all = board.getAll();
-
-        int materialValue[] = {0, 0};
-        int pawnMaterialValue[] = {0, 0};
-        int pcsqValue[] = {0, 0};
-        int pcsqOpeningValue[] = {0, 0};
-        int pcsqEndgameValue[] = {0, 0};
-
-        boolean noQueen[] = {true, true};
-
-        long square = 1;
-        byte index = 0;
-        while (square != 0) {
-            boolean isWhite = ((board.whites & square) != 0);
-            int color = (isWhite ? 0 : 1);
-            int pcsqIndex = (isWhite ? 63 - index : index);
-
-            if ((square & all) != 0) {
-
-                if ((square & board.pawns) != 0) {
-                    pawnMaterialValue[color] += PAWN;
-                    pcsqValue[color] += pawnSquare[pcsqIndex];
-
-                } else if ((square & board.knights) != 0) {
-                    materialValue[color] += KNIGHT;
-                    pcsqValue[color] += knightSquare[pcsqIndex];
-
-                } else if ((square & board.bishops) != 0) {
-                    materialValue[color] += BISHOP;
-                    pcsqValue[color] += bishopSquare[pcsqIndex];
-
-                } else if ((square & board.rooks) != 0) {
-                    materialValue[color] += ROOK;
-                    pcsqValue[color] += rookSquare[pcsqIndex];
-
-                } else if ((square & board.queens) != 0) {
-                    pcsqValue[color] += queenSquare[pcsqIndex];
-                    materialValue[color] += QUEEN;
-                    noQueen[color] = false;
-
-                } else if ((square & board.kings) != 0) {
-                    pcsqOpeningValue[color] += kingSquareOpening[pcsqIndex];
-                    pcsqEndgameValue[color] += kingSquareEndGame[pcsqIndex];
-                }
-            }
-            square <<= 1;
-            index++;
+    // Material plus piece square values, with the king ones in oe() packing
+    private final static int[][][] pieceSquareValues;
+
+    static {
+        int[][] whiteValues = new int[Move.KING + 1][64];
+        for (int i = 0; i < 64; i++) {
+            // Tables are rotated for whites
+            int pcsqIndex = 63 - i;
+            whiteValues[Move.PAWN][i] = oe(PAWN + pawnSquare[pcsqIndex], PAWN + pawnSquare[pcsqIndex]);
+            whiteValues[Move.KNIGHT][i] = oe(KNIGHT + knightSquare[pcsqIndex], KNIGHT + knightSquare[pcsqIndex]);
+            whiteValues[Move.BISHOP][i] = oe(BISHOP + bishopSquare[pcsqIndex], BISHOP + bishopSquare[pcsqIndex]);
+            whiteValues[Move.ROOK][i] = oe(ROOK + rookSquare[pcsqIndex], ROOK + rookSquare[pcsqIndex]);
+            whiteValues[Move.QUEEN][i] = oe(QUEEN + queenSquare[pcsqIndex], QUEEN + queenSquare[pcsqIndex]);
+            whiteValues[Move.KING][i] = oe(kingSquareOpening[pcsqIndex], kingSquareEndGame[pcsqIndex]);
         }
+        pieceSquareValues = pieceSquareValues(whiteValues);
+    }
+
+    @Override
+    public int[][][] getPieceSquareValues() {
+        return pieceSquareValues;
+    }
 
-        int value = 0;
-        value += pawnMaterialValue[0] - pawnMaterialValue[1];
-        value += materialValue[0] - materialValue[1];
-        value += pcsqValue[0] - pcsqValue[1];
+    public int evaluateBoard(Board board, EvaluationContext context, int alpha, int beta) {
+        // Material and piece square values are kept updated by the board
+        int value = board.pieceSquareValue;
+        context.lazy = false;
 
-		// Endgame
+        // Endgame
         // 1. Both sides have no queens or
         // 2. Every side which has a queen has additionally no other pieces or one minorpiece maximum.
-        if ((noQueen[0] || materialValue[0] <= QUEEN + BISHOP) && (noQueen[1] || materialValue[1] <= QUEEN + BISHOP)) {
-            value += pcsqEndgameValue[0] - pcsqEndgameValue[1];
+        if (isEndgame(board, board.whites) && isEndgame(board, board.blacks)) {
+            return e(value);
         } else {
-            value += pcsqOpeningValue[0] - pcsqOpeningValue[1];
+            return (value - e(value)) >> 16;
         }
+    }
 
-        return value;
+    private static boolean isEndgame(Board board, long pieces) {
+        return (board.queens & pieces) == 0
+                || KNIGHT * BitboardUtils.popCount(board.knights & pieces)
+                + BISHOP * BitboardUtils.popCount(board.bishops & pieces)
+                + ROOK * BitboardUtils.popCount(board.rooks & pieces)
+                + QUEEN * BitboardUtils.popCount(board.queens & pieces) <= QUEEN + BISHOP;
     }
 }
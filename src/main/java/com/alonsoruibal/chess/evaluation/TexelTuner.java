@@ -0,0 +1,400 @@
+package com.alonsoruibal.chess.evaluation;
+
+import com.alonsoruibal.chess.Board;
+import com.alonsoruibal.chess.Config;
+import com.alonsoruibal.chess.Position;
+import com.alonsoruibal.chess.log.Logger;
+import com.alonsoruibal.chess.movesort.QuiescenceMoveIterator;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Tunes the CompleteEvaluator parameters with the Texel method: minimizes the mean squared error between
+ * the game results of a set of labelled positions and the sigmoid of their quiescence search scores.
+ * <p/>
+ * The positions are read from an EPD file with the result in each line ("1-0", "0-1", "1/2-1/2" or
+ * [1.0], [0.0], [0.5]) and the quiescence scores are computed in parallel with fork/join, all the threads
+ * share the evaluator and each one has its own board and evaluation context. The sigmoid scaling constant
+ * K is fitted first and then the opening and endgame values of each parameter are moved with a local
+ * search, with steps from 8 to 1. The tuned parameters are written after each pass, so they can be loaded
+ * with Config.setEvalParametersFile().
+ * <p/>
+ * The quiescence searches are only run with the best parameters, keeping the position at the end of the
+ * principal variation of each one (its leaf). The candidate parameters of a pass are scored with a static
+ * evaluation of those leaves, as a small change of a parameter rarely changes the principal variations. Only
+ * the candidates improving the error this way run the quiescence searches, to check that they improve it.
+ * <p/>
+ * Usage: TexelTuner epdFile outputFile [initialParametersFile [threads [PARAMETER_NAME,...]]]
+ *
+ * @author rui
+ */
+public class TexelTuner {
+    private static final Logger logger = Logger.getLogger("TexelTuner");
+
+    private final static int MAX_QS_DEPTH = 32;
+    // Positions evaluated by each fork/join task
+    private final static int TASK_POSITIONS = 2048;
+    private final static int INITIAL_STEP = 8;
+
+    private final ForkJoinPool pool;
+    // Shared by all the workers, its parameters are only set between the fork/join runs
+    private final CompleteEvaluator evaluator;
+
+    private final ArrayList<Position> positions = new ArrayList<Position>();
+    // Results from the white side: 0 loss, 1 draw, 2 win
+    private byte[] results = new byte[1024];
+    // Positions at the end of the quiescence principal variations, null if mated
+    private Position[] leaves;
+    private int[] scores;
+
+    // Parameters being evaluated
+    private EvaluatorParameters parameters;
+    private double k;
+
+    private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
+    private class Worker {
+        Board board = new Board();
+        EvaluationContext context = evaluator.newContext();
+        QuiescenceMoveIterator[] moveIterators = new QuiescenceMoveIterator[MAX_QS_DEPTH];
+        // Principal variation of each ply
+        int[][] pv = new int[MAX_QS_DEPTH + 1][MAX_QS_DEPTH];
+        int[] pvLength = new int[MAX_QS_DEPTH + 1];
+
+        Worker() {
+            for (int i = 0; i < MAX_QS_DEPTH; i++) {
+                moveIterators[i] = new QuiescenceMoveIterator(board);
+            }
+        }
+    }
+
+    private class ScoresTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        // Searches the positions keeping their leaves, or only evaluates the leaves
+        private final boolean search;
+
+        ScoresTask(int from, int to, boolean search) {
+            this.from = from;
+            this.to = to;
+            this.search = search;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > TASK_POSITIONS) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ScoresTask(from, middle, search), new ScoresTask(middle, to, search));
+                return;
+            }
+            Worker worker = workers.get();
+            Board board = worker.board;
+            // The piece square values change with the parameters
+            board.setPieceSquareValues(evaluator.getPieceSquareValues());
+            for (int i = from; i < to; i++) {
+                if (search) {
+                    board.setPosition(positions.get(i));
+                    int score = quiescence(worker, 0, -Evaluator.VICTORY, Evaluator.VICTORY);
+                    scores[i] = board.getTurn() ? score : -score;
+                    if (score == -Evaluator.VICTORY || score == Evaluator.VICTORY) {
+                        // Mated, it does not depend on the parameters
+                        leaves[i] = null;
+                    } else {
+                        for (int j = 0; j < worker.pvLength[0]; j++) {
+                            board.doMove(worker.pv[0][j], false);
+                        }
+                        leaves[i] = board.getPosition();
+                    }
+                } else if (leaves[i] != null) {
+                    board.setPosition(leaves[i]);
+                    scores[i] = evaluator.evaluateBoard(board, worker.context, -Evaluator.VICTORY, Evaluator.VICTORY);
+                }
+            }
+        }
+    }
+
+    public TexelTuner(Config config, int threads) {
+        pool = new ForkJoinPool(threads);
+        evaluator = new CompleteEvaluator(config);
+        parameters = evaluator.getParameters();
+    }
+
+    /**
+     * Reads the labelled positions of an EPD file, the lines without a result are skipped
+     */
+    public void load(String fileName) throws IOException {
+        Board board = new Board();
+        BufferedReader br = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int result = getResult(line);
+                String[] tokens = line.trim().split("\\s+");
+                if (result < 0 || tokens.length < 4) {
+                    continue;
+                }
+                // Only the four EPD fields, the operations could be taken as the FEN counters
+                board.setFen(tokens[0] + " " + tokens[1] + " " + tokens[2] + " " + tokens[3]);
+                if (positions.size() == results.length) {
+                    results = Arrays.copyOf(results, results.length << 1);
+                }
+                results[positions.size()] = (byte) result;
+                positions.add(board.getPosition());
+            }
+        } finally {
+            br.close();
+        }
+        leaves = new Position[positions.size()];
+        scores = new int[positions.size()];
+        logger.debug("Loaded " + positions.size() + " positions");
+    }
+
+    /**
+     * @return 2 white wins, 1 draw, 0 black wins or -1 if not found
+     */
+    private static int getResult(String line) {
+        if (line.contains("1/2-1/2") || line.contains("[0.5]")) {
+            return 1;
+        } else if (line.contains("1-0") || line.contains("[1.0]")) {
+            return 2;
+        } else if (line.contains("0-1") || line.contains("[0.0]")) {
+            return 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Tunes all the parameters or only the ones in names
+     */
+    public void tune(String outputFileName, String[] names) throws IOException {
+        if (positions.isEmpty()) {
+            logger.error("No positions to tune");
+            return;
+        }
+        if (names == null) {
+            names = parameters.getNames().toArray(new String[0]);
+        }
+        for (String name : names) {
+            if (parameters.getValues(name) == null) {
+                logger.error("Unknown parameter: " + name);
+                return;
+            }
+        }
+        int[] best = toVector(parameters, names);
+
+        computeLeaves(parameters);
+        k = fitK();
+        double bestError = error(k);
+        logger.debug("K = " + k + " initial error = " + bestError);
+
+        for (int step = INITIAL_STEP; step >= 1; step >>= 1) {
+            boolean improved = true;
+            while (improved) {
+                improved = false;
+                long time = System.currentTimeMillis();
+                // The leaves are the ones of the best parameters
+                for (int i = 0; i < best.length; i++) {
+                    for (int delta = step; delta >= -step; delta -= step << 1) {
+                        int[] candidate = best.clone();
+                        candidate[i] += delta;
+                        EvaluatorParameters p = fromVector(parameters, names, candidate);
+                        computeScores(p);
+                        if (error(k) < bestError) {
+                            // The leaves change with the parameters, the candidate is kept only if the error with its leaves is lower
+                            computeLeaves(p);
+                            double e = error(k);
+                            if (e < bestError) {
+                                bestError = e;
+                                best = candidate;
+                                improved = true;
+                                break;
+                            }
+                            computeLeaves(fromVector(parameters, names, best));
+                        }
+                    }
+                }
+                parameters = fromVector(parameters, names, best);
+                write(outputFileName);
+                logger.debug("Step " + step + " error = " + bestError + " pass time = " + (System.currentTimeMillis() - time) + "ms");
+            }
+        }
+    }
+
+    private void write(String fileName) throws IOException {
+        FileOutputStream fos = new FileOutputStream(fileName);
+        try {
+            parameters.write(fos);
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * The opening and endgame values of the parameters in a single array
+     */
+    private static int[] toVector(EvaluatorParameters p, String[] names) {
+        int length = 0;
+        for (String name : names) {
+            length += p.getValues(name).length << 1;
+        }
+        int[] vector = new int[length];
+        int j = 0;
+        for (String name : names) {
+            for (int v : p.getValues(name)) {
+                vector[j++] = EvaluatorParameters.opening(v);
+                vector[j++] = EvaluatorParameters.endgame(v);
+            }
+        }
+        return vector;
+    }
+
+    private static EvaluatorParameters fromVector(EvaluatorParameters base, String[] names, int[] vector) {
+        EvaluatorParameters p = new EvaluatorParameters();
+        for (String name : base.getNames()) {
+            p.put(name, base.getValues(name));
+        }
+        int j = 0;
+        for (String name : names) {
+            int[] values = new int[base.getValues(name).length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Evaluator.oe(vector[j], vector[j + 1]);
+                j += 2;
+            }
+            p.put(name, values);
+        }
+        return p;
+    }
+
+    /**
+     * Runs the quiescence searches, keeping their scores and leaves
+     */
+    private void computeLeaves(EvaluatorParameters p) {
+        parameters = p;
+        evaluator.setParameters(p);
+        pool.invoke(new ScoresTask(0, positions.size(), true));
+    }
+
+    /**
+     * Scores with the static evaluation of the leaves
+     */
+    private void computeScores(EvaluatorParameters p) {
+        parameters = p;
+        evaluator.setParameters(p);
+        pool.invoke(new ScoresTask(0, positions.size(), false));
+    }
+
+    /**
+     * Mean squared error of the computed scores
+     */
+    private double error(double k) {
+        double sum = 0;
+        for (int i = 0; i < scores.length; i++) {
+            double diff = results[i] / 2d - 1d / (1d + Math.pow(10, -k * scores[i] / 400d));
+            sum += diff * diff;
+        }
+        return sum / scores.length;
+    }
+
+    /**
+     * The K minimizing the error of the computed scores, with a coarse to fine scan
+     */
+    private double fitK() {
+        double bestK = 1;
+        double bestError = Double.MAX_VALUE;
+        double from = 0;
+        double to = 3;
+        for (double step = 0.1; step >= 0.0001; step /= 10) {
+            for (double k = from; k <= to; k += step) {
+                double e = error(k);
+                if (e < bestError) {
+                    bestError = e;
+                    bestK = k;
+                }
+            }
+            from = Math.max(0, bestK - step);
+            to = bestK + step;
+        }
+        return bestK;
+    }
+
+    /**
+     * Quiescence search from the side to move, only with the captures and promotions (or the evasions)
+     */
+    private int quiescence(Worker worker, int ply, int alpha, int beta) {
+        Board board = worker.board;
+        boolean check = board.getCheck();
+        worker.pvLength[ply] = 0;
+
+        if (!check) {
+            int eval = evaluator.evaluateBoard(board, worker.context, -Evaluator.VICTORY, Evaluator.VICTORY);
+            if (!board.getTurn()) {
+                eval = -eval;
+            }
+            if (eval >= beta) {
+                return eval;
+            }
+            if (eval > alpha) {
+                alpha = eval;
+            }
+        }
+        if (ply >= MAX_QS_DEPTH) {
+            return alpha;
+        }
+
+        boolean validOperations = false;
+        QuiescenceMoveIterator moveIterator = worker.moveIterators[ply];
+        moveIterator.genMoves(false, Integer.MIN_VALUE);
+        int move;
+        while ((move = moveIterator.next()) != 0) {
+            if (board.doMove(move, false)) {
+                validOperations = true;
+                int score = -quiescence(worker, ply + 1, -beta, -alpha);
+                board.undoMove();
+                if (score > alpha) {
+                    alpha = score;
+                    worker.pv[ply][0] = move;
+                    System.arraycopy(worker.pv[ply + 1], 0, worker.pv[ply], 1, worker.pvLength[ply + 1]);
+                    worker.pvLength[ply] = worker.pvLength[ply + 1] + 1;
+                    if (score >= beta) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (check && !validOperations) {
+            return -Evaluator.VICTORY;
+        }
+        return alpha;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: TexelTuner epdFile outputFile [initialParametersFile [threads [PARAMETER_NAME,...]]]");
+            return;
+        }
+        Config config = new Config();
+        if (args.length > 2) {
+            config.setEvalParametersFile(args[2]);
+        }
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        TexelTuner tuner = new TexelTuner(config, threads);
+        tuner.load(args[0]);
+        tuner.tune(args[1], args.length > 4 ? args[4].split(",") : null);
+        tuner.pool.shutdown();
+    }
+}
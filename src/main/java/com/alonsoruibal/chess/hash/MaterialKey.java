@@ -0,0 +1,89 @@
+package com.alonsoruibal.chess.hash;
+
+import com.alonsoruibal.chess.Board;
+import com.alonsoruibal.chess.Move;
+import com.alonsoruibal.chess.bitboard.BitboardUtils;
+
+/**
+ * Material signature of a board: the piece counts of each color packed in a long (the white ones in the
+ * low 32 bits), 4 bits for each of the pawns, knights, bishops, rooks and queens. It is not a hash, two
+ * boards have the same key only if they have the same material. The fields hold the counts reachable
+ * with promotions (up to 10 knights, bishops or rooks and 9 queens) without overflowing.
+ * <p/>
+ * Board keeps it updated in doMove() adding the units of the pieces captured and promoted.
+ */
+public class MaterialKey {
+
+    private static final int[] SHIFT = {0, 0, 4, 8, 12, 16, 0};
+    private static final int MASK = 0xf;
+
+    // Key increment of one piece, [color][piece] with the piece as in Move.PAWN...Move.KING (kings are not counted)
+    public static final long[][] unit = new long[2][Move.KING + 1];
+
+    private static final String PIECE_NAMES = " PNBRQK";
+
+    static {
+        for (int color = 0; color < 2; color++) {
+            for (int piece = Move.PAWN; piece <= Move.QUEEN; piece++) {
+                unit[color][piece] = 1L << (32 * color + SHIFT[piece]);
+            }
+        }
+    }
+
+    public static long getKey(Board board) {
+        long key = 0;
+        for (int color = 0; color < 2; color++) {
+            long pieces = color == 0 ? board.whites : board.blacks;
+            key += unit[color][Move.PAWN] * BitboardUtils.popCount(board.pawns & pieces)
+                    + unit[color][Move.KNIGHT] * BitboardUtils.popCount(board.knights & pieces)
+                    + unit[color][Move.BISHOP] * BitboardUtils.popCount(board.bishops & pieces)
+                    + unit[color][Move.ROOK] * BitboardUtils.popCount(board.rooks & pieces)
+                    + unit[color][Move.QUEEN] * BitboardUtils.popCount(board.queens & pieces);
+        }
+        return key;
+    }
+
+    /**
+     * Key from a name like "KBNvK", with the white pieces first
+     *
+     * @return -1 if the name is not valid
+     */
+    public static long getKey(String name) {
+        String[] sides = name.toUpperCase().split("V");
+        if (sides.length != 2) {
+            return -1;
+        }
+        long key = 0;
+        for (int color = 0; color < 2; color++) {
+            if (!sides[color].startsWith("K")) {
+                return -1;
+            }
+            for (int i = 1; i < sides[color].length(); i++) {
+                int piece = PIECE_NAMES.indexOf(sides[color].charAt(i));
+                if (piece < Move.PAWN || piece > Move.QUEEN) {
+                    return -1;
+                }
+                key += unit[color][piece];
+            }
+        }
+        return key;
+    }
+
+    public static int getCount(long key, int color, int piece) {
+        return (int) (key >>> (32 * color + SHIFT[piece])) & MASK;
+    }
+
+    /**
+     * If a color has only the king
+     */
+    public static boolean isBareKing(long key, int color) {
+        return (int) (key >>> (32 * color)) == 0;
+    }
+
+    /**
+     * The key with the colors swapped
+     */
+    public static long flipColors(long key) {
+        return (key >>> 32) | (key << 32);
+    }
+}
@@ -2,6 +2,7 @@ package com.alonsoruibal.chess.movesort;
 
 import com.alonsoruibal.chess.Board;
 import com.alonsoruibal.chess.Move;
+import com.alonsoruibal.chess.bitboard.AttackInfo;
 import com.alonsoruibal.chess.bitboard.BitboardAttacks;
 import com.alonsoruibal.chess.bitboard.BitboardUtils;
 
@@ -22,15 +23,20 @@ public class MoveIterator {
     public final static int PHASE_GEN_NONCAPTURES = 4;
     public final static int PHASE_KILLER1 = 5;
     public final static int PHASE_KILLER2 = 6;
-    public final static int PHASE_NONCAPTURES = 7;
-    public final static int PHASE_BAD_CAPTURES = 8;
-    public final static int PHASE_END = 9;
+    public final static int PHASE_COUNTER_MOVE = 7;
+    public final static int PHASE_NONCAPTURES = 8;
+    public final static int PHASE_BAD_CAPTURES = 9;
+    public final static int PHASE_END = 10;
 
     private static final int[] VICTIM_PIECE_VALUES = {0, 100, 325, 330, 500, 975, 10000};
     private static final int[] AGGRESSOR_PIECE_VALUES = {0, 10, 32, 33, 50, 97, 99};
     private static final int SCORE_PROMOTION_QUEEN = 975;
     private static final int SCORE_UNDERPROMOTION = Integer.MIN_VALUE + 1;
-    private static final int SCORE_LOWEST = Integer.MIN_VALUE;
+    // Added to the good captures score, so they are selected before the equal captures
+    private static final int SCORE_GOOD_CAPTURE = 1 << 20;
+    private static final int MAX_MOVES = 256;
+    // Non captures with a lower history score are not sorted
+    private static final int QUIET_SORT_LIMIT = -SortInfo.HISTORY_MAX / 2;
 
     private Board board;
     private int ttMove;
@@ -38,27 +44,28 @@ public class MoveIterator {
     private int killer2;
     private boolean foundKiller1;
     private boolean foundKiller2;
+    private int lastMove;
+    private int counterMove;
+    private boolean foundCounterMove;
     private boolean quiescence;
     private boolean generateChecks;
     private boolean checkEvasion;
-
-    private int nonCaptureIndex;
-    private int goodCaptureIndex;
-    private int equalCaptureIndex;
-    private int badCaptureIndex;
+    // In quiescence without checks only the good captures are searched
+    private boolean onlyGoodCaptures;
+
+    // Next move to select and end of the moves of the current phase in the buffer
+    private int movesIndex;
+    private int movesEnd;
+    // Bad captures are stored at the end of the buffer, growing downwards
+    private int badCapturesIndex;
     private long all;
     private long mines;
     private long others;
-    private long[] attacks = new long[64]; // Stores slider pieces attacks
+    private AttackInfo attackInfo;
 
-    public int[] goodCaptures = new int[256]; // Stores captures and queen promotions
-    public int[] goodCapturesScores = new int[256];
-    public int[] badCaptures = new int[256]; // Stores captures and queen promotions
-    public int[] badCapturesScores = new int[256];
-    public int[] equalCaptures = new int[256]; // Stores captures and queen promotions
-    public int[] equalCapturesScores = new int[256];
-    public int[] nonCaptures = new int[256]; // Stores non captures and underpromotions
-    public int[] nonCapturesScores = new int[256];
+    // Moves with the score in the upper 32 bits. Good and equal captures are
+    // stored from the start, and replaced by the non captures once searched
+    private long[] moves = new long[MAX_MOVES];
 
     private int depth;
     SortInfo sortInfo;
@@ -91,26 +98,24 @@ public class MoveIterator {
         all = board.getAll(); // only for clearity
         mines = board.getMines();
         others = board.getOthers();
+        attackInfo = board.getAttackInfo();
+        long[] attacks = attackInfo.attacksFromSquare;
 
         byte index = 0;
         long square = 0x1L;
         while (square != 0) {
-            attacks[index] = 0;
             if (board.getTurn() == ((square & board.whites) != 0)) {
 
                 if ((square & board.rooks) != 0) { // Rook
-                    attacks[index] = bbAttacks.getRookAttacks(index, all);
                     generateCapturesFromAttacks(Move.ROOK, index, attacks[index] & others);
                 } else if ((square & board.bishops) != 0) { // Bishop
-                    attacks[index] = bbAttacks.getBishopAttacks(index, all);
                     generateCapturesFromAttacks(Move.BISHOP, index, attacks[index] & others);
                 } else if ((square & board.queens) != 0) { // Queen
-                    attacks[index] = bbAttacks.getRookAttacks(index, all) | bbAttacks.getBishopAttacks(index, all);
                     generateCapturesFromAttacks(Move.QUEEN, index, attacks[index] & others);
                 } else if ((square & board.kings) != 0) { // King
-                    generateCapturesFromAttacks(Move.KING, index, bbAttacks.king[index] & others);
+                    generateCapturesFromAttacks(Move.KING, index, attacks[index] & others);
                 } else if ((square & board.knights) != 0) { // Knight
-                    generateCapturesFromAttacks(Move.KNIGHT, index, bbAttacks.knight[index] & others);
+                    generateCapturesFromAttacks(Move.KNIGHT, index, attacks[index] & others);
                 } else if ((square & board.pawns) != 0) { // Pawns
                     if ((square & board.whites) != 0) {
                         generatePawnCapturesAndGoodPromos(index,
@@ -137,6 +142,8 @@ public class MoveIterator {
         all = board.getAll(); // only for clearity
         mines = board.getMines();
         others = board.getOthers();
+        attackInfo = board.getAttackInfo();
+        long[] attacks = attackInfo.attacksFromSquare;
 
         byte index = 0;
         long square = 0x1L;
@@ -149,9 +156,9 @@ public class MoveIterator {
                 } else if ((square & board.queens) != 0) { // Queen
                     generateNonCapturesFromAttacks(Move.QUEEN, index, attacks[index] & ~all);
                 } else if ((square & board.kings) != 0) { // King
-                    generateNonCapturesFromAttacks(Move.KING, index, bbAttacks.king[index] & ~all);
+                    generateNonCapturesFromAttacks(Move.KING, index, attacks[index] & ~all);
                 } else if ((square & board.knights) != 0) { // Knight
-                    generateNonCapturesFromAttacks(Move.KNIGHT, index, bbAttacks.knight[index] & ~all);
+                    generateNonCapturesFromAttacks(Move.KNIGHT, index, attacks[index] & ~all);
                 }
                 if ((square & board.pawns) != 0) { // Pawns
                     if ((square & board.whites) != 0) {
@@ -172,14 +179,14 @@ public class MoveIterator {
         }
 
         square = board.kings & mines; // my king
+        long attackedByOthers = attackInfo.attackedSquares[board.getTurn() ? AttackInfo.B : AttackInfo.W];
         byte myKingIndex = -1;
         // Castling: disabled when in check or squares attacked
         if ((((all & (board.getTurn() ? 0x06L : 0x0600000000000000L)) == 0
                 && (board.getTurn() ? board.getWhiteKingsideCastling() : board.getBlackKingsideCastling())))) {
             myKingIndex = BitboardUtils.square2Index(square);
             if (!board.getCheck()
-                    && !bbAttacks.isIndexAttacked(board, (byte) (myKingIndex - 1), board.getTurn())
-                    && !bbAttacks.isIndexAttacked(board, (byte) (myKingIndex - 2), board.getTurn())) {
+                    && (attackedByOthers & ((square >>> 1) | (square >>> 2))) == 0) {
                 addNonCapturesAndBadPromos(Move.KING, myKingIndex, myKingIndex - 2, 0, false, Move.TYPE_KINGSIDE_CASTLING);
             }
         }
@@ -189,8 +196,7 @@ public class MoveIterator {
                 myKingIndex = BitboardUtils.square2Index(square);
             }
             if (!board.getCheck()
-                    && !bbAttacks.isIndexAttacked(board, (byte) (myKingIndex + 1), board.getTurn())
-                    && !bbAttacks.isIndexAttacked(board, (byte) (myKingIndex + 2), board.getTurn())) {
+                    && (attackedByOthers & ((square << 1) | (square << 2))) == 0) {
                 addNonCapturesAndBadPromos(Move.KING, myKingIndex, myKingIndex + 2, 0, false, Move.TYPE_QUEENSIDE_CASTLING);
             }
         }
@@ -253,19 +259,19 @@ public class MoveIterator {
             foundKiller1 = true;
         } else if (move == killer2) {
             foundKiller2 = true;
+        } else if (move == counterMove && move != ttMove) {
+            foundCounterMove = true;
         } else if (move != ttMove) {
             // Score non captures
-            int score = sortInfo.getMoveScore(move);
+            int score = sortInfo.getMoveScore(move, lastMove);
             if (moveType == Move.TYPE_PROMOTION_KNIGHT
                     || moveType == Move.TYPE_PROMOTION_ROOK
                     || moveType == Move.TYPE_PROMOTION_BISHOP) {
-                score -= SCORE_UNDERPROMOTION;
+                score = SCORE_UNDERPROMOTION;
             }
 
 //			System.out.println("* " + score + " - " + Move.toStringExt(move));
-            nonCaptures[nonCaptureIndex] = move;
-            nonCapturesScores[nonCaptureIndex] = score;
-            nonCaptureIndex++;
+            moves[movesEnd++] = pack(move, score);
         }
     }
 
@@ -287,35 +293,55 @@ public class MoveIterator {
                 pieceCaptured = Move.PAWN;
             }
 
-            int see = 0;
-
+            int score = 0;
+            // Order GOOD captures by MVV/LVA (Hyatt dixit)
             if (capture) {
-                see = board.see(fromIndex, toIndex, pieceMoved, pieceCaptured);
+                score = VICTIM_PIECE_VALUES[pieceCaptured] - AGGRESSOR_PIECE_VALUES[pieceMoved];
+            }
+            if (moveType == Move.TYPE_PROMOTION_QUEEN) {
+                score += SCORE_PROMOTION_QUEEN;
             }
 
-            if (see >= 0) {
-                int score = 0;
-                // Order GOOD captures by MVV/LVA (Hyatt dixit)
-                if (capture) {
-                    score = VICTIM_PIECE_VALUES[pieceCaptured] - AGGRESSOR_PIECE_VALUES[pieceMoved];
+            if (!capture) {
+                moves[movesEnd++] = pack(move, score + SCORE_GOOD_CAPTURE);
+            } else if (onlyGoodCaptures) {
+                // Equal and bad captures are not searched, but a queen promotion is always good
+                if (board.seeGE(fromIndex, toIndex, pieceMoved, pieceCaptured, moveType == Move.TYPE_PROMOTION_QUEEN ? 0 : 1)) {
+                    moves[movesEnd++] = pack(move, score + SCORE_GOOD_CAPTURE);
                 }
-
-                if (see > 0 || moveType == Move.TYPE_PROMOTION_QUEEN) {
-                    if (moveType == Move.TYPE_PROMOTION_QUEEN) {
-                        score += SCORE_PROMOTION_QUEEN;
-                    }
-                    goodCaptures[goodCaptureIndex] = move;
-                    goodCapturesScores[goodCaptureIndex] = score;
-                    goodCaptureIndex++;
+            } else {
+                // One SEE call classifies the capture and gives the score of the bad ones
+                int seeValue = board.see(fromIndex, toIndex, pieceMoved, pieceCaptured);
+                if (seeValue > 0 || (seeValue == 0 && moveType == Move.TYPE_PROMOTION_QUEEN)) {
+                    moves[movesEnd++] = pack(move, score + SCORE_GOOD_CAPTURE);
+                } else if (seeValue == 0) {
+                    moves[movesEnd++] = pack(move, score);
                 } else {
-                    equalCaptures[equalCaptureIndex] = move;
-                    equalCapturesScores[equalCaptureIndex] = score;
-                    equalCaptureIndex++;
+                    moves[--badCapturesIndex] = pack(move, seeValue);
                 }
-            } else {
-                badCaptures[badCaptureIndex] = move;
-                badCapturesScores[badCaptureIndex] = see;
-                badCaptureIndex++;
+            }
+        }
+    }
+
+    private static long pack(int move, int score) {
+        return ((long) score << 32) | (move & 0xffffffffL);
+    }
+
+    /**
+     * Sorts by descending score the moves in [start, end) with a score of at
+     * least limit, with a stable insertion sort, so the first generated move
+     * wins the ties. The moves below the limit are left after them unsorted
+     */
+    private void partialInsertionSort(int start, int end, int limit) {
+        for (int sortedEnd = start, i = start + 1; i < end; i++) {
+            long move = moves[i];
+            if ((move >> 32) >= limit) {
+                moves[i] = moves[++sortedEnd];
+                int j = sortedEnd;
+                for (; j > start && (moves[j - 1] >> 32) < (move >> 32); j--) {
+                    moves[j] = moves[j - 1];
+                }
+                moves[j] = move;
             }
         }
     }
@@ -331,23 +357,26 @@ public class MoveIterator {
         this.ttMove = ttMove;
         foundKiller1 = false;
         foundKiller2 = false;
+        foundCounterMove = false;
 
         this.quiescence = quiescence;
         this.generateChecks = generateChecks;
         this.checkEvasion = board.getCheck();
+        onlyGoodCaptures = quiescence && !generateChecks && !checkEvasion;
 
         killer1 = sortInfo.killerMove1[depth];
         killer2 = sortInfo.killerMove2[depth];
+        lastMove = board.getLastMove();
+        counterMove = sortInfo.getCounterMove(lastMove);
 
         phase = 0;
-        goodCaptureIndex = 0;
-        badCaptureIndex = 0;
-        equalCaptureIndex = 0;
-        nonCaptureIndex = 0;
+        movesIndex = 0;
+        movesEnd = 0;
+        badCapturesIndex = MAX_MOVES;
     }
 
     public int next() {
-        int maxScore, bestIndex;
+        long best;
         switch (phase) {
             case PHASE_TT:
                 phase++;
@@ -357,43 +386,29 @@ public class MoveIterator {
             case PHASE_GEN_CAPTURES:
                 phase++;
                 generateCaptures();
+                partialInsertionSort(0, movesEnd, Integer.MIN_VALUE);
             case PHASE_GOOD_CAPTURES_AND_PROMOS:
-                maxScore = SCORE_LOWEST;
-                bestIndex = -1;
-                for (int i = 0; i < goodCaptureIndex; i++) {
-                    if (goodCapturesScores[i] > maxScore) {
-                        maxScore = goodCapturesScores[i];
-                        bestIndex = i;
-                    }
-                }
-                if (bestIndex != -1) {
-                    goodCapturesScores[bestIndex] = SCORE_LOWEST;
-                    return goodCaptures[bestIndex];
-                }
-                phase++;
             case PHASE_EQUAL_CAPTURES:
-                maxScore = SCORE_LOWEST;
-                bestIndex = -1;
-                for (int i = 0; i < equalCaptureIndex; i++) {
-                    if (equalCapturesScores[i] > maxScore) {
-                        maxScore = equalCapturesScores[i];
-                        bestIndex = i;
+                if (movesIndex < movesEnd) {
+                    best = moves[movesIndex++];
+                    if ((best >> 32) < SCORE_GOOD_CAPTURE) {
+                        phase = PHASE_EQUAL_CAPTURES;
                     }
+                    return (int) best;
                 }
-                if (bestIndex != -1) {
-                    equalCapturesScores[bestIndex] = SCORE_LOWEST;
-                    return equalCaptures[bestIndex];
-                }
-                phase++;
+                phase = PHASE_GEN_NONCAPTURES;
             case PHASE_GEN_NONCAPTURES:
                 phase++;
 
-                if (quiescence && !generateChecks && !checkEvasion) {
+                if (onlyGoodCaptures) {
                     phase = PHASE_END;
                     return 0;
                 }
 
+                movesIndex = 0;
+                movesEnd = 0;
                 generateNonCaptures();
+                partialInsertionSort(0, movesEnd, QUIET_SORT_LIMIT);
             case PHASE_KILLER1:
                 phase++;
                 if (foundKiller1) {
@@ -404,32 +419,26 @@ public class MoveIterator {
                 if (foundKiller2) {
                     return killer2;
                 }
-            case PHASE_NONCAPTURES:
-                maxScore = SCORE_LOWEST;
-                bestIndex = -1;
-                for (int i = 0; i < nonCaptureIndex; i++) {
-                    if (nonCapturesScores[i] > maxScore) {
-                        maxScore = nonCapturesScores[i];
-                        bestIndex = i;
-                    }
+            case PHASE_COUNTER_MOVE:
+                phase++;
+                if (foundCounterMove) {
+                    return counterMove;
                 }
-                if (bestIndex != -1) {
-                    nonCapturesScores[bestIndex] = SCORE_LOWEST;
-                    return nonCaptures[bestIndex];
+            case PHASE_NONCAPTURES:
+                if (movesIndex < movesEnd) {
+                    return (int) moves[movesIndex++];
                 }
                 phase++;
-            case PHASE_BAD_CAPTURES:
-                maxScore = SCORE_LOWEST;
-                bestIndex = -1;
-                for (int i = 0; i < badCaptureIndex; i++) {
-                    if (badCapturesScores[i] > maxScore) {
-                        maxScore = badCapturesScores[i];
-                        bestIndex = i;
-                    }
+                // Bad captures were stored backwards
+                for (int i = badCapturesIndex, j = MAX_MOVES - 1; i < j; i++, j--) {
+                    best = moves[i];
+                    moves[i] = moves[j];
+                    moves[j] = best;
                 }
-                if (bestIndex != -1) {
-                    badCapturesScores[bestIndex] = SCORE_LOWEST;
-                    return badCaptures[bestIndex];
+                partialInsertionSort(badCapturesIndex, MAX_MOVES, Integer.MIN_VALUE);
+            case PHASE_BAD_CAPTURES:
+                if (badCapturesIndex < MAX_MOVES) {
+                    return (int) moves[badCapturesIndex++];
                 }
                 break;
         }
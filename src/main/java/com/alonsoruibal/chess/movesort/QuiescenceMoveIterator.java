@@ -0,0 +1,427 @@
+package com.alonsoruibal.chess.movesort;
+
+import com.alonsoruibal.chess.Board;
+import com.alonsoruibal.chess.Move;
+import com.alonsoruibal.chess.bitboard.AttackInfo;
+import com.alonsoruibal.chess.bitboard.BitboardAttacks;
+import com.alonsoruibal.chess.bitboard.BitboardUtils;
+import com.alonsoruibal.chess.evaluation.CompleteEvaluator;
+
+/**
+ * Moves for the quiescence search, generated in the order they are tried so
+ * there is no scoring or sorting:
+ * <p/>
+ * - Queen promotions
+ * - Captures by victim value (queens to pawns) and for each victim by
+ * attacker value (pawns to king), only the ones winning material by SEE
+ * and, with delta pruning, not the captures of pieces worth less than the
+ * material gap to alpha
+ * - Optionally the non captures giving check (only in the first quiescence
+ * ply)
+ * <p/>
+ * When the side to move is in check it generates the check evasions instead
+ */
+public class QuiescenceMoveIterator {
+
+    public final static int PHASE_CAPTURES = 0;
+    public final static int PHASE_CHECKS = 1;
+    public final static int PHASE_EVASIONS = 2;
+    public final static int PHASE_END = 3;
+
+    // Values used for delta pruning, indexed by piece
+    private static final int[] VICTIM_VALUES = {0, CompleteEvaluator.PAWN, CompleteEvaluator.KNIGHT, CompleteEvaluator.BISHOP,
+            CompleteEvaluator.ROOK, CompleteEvaluator.QUEEN, 0};
+    private static final int MAX_MOVES = 256;
+
+    private Board board;
+    private boolean generateChecks;
+    private int deltaValue;
+
+    private long all;
+    private long mines;
+    private long others;
+    private long passant;
+    private AttackInfo attackInfo;
+
+    private int[] moves = new int[MAX_MOVES];
+    // Piece captured by each move, for the SEE
+    private int[] victims = new int[MAX_MOVES];
+    private int movesIndex;
+    private int movesEnd;
+
+    int phase;
+
+    BitboardAttacks bbAttacks;
+
+    public QuiescenceMoveIterator(Board board) {
+        this.board = board;
+        bbAttacks = BitboardAttacks.getInstance();
+    }
+
+    public void setBoard(Board board) {
+        this.board = board;
+    }
+
+    public int getPhase() {
+        return phase;
+    }
+
+    /**
+     * @param generateChecks also returns the non captures giving check, the
+     *                       caller must verify that the move gives check
+     *                       because discovered checks are only candidates
+     * @param deltaValue     captures of pieces worth less are not returned
+     *                       (but promotions and pawn pushes to the 7th rank),
+     *                       Integer.MIN_VALUE to disable delta pruning
+     */
+    public void genMoves(boolean generateChecks, int deltaValue) {
+        this.generateChecks = generateChecks;
+        this.deltaValue = deltaValue;
+
+        all = board.getAll();
+        mines = board.getMines();
+        others = board.getOthers();
+        passant = board.getPassantSquare();
+        attackInfo = board.getAttackInfo();
+
+        movesIndex = 0;
+        movesEnd = 0;
+        if (board.getCheck()) {
+            phase = PHASE_EVASIONS;
+            generateEvasions();
+        } else {
+            phase = PHASE_CAPTURES;
+            generateCaptures();
+        }
+    }
+
+    public int next() {
+        switch (phase) {
+            case PHASE_CAPTURES:
+                while (movesIndex < movesEnd) {
+                    int move = moves[movesIndex];
+                    int victim = victims[movesIndex++];
+                    // Queen promotions without capture are always tried
+                    if (!Move.getCapture(move)
+                            || board.seeGE(Move.getFromIndex(move), Move.getToIndex(move), Move.getPieceMoved(move), victim, 1)) {
+                        return move;
+                    }
+                }
+                if (!generateChecks) {
+                    phase = PHASE_END;
+                    return 0;
+                }
+                phase = PHASE_CHECKS;
+                movesIndex = 0;
+                movesEnd = 0;
+                generateChecks();
+            case PHASE_CHECKS:
+            case PHASE_EVASIONS:
+                if (movesIndex < movesEnd) {
+                    return moves[movesIndex++];
+                }
+                phase = PHASE_END;
+        }
+        return 0;
+    }
+
+    private void generateCaptures() {
+        boolean turn = board.getTurn();
+        long[] pawnAttacksFrom = turn ? bbAttacks.pawnUpwards : bbAttacks.pawnDownwards;
+        long[] pawnAttackersTo = turn ? bbAttacks.pawnDownwards : bbAttacks.pawnUpwards;
+        long seventhRank = turn ? BitboardUtils.r2_u : BitboardUtils.r2_d;
+        long myPawns = board.pawns & mines;
+
+        // Queen promotions, with or without capture
+        long promoting = myPawns & seventhRank;
+        while (promoting != 0) {
+            long from = BitboardUtils.lsb(promoting);
+            int fromIndex = BitboardUtils.square2Index(from);
+            long to = turn ? from << 8 : from >>> 8;
+            if ((to & all) == 0) {
+                addMove(Move.genMove(fromIndex, BitboardUtils.square2Index(to), Move.PAWN, false, Move.TYPE_PROMOTION_QUEEN), 0);
+            }
+            long captures = pawnAttacksFrom[fromIndex] & others;
+            while (captures != 0) {
+                to = BitboardUtils.lsb(captures);
+                int victim = getPiece(to);
+                addMove(Move.genMove(fromIndex, BitboardUtils.square2Index(to), Move.PAWN, true, Move.TYPE_PROMOTION_QUEEN), victim);
+                captures ^= to;
+            }
+            promoting ^= from;
+        }
+
+        // Captures, most valuable victims first
+        for (int victim = Move.QUEEN; victim >= Move.PAWN; victim--) {
+            long targets = getPieces(victim) & others;
+            while (targets != 0) {
+                long to = BitboardUtils.lsb(targets);
+                int toIndex = BitboardUtils.square2Index(to);
+                long attackers = bbAttacks.getIndexAttacks(board, toIndex) & mines;
+                if (attackers != 0) {
+                    // Least valuable attackers first, the promotions were already generated
+                    addCaptures(Move.PAWN, attackers & myPawns & ~seventhRank, toIndex, victim, 0);
+                    addCaptures(Move.KNIGHT, attackers & board.knights, toIndex, victim, 0);
+                    addCaptures(Move.BISHOP, attackers & board.bishops, toIndex, victim, 0);
+                    addCaptures(Move.ROOK, attackers & board.rooks, toIndex, victim, 0);
+                    addCaptures(Move.QUEEN, attackers & board.queens, toIndex, victim, 0);
+                    addCaptures(Move.KING, attackers & board.kings, toIndex, victim, 0);
+                }
+                targets ^= to;
+            }
+            if (victim == Move.PAWN && passant != 0) {
+                int passantIndex = BitboardUtils.square2Index(passant);
+                addCaptures(Move.PAWN, pawnAttackersTo[passantIndex] & myPawns, passantIndex, Move.PAWN, Move.TYPE_PASSANT);
+            }
+        }
+    }
+
+    /**
+     * Non captures (and not promotions) giving direct check, and all the non
+     * captures of the pieces that may give a discovered check
+     */
+    private void generateChecks() {
+        boolean turn = board.getTurn();
+        long otherKing = board.kings & others;
+        if (otherKing == 0) {
+            return;
+        }
+        int otherKingIndex = BitboardUtils.square2Index(otherKing);
+        long bishopChecks = bbAttacks.getBishopAttacks(otherKingIndex, all);
+        long rookChecks = bbAttacks.getRookAttacks(otherKingIndex, all);
+        long knightChecks = bbAttacks.knight[otherKingIndex];
+        long pawnChecks = turn ? bbAttacks.pawnDownwards[otherKingIndex] : bbAttacks.pawnUpwards[otherKingIndex];
+        long discoverers = getDiscoverers(otherKingIndex, bishopChecks, rookChecks);
+        long empty = ~all & ~(turn ? BitboardUtils.b_u : BitboardUtils.b_d);
+
+        long pieces = mines & ~board.kings;
+        while (pieces != 0) {
+            long from = BitboardUtils.lsb(pieces);
+            int fromIndex = BitboardUtils.square2Index(from);
+            boolean discoverer = (from & discoverers) != 0;
+            if ((from & board.pawns) != 0) {
+                long to = turn ? from << 8 : from >>> 8;
+                if ((to & empty) != 0) {
+                    if (discoverer || (to & pawnChecks) != 0) {
+                        addMove(Move.genMove(fromIndex, BitboardUtils.square2Index(to), Move.PAWN, false, 0), 0);
+                    }
+                    long to2 = turn ? to << 8 : to >>> 8;
+                    if ((from & (turn ? BitboardUtils.r2_d : BitboardUtils.r2_u)) != 0 && (to2 & all) == 0
+                            && (discoverer || (to2 & pawnChecks) != 0)) {
+                        addMove(Move.genMove(fromIndex, BitboardUtils.square2Index(to2), Move.PAWN, false, 0), 0);
+                    }
+                }
+            } else {
+                int pieceMoved;
+                long checks;
+                if ((from & board.knights) != 0) {
+                    pieceMoved = Move.KNIGHT;
+                    checks = knightChecks;
+                } else if ((from & board.bishops) != 0) {
+                    pieceMoved = Move.BISHOP;
+                    checks = bishopChecks;
+                } else if ((from & board.rooks) != 0) {
+                    pieceMoved = Move.ROOK;
+                    checks = rookChecks;
+                } else {
+                    pieceMoved = Move.QUEEN;
+                    checks = bishopChecks | rookChecks;
+                }
+                long targets = attackInfo.attacksFromSquare[fromIndex] & ~all & (discoverer ? ~0L : checks);
+                addMoves(pieceMoved, fromIndex, targets, false, 0);
+            }
+            pieces ^= from;
+        }
+
+        // The king only gives discovered checks
+        long myKing = board.kings & mines;
+        if ((myKing & discoverers) != 0) {
+            int kingIndex = BitboardUtils.square2Index(myKing);
+            addMoves(Move.KING, kingIndex, bbAttacks.king[kingIndex] & ~all & ~attackInfo.attackedSquares[turn ? AttackInfo.B : AttackInfo.W], false, 0);
+        }
+    }
+
+    /**
+     * Pieces of the side to move that are the only one between the other king
+     * and one of our sliders
+     */
+    private long getDiscoverers(int otherKingIndex, long kingBishopAttacks, long kingRookAttacks) {
+        long discoverers = 0;
+        long sliders = bbAttacks.rook[otherKingIndex] & (board.rooks | board.queens) & mines;
+        while (sliders != 0) {
+            long slider = BitboardUtils.lsb(sliders);
+            discoverers |= kingRookAttacks & bbAttacks.getRookAttacks(BitboardUtils.square2Index(slider), all) & mines;
+            sliders ^= slider;
+        }
+        sliders = bbAttacks.bishop[otherKingIndex] & (board.bishops | board.queens) & mines;
+        while (sliders != 0) {
+            long slider = BitboardUtils.lsb(sliders);
+            discoverers |= kingBishopAttacks & bbAttacks.getBishopAttacks(BitboardUtils.square2Index(slider), all) & mines;
+            sliders ^= slider;
+        }
+        return discoverers;
+    }
+
+    /**
+     * King moves to squares not attacked, and with only one checker, captures
+     * of the checker and interpositions. The legality is verified by the
+     * search when doing the move.
+     */
+    private void generateEvasions() {
+        boolean turn = board.getTurn();
+        long myKing = board.kings & mines;
+        int kingIndex = BitboardUtils.square2Index(myKing);
+        long checkers = attackInfo.checkers;
+        long[] pawnAttackersTo = turn ? bbAttacks.pawnDownwards : bbAttacks.pawnUpwards;
+        long promotionRank = turn ? BitboardUtils.b_u : BitboardUtils.b_d;
+        long myPawns = board.pawns & mines;
+
+        if (checkers != 0 && (checkers & (checkers - 1)) == 0) {
+            int checkerIndex = BitboardUtils.square2Index(checkers);
+            int checker = getPiece(checkers);
+
+            // Capture the checker
+            long attackers = bbAttacks.getIndexAttacks(board, checkerIndex) & mines & ~board.kings;
+            if ((checkers & promotionRank) != 0) {
+                addPawnMoves(attackers & myPawns, checkerIndex, true);
+            } else {
+                addCaptures(Move.PAWN, attackers & myPawns, checkerIndex, checker, 0);
+            }
+            addCaptures(Move.KNIGHT, attackers & board.knights, checkerIndex, checker, 0);
+            addCaptures(Move.BISHOP, attackers & board.bishops, checkerIndex, checker, 0);
+            addCaptures(Move.ROOK, attackers & board.rooks, checkerIndex, checker, 0);
+            addCaptures(Move.QUEEN, attackers & board.queens, checkerIndex, checker, 0);
+
+            // Squares between the king and a checking slider
+            long between = 0;
+            if ((checkers & (board.rooks | board.queens) & bbAttacks.rook[kingIndex]) != 0) {
+                between = bbAttacks.getRookAttacks(kingIndex, all) & bbAttacks.getRookAttacks(checkerIndex, all);
+            } else if ((checkers & (board.bishops | board.queens) & bbAttacks.bishop[kingIndex]) != 0) {
+                between = bbAttacks.getBishopAttacks(kingIndex, all) & bbAttacks.getBishopAttacks(checkerIndex, all);
+            }
+
+            // En passant capturing the checker or interposing
+            if (passant != 0 && ((checker == Move.PAWN && (turn ? passant >>> 8 : passant << 8) == checkers) || (passant & between) != 0)) {
+                int passantIndex = BitboardUtils.square2Index(passant);
+                addCaptures(Move.PAWN, pawnAttackersTo[passantIndex] & myPawns, passantIndex, Move.PAWN, Move.TYPE_PASSANT);
+            }
+
+            // King moves
+            generateKingEvasions(kingIndex, turn);
+
+            // Interpositions
+            if (between != 0) {
+                long pieces = mines & ~board.kings;
+                while (pieces != 0) {
+                    long from = BitboardUtils.lsb(pieces);
+                    int fromIndex = BitboardUtils.square2Index(from);
+                    if ((from & board.pawns) != 0) {
+                        long to = turn ? from << 8 : from >>> 8;
+                        if ((to & all) == 0) {
+                            if ((to & between) != 0) {
+                                addPawnMoves(from, BitboardUtils.square2Index(to), false);
+                            } else {
+                                long to2 = turn ? to << 8 : to >>> 8;
+                                if ((from & (turn ? BitboardUtils.r2_d : BitboardUtils.r2_u)) != 0 && (to2 & between) != 0) {
+                                    addMove(Move.genMove(fromIndex, BitboardUtils.square2Index(to2), Move.PAWN, false, 0), 0);
+                                }
+                            }
+                        }
+                    } else {
+                        addMoves(getPiece(from), fromIndex, attackInfo.attacksFromSquare[fromIndex] & between, false, 0);
+                    }
+                    pieces ^= from;
+                }
+            }
+        } else {
+            // Double check: only king moves
+            generateKingEvasions(kingIndex, turn);
+        }
+    }
+
+    private void generateKingEvasions(int kingIndex, boolean turn) {
+        long targets = bbAttacks.king[kingIndex] & ~mines & ~attackInfo.attackedSquares[turn ? AttackInfo.B : AttackInfo.W];
+        addMoves(Move.KING, kingIndex, targets & others, true, 0);
+        addMoves(Move.KING, kingIndex, targets & ~others, false, 0);
+    }
+
+    /**
+     * Pawn moves to toIndex, with the four promotions when reaching the last rank
+     */
+    private void addPawnMoves(long froms, int toIndex, boolean capture) {
+        boolean promotion = ((1L << toIndex) & (BitboardUtils.b_u | BitboardUtils.b_d)) != 0;
+        int victim = capture ? getPiece(1L << toIndex) : 0;
+        while (froms != 0) {
+            long from = BitboardUtils.lsb(froms);
+            int fromIndex = BitboardUtils.square2Index(from);
+            if (promotion) {
+                addMove(Move.genMove(fromIndex, toIndex, Move.PAWN, capture, Move.TYPE_PROMOTION_QUEEN), victim);
+                addMove(Move.genMove(fromIndex, toIndex, Move.PAWN, capture, Move.TYPE_PROMOTION_KNIGHT), victim);
+                addMove(Move.genMove(fromIndex, toIndex, Move.PAWN, capture, Move.TYPE_PROMOTION_ROOK), victim);
+                addMove(Move.genMove(fromIndex, toIndex, Move.PAWN, capture, Move.TYPE_PROMOTION_BISHOP), victim);
+            } else {
+                addMove(Move.genMove(fromIndex, toIndex, Move.PAWN, capture, 0), victim);
+            }
+            froms ^= from;
+        }
+    }
+
+    /**
+     * Captures of the piece in toIndex from each square in froms, skipping the
+     * ones pruned by delta pruning
+     */
+    private void addCaptures(int pieceMoved, long froms, int toIndex, int victim, int moveType) {
+        while (froms != 0) {
+            long from = BitboardUtils.lsb(froms);
+            int move = Move.genMove(BitboardUtils.square2Index(from), toIndex, pieceMoved, true, moveType);
+            if (VICTIM_VALUES[victim] >= deltaValue || Move.isPawnPush(move) || phase == PHASE_EVASIONS) {
+                addMove(move, victim);
+            }
+            froms ^= from;
+        }
+    }
+
+    private void addMoves(int pieceMoved, int fromIndex, long targets, boolean capture, int moveType) {
+        while (targets != 0) {
+            long to = BitboardUtils.lsb(targets);
+            addMove(Move.genMove(fromIndex, BitboardUtils.square2Index(to), pieceMoved, capture, moveType), capture ? getPiece(to) : 0);
+            targets ^= to;
+        }
+    }
+
+    private void addMove(int move, int victim) {
+        moves[movesEnd] = move;
+        victims[movesEnd++] = victim;
+    }
+
+    private long getPieces(int piece) {
+        switch (piece) {
+            case Move.PAWN:
+                return board.pawns;
+            case Move.KNIGHT:
+                return board.knights;
+            case Move.BISHOP:
+                return board.bishops;
+            case Move.ROOK:
+                return board.rooks;
+            case Move.QUEEN:
+                return board.queens;
+        }
+        return board.kings;
+    }
+
+    private int getPiece(long square) {
+        if ((square & board.pawns) != 0) {
+            return Move.PAWN;
+        } else if ((square & board.knights) != 0) {
+            return Move.KNIGHT;
+        } else if ((square & board.bishops) != 0) {
+            return Move.BISHOP;
+        } else if ((square & board.rooks) != 0) {
+            return Move.ROOK;
+        } else if ((square & board.queens) != 0) {
+            return Move.QUEEN;
+        }
+        return Move.KING;
+    }
+}
@@ -8,7 +8,11 @@ import java.util.Arrays;
 
 public class SortInfo {
 
-    public static final int HISTORY_MAX = Integer.MAX_VALUE - 1;
+    // History scores are kept in [-HISTORY_MAX, HISTORY_MAX] by the gravity formula
+    public static final int HISTORY_MAX = 16384;
+    // Bonus for a cutoff move at a depth of d plies: min(HISTORY_BONUS * d * d, HISTORY_BONUS_MAX)
+    private static final int HISTORY_BONUS = 32;
+    private static final int HISTORY_BONUS_MAX = HISTORY_MAX / 4;
 
     //  Two killer move slots
     public int[] killerMove1;
@@ -16,11 +20,18 @@ public class SortInfo {
 
     private int[][] history;
 
+    // Best reply to each move, indexed by piece and destination of the previous move
+    private int[] counterMove;
+    // History of each move after the previous move, both indexed by piece and destination
+    private int[][] continuationHistory;
+
     public SortInfo() {
         killerMove1 = new int[SearchEngine.MAX_DEPTH];
         killerMove2 = new int[SearchEngine.MAX_DEPTH];
 
         history = new int[6][64];
+        counterMove = new int[6 * 64];
+        continuationHistory = new int[6 * 64][6 * 64];
     }
 
     public void clear() {
@@ -29,12 +40,28 @@ public class SortInfo {
         for (int i = 0; i < 6; i++) {
             Arrays.fill(history[i], 0);
         }
+        Arrays.fill(counterMove, 0);
+        for (int i = 0; i < 6 * 64; i++) {
+            Arrays.fill(continuationHistory[i], 0);
+        }
+    }
+
+    /**
+     * Index by piece moved and destination square
+     */
+    private static int pieceToIndex(int move) {
+        return (Move.getPieceMoved(move) - 1) * 64 + Move.getToIndex(move);
     }
 
     /**
-     * we are informed of the score produced by the move at any level
+     * we are informed of the score produced by the move at any level, the
+     * quiet moves searched before it at the same node are penalized
+     *
+     * @param depth            the ply of the node
+     * @param depthRemaining   in plies, the history bonus grows with its square
+     * @param quietsSearched   quiet moves searched in the node, can include the move
      */
-    public void betaCutoff(Board board, int move, int depth) {
+    public void betaCutoff(Board board, int move, int depth, int depthRemaining, int[] quietsSearched, int quietsSearchedCount) {
 
         // removes captures and promotions from killers
         if (move == 0 || Move.isTactical(move)) {
@@ -46,22 +73,67 @@ public class SortInfo {
             killerMove1[depth] = move;
         }
 
-        history[Move.getPieceMoved(move) - 1][Move.getToIndex(move)]++;
+        int bonus = Math.min(HISTORY_BONUS * depthRemaining * depthRemaining, HISTORY_BONUS_MAX);
+        int lastMove = board.getLastMove();
+        int[] continuation = null;
+        if (lastMove != 0) {
+            int lastIndex = pieceToIndex(lastMove);
+            counterMove[lastIndex] = move;
+            continuation = continuationHistory[lastIndex];
+        }
 
-        // Detect history overflows and divide all values by two
-        if (history[Move.getPieceMoved(move) - 1][Move.getToIndex(move)] >= HISTORY_MAX) {
-            for (int i = 0; i < 6; i++) {
-                for (int j = 0; j < 64; j++) {
-                    history[i][j] >>>= 1;
-                }
+        updateHistory(move, continuation, bonus);
+        for (int i = 0; i < quietsSearchedCount; i++) {
+            if (quietsSearched[i] != move) {
+                updateHistory(quietsSearched[i], continuation, -bonus);
             }
         }
     }
 
+    private void updateHistory(int move, int[] continuation, int bonus) {
+        int[] pieceHistory = history[Move.getPieceMoved(move) - 1];
+        int toIndex = Move.getToIndex(move);
+        pieceHistory[toIndex] = gravity(pieceHistory[toIndex], bonus);
+        if (continuation != null) {
+            int index = pieceToIndex(move);
+            continuation[index] = gravity(continuation[index], bonus);
+        }
+    }
+
+    /**
+     * Adds the bonus reduced proportionally to the current value, the
+     * value gets closer to HISTORY_MAX (or -HISTORY_MAX) but never reaches
+     * it, so the table never needs to be rescaled
+     */
+    private static int gravity(int value, int bonus) {
+        return value + bonus - value * Math.abs(bonus) / HISTORY_MAX;
+    }
+
     public int getMoveScore(int move) {
         return history[Move.getPieceMoved(move) - 1][Move.getToIndex(move)];
     }
 
+    /**
+     * History score plus the continuation history after lastMove
+     */
+    public int getMoveScore(int move, int lastMove) {
+        int score = history[Move.getPieceMoved(move) - 1][Move.getToIndex(move)];
+        if (lastMove != 0) {
+            score += continuationHistory[pieceToIndex(lastMove)][pieceToIndex(move)];
+        }
+        return score;
+    }
+
+    /**
+     * The quiet move that produced the last beta cutoff after lastMove
+     */
+    public int getCounterMove(int lastMove) {
+        if (lastMove == 0) {
+            return 0;
+        }
+        return counterMove[pieceToIndex(lastMove)];
+    }
+
     public boolean isKiller(int move, int depth) {
         return (killerMove1[depth] == move) || (killerMove2[depth] == move);
     }
@@ -5,18 +5,22 @@ import com.alonsoruibal.chess.Config;
 import com.alonsoruibal.chess.Move;
 import com.alonsoruibal.chess.bitboard.BitboardUtils;
 import com.alonsoruibal.chess.evaluation.CompleteEvaluator;
+import com.alonsoruibal.chess.evaluation.EvaluationContext;
 import com.alonsoruibal.chess.evaluation.Evaluator;
 import com.alonsoruibal.chess.evaluation.ExperimentalEvaluator;
+import com.alonsoruibal.chess.evaluation.KpkBitbase;
+import com.alonsoruibal.chess.evaluation.NnueEvaluator;
+import com.alonsoruibal.chess.evaluation.NnueNetwork;
 import com.alonsoruibal.chess.evaluation.SimplifiedEvaluator;
 import com.alonsoruibal.chess.log.Logger;
 import com.alonsoruibal.chess.movesort.MoveIterator;
+import com.alonsoruibal.chess.movesort.QuiescenceMoveIterator;
 import com.alonsoruibal.chess.movesort.SortInfo;
+import com.alonsoruibal.chess.tablebase.TablebaseProber;
 import com.alonsoruibal.chess.tt.MultiprobeTranspositionTable;
 import com.alonsoruibal.chess.tt.TranspositionTable;
 
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 import java.util.Random;
 
 /**
@@ -35,6 +39,13 @@ public class SearchEngine implements Runnable {
     private static final int PLY = 2;
     private static final int LMR_DEPTHS_NOT_REDUCED = 3 * PLY;
     private static final int RAZOR_DEPTH = 4 * PLY;
+    private static final int MAX_QUIETS_SEARCHED = 64;
+    // Nodes searched between two clock checks
+    private static final int CLOCK_CHECK_NODES = 1024;
+    // Expected time of the next iteration relative to the last one
+    private static final int TIME_NEXT_ITERATION_FACTOR = 2;
+    // A score drop from the previous iteration bigger than this extends the time
+    private static final int TIME_SCORE_DROP = 30;
 
     public static final int NODE_ROOT = 0;
     public static final int NODE_PV = 1;
@@ -49,16 +60,38 @@ public class SearchEngine implements Runnable {
 
     // time to think to
     private long thinkTo = 0;
+    // Time management (with clock): soft time limit, adjusted between iterations
+    private boolean timeManaged;
+    private long softTime;
+    private int rootMoveCount;
+    private int bestMoveStability;
+    private int lastIterationScore;
+    // Node limit of the search (0 = no limit)
+    private long nodesLimit = 0;
+    // Nodes left to the next clock check
+    private int nodesToCheck;
+    // Set by stop(), usually from other thread
+    private volatile boolean stopped = false;
 
     private Board board;
     private SearchObserver observer;
     private Evaluator evaluator;
+    private EvaluationContext evaluationContext;
     private TranspositionTable tt;
+    private TablebaseProber tablebaseProber;
     private SortInfo sortInfo;
     private MoveIterator[] moveIterators;
+    // The singular extension searches are at the ply of a node that is still iterating its moves
+    private MoveIterator[] exclusionMoveIterators;
+    private QuiescenceMoveIterator[] qsMoveIterators;
 
     private long bestMoveTime; // For testing suites
     private int globalBestMove, ponderMove;
+    // Triangular PV table: the PV from each ply and its length, updated at PV nodes
+    private int[][] pvMoves;
+    private int[] pvLength;
+    // Quiet moves searched at each ply, penalized in the history when other move produces a cutoff
+    private int[][] quietsSearched;
     private String pv;
 
     private int initialPly; // Inital Ply of search
@@ -76,6 +109,7 @@ public class SearchEngine implements Runnable {
     private long pvAllNodes;
     private long nullCutNodes;
     private long nullAllNodes;
+    private int tbHits;
 
     // aspiration window
     private static long aspirationWindowProbe = 0;
@@ -87,6 +121,16 @@ public class SearchEngine implements Runnable {
     // Aggresive Futility pruning
     private static long aggressiveFutilityHit = 0;
 
+    // Late move pruning
+    private static long lmpHit = 0;
+
+    // History pruning
+    private static long historyPruningHit = 0;
+
+    // ProbCut
+    private static long probcutProbe = 0;
+    private static long probcutHit = 0;
+
     // Razoring
     private static long razoringProbe = 0;
     private static long razoringHit = 0;
@@ -95,6 +139,9 @@ public class SearchEngine implements Runnable {
     private static long singularExtensionProbe = 0;
     private static long singularExtensionHit = 0;
 
+    // KPK bitbase draws
+    private static long kpkDrawHit = 0;
+
     // Null Move
     private static long nullMoveProbe = 0;
     private static long nullMoveHit = 0;
@@ -121,8 +168,18 @@ public class SearchEngine implements Runnable {
         board = new Board();
         sortInfo = new SortInfo();
         moveIterators = new MoveIterator[MAX_DEPTH];
+        exclusionMoveIterators = new MoveIterator[MAX_DEPTH];
+        qsMoveIterators = new QuiescenceMoveIterator[MAX_DEPTH];
+        pvMoves = new int[MAX_DEPTH + 1][];
+        for (int i = 0; i <= MAX_DEPTH; i++) {
+            pvMoves[i] = new int[MAX_DEPTH + 1 - i];
+        }
+        pvLength = new int[MAX_DEPTH + 1];
+        quietsSearched = new int[MAX_DEPTH][MAX_QUIETS_SEARCHED];
         for (int i = 0; i < MAX_DEPTH; i++) {
             moveIterators[i] = new MoveIterator(board, sortInfo, i);
+            exclusionMoveIterators[i] = new MoveIterator(board, sortInfo, i);
+            qsMoveIterators[i] = new QuiescenceMoveIterator(board);
         }
 
         pvReductionMatrix = new int[MAX_DEPTH][64];
@@ -153,10 +210,13 @@ public class SearchEngine implements Runnable {
         observer = null;
         tt = null;
         evaluator = null;
+        evaluationContext = null;
         sortInfo = null;
         if (moveIterators != null) {
             for (int i = 0; i < MAX_DEPTH; i++) {
                 moveIterators[i] = null;
+                exclusionMoveIterators[i] = null;
+                qsMoveIterators[i] = null;
             }
         }
         System.gc();
@@ -178,6 +238,24 @@ public class SearchEngine implements Runnable {
             evaluator = new CompleteEvaluator(config);
         } else if ("experimental".equals(evaluatorName)) {
             evaluator = new ExperimentalEvaluator(config);
+        } else if ("nnue".equals(evaluatorName)) {
+            NnueNetwork network = NnueNetwork.load(config.getNnueFile());
+            if (network != null) {
+                evaluator = new NnueEvaluator(network);
+            } else {
+                logger.error("Network not loaded, using the experimental evaluator");
+                evaluator = new ExperimentalEvaluator(config);
+            }
+        }
+        evaluationContext = evaluator.newContext();
+        // The board keeps the piece square sums of the evaluator
+        board.setPieceSquareValues(evaluator.getPieceSquareValues());
+
+        tablebaseProber = null;
+        if (config.getTablebaseDirectory() != null) {
+            logger.debug("Loading tablebases");
+            tablebaseProber = new TablebaseProber();
+            tablebaseProber.load(config.getTablebaseDirectory());
         }
 
         int size = BitboardUtils.square2Index((long) config.getTranspositionTableSize()) + 16;
@@ -248,9 +326,8 @@ public class SearchEngine implements Runnable {
             ext += config.getExtensionsMateThreat();
         }
         if (ext < config.getExtensionsRecapture() && board.getLastMoveIsRecapture()) {
-            int seeValue = board.see(move);
             int capturedPieceValue = pieceValue(board.getPieceAt(Move.getToSquare(move)));
-            if (seeValue > capturedPieceValue - 50) {
+            if (board.seeGE(move, capturedPieceValue - 49)) {
                 ext = config.getExtensionsRecapture();
             }
         }
@@ -308,6 +385,8 @@ public class SearchEngine implements Runnable {
                 // System.out.println(board.toString());
                 // System.exit(-1);
                 // }
+                // Only full evaluations are stored
+                evaluationContext.lazy = false;
                 int score = tt.getScore();
                 if (!board.getTurn()) {
                     score = -score;
@@ -315,8 +394,13 @@ public class SearchEngine implements Runnable {
                 return score;
             }
         }
-        int score = evaluator.evaluateBoard(board, alpha, beta);
-        tt.set(board, TranspositionTable.TYPE_EVAL, 0, score, (byte) 0, false);
+        // The evaluator scores and window are from the white side
+        int score = board.getTurn() ? evaluator.evaluateBoard(board, evaluationContext, alpha, beta)
+                : evaluator.evaluateBoard(board, evaluationContext, -beta, -alpha);
+        // Lazy scores are not exact, so they are not stored
+        if (!evaluationContext.lazy) {
+            tt.set(board, TranspositionTable.TYPE_EVAL, 0, score, (byte) 0, false);
+        }
         if (!board.getTurn()) {
             score = -score;
         }
@@ -339,10 +423,6 @@ public class SearchEngine implements Runnable {
         return score;
     }
 
-    private int lastCapturedPieceValue(Board board) {
-        return pieceValue(board.getLastCapturedPiece());
-    }
-
     private int pieceValue(char piece) {
         int capturedPieceValue = 0;
         switch (Character.toLowerCase(piece)) {
@@ -360,6 +440,18 @@ public class SearchEngine implements Runnable {
         return capturedPieceValue;
     }
 
+    /**
+     * Called every CLOCK_CHECK_NODES nodes (or at the node limit) instead of
+     * reading the clock at every node
+     */
+    private void checkFinished() throws SearchFinishedException {
+        long nodes = positionCounter + pvPositionCounter + qsPositionCounter;
+        if (foundOneMove && (stopped || System.currentTimeMillis() > thinkTo || (nodesLimit != 0 && nodes >= nodesLimit))) {
+            throw new SearchFinishedException();
+        }
+        nodesToCheck = nodesLimit != 0 && nodes < nodesLimit ? (int) Math.min(CLOCK_CHECK_NODES, nodesLimit - nodes) : CLOCK_CHECK_NODES;
+    }
+
     /**
      * Search horizon node (depth == 0) some kind of quiescent search
      *
@@ -367,17 +459,16 @@ public class SearchEngine implements Runnable {
      * @throws SearchFinishedException
      */
     public int quiescentSearch(int qsdepth, int alpha, int beta) throws SearchFinishedException {
-        if (System.currentTimeMillis() > thinkTo && foundOneMove) {
-            throw new SearchFinishedException();
+        if (--nodesToCheck <= 0) {
+            checkFinished();
         }
         qsPositionCounter++;
 
-        // checks draw by three fold repetition. and fifty moves rule
-        if (board.isDraw()) {
+        // checks draw by repetition and fifty moves rule
+        if (board.isDraw(initialPly)) {
             return evaluateDraw();
         }
 
-        int ttMove = 0;
         int eval = -Evaluator.VICTORY;
         int score;
         boolean pv = beta - alpha > 1;
@@ -423,8 +514,20 @@ public class SearchEngine implements Runnable {
         // Generate checks for PV on PLY 0
         boolean generateChecks = pv && (qsdepth == 0);
 
-        MoveIterator moveIterator = moveIterators[board.getMoveNumber() - initialPly];
-        moveIterator.genMoves(ttMove, true, generateChecks);
+        // Delta pruning: captures that cannot raise the score to alpha are not generated
+        int deltaValue = Integer.MIN_VALUE;
+        if (!checkEvasion
+                && !pv
+                && (((board.queens | board.rooks) & board.getOthers()) != 0 || BitboardUtils.popCount((board.bishops | board.knights) & board.getOthers()) > 1)) {
+            // A lazy eval can be far below the full one, and with it the captures that reach alpha would be pruned
+            if (evaluationContext.lazy) {
+                eval = eval(-Evaluator.VICTORY, Evaluator.VICTORY, foundTT, true);
+            }
+            deltaValue = alpha - eval - config.getFutilityMarginQS();
+        }
+
+        QuiescenceMoveIterator moveIterator = qsMoveIterators[board.getMoveNumber() - initialPly];
+        moveIterator.genMoves(generateChecks, deltaValue);
         int move;
 
         while ((move = moveIterator.next()) != 0) {
@@ -432,27 +535,8 @@ public class SearchEngine implements Runnable {
             if (board.doMove(move, false)) {
                 validOperations = true;
 
-                // Futility pruning
-                if (!board.getCheck()
-                        && !checkEvasion
-                        && !Move.isPromotion(move)
-                        && !Move.isPawnPush(move)
-                        && !pv
-                        && (((board.queens | board.rooks) & board.getMines()) != 0 || (BitboardUtils.popCount(board.bishops | board.knights) & board.getMines()) > 1)) {
-                    int futilityValue = eval + lastCapturedPieceValue(board) + config.getFutilityMarginQS();
-                    if (futilityValue < alpha) {
-						// if (futilityValue > bestValue) bestValue =
-                        // futilityValue; //TODO
-                        // System.out.println("PRUNE!");
-                        board.undoMove();
-                        continue;
-                    }
-                }
-
-                // Necessary because TT move can be a no promotion or capture
-                if (!checkEvasion && !(board.getCheck() //
-                        && generateChecks) //
-                        && moveIterator.getPhase() > MoveIterator.PHASE_GOOD_CAPTURES_AND_PROMOS) {
+                // Discovered checks are only candidates
+                if (moveIterator.getPhase() == QuiescenceMoveIterator.PHASE_CHECKS && !board.getCheck()) {
                     board.undoMove();
                     continue;
                 }
@@ -480,20 +564,37 @@ public class SearchEngine implements Runnable {
      * Search Root, PV and null window
      */
     public int search(int nodeType, int depthRemaining, int alpha, int beta, boolean allowNullMove, int excludedMove) throws SearchFinishedException {
-        if (System.currentTimeMillis() > thinkTo && foundOneMove) {
-            throw new SearchFinishedException();
+        if (--nodesToCheck <= 0) {
+            checkFinished();
         }
         if (nodeType == NODE_PV || nodeType == NODE_ROOT) {
             pvPositionCounter++;
+            pvLength[board.getMoveNumber() - initialPly] = 0;
         } else {
             positionCounter++;
         }
 
-        // checks draw by treefold rep. and fifty moves rule
-        if (board.isDraw()) {
+        // checks draw by repetition and fifty moves rule
+        if (board.isDraw(initialPly)) {
+            return evaluateDraw();
+        }
+
+        // King and pawn versus king draws from the bitbase cut the subtree, the wins are scored by the evaluators
+        if (nodeType != NODE_ROOT && KpkBitbase.isKpk(board) && !KpkBitbase.probe(board)) {
+            kpkDrawHit++;
             return evaluateDraw();
         }
 
+        // Exact distance to mate from the tablebases
+        if (nodeType != NODE_ROOT && tablebaseProber != null) {
+            int tbValue = tablebaseProber.probe(board);
+            if (tbValue != TablebaseProber.NOT_FOUND) {
+                tbHits++;
+                int ply = board.getMoveNumber() - initialPly;
+                return tbValue > 0 ? valueMateIn(ply + 2 * tbValue - 1) : tbValue < 0 ? valueMatedIn(ply - 2 * tbValue - 2) : evaluateDraw();
+            }
+        }
+
         // Mate distance pruning
         alpha = Math.max(valueMatedIn(board.getMoveNumber() - initialPly), alpha);
         beta = Math.min(valueMateIn(board.getMoveNumber() - initialPly + 1), beta);
@@ -511,7 +612,8 @@ public class SearchEngine implements Runnable {
         ttProbe++;
         boolean foundTT = tt.search(board, excludedMove != 0);
         if (foundTT) {
-            if (nodeType != NODE_ROOT //
+            // Not at PV nodes, the PV would be cut at this node
+            if (nodeType == NODE_NULL //
                     && canUseTT(depthRemaining, alpha, beta)) {
                 return tt.getScore();
             }
@@ -526,9 +628,9 @@ public class SearchEngine implements Runnable {
 
         int eval = -Evaluator.VICTORY;
 
-        // Do a static eval
+        // Do a static eval, with the full window because the pruning margins need it exact
         if (!board.getCheck()) {
-            eval = eval(beta - 1, beta, foundTT, true);
+            eval = eval(-Evaluator.VICTORY, Evaluator.VICTORY, foundTT, true);
         }
 
         // Hyatt's Razoring http://chessprogramming.wikispaces.com/Razoring
@@ -599,6 +701,41 @@ public class SearchEngine implements Runnable {
             }
         }
 
+        // ProbCut: a good capture failing high against a raised beta in a
+        // shallower search is likely to fail high in the full depth search
+        if (nodeType == NODE_NULL //
+                && config.getProbcut() //
+                && !board.getCheck() //
+                && excludedMove == 0 //
+                && depthRemaining >= config.getProbcutDepth() * PLY //
+                && !valueIsMate(beta)) {
+            int rbeta = Math.min(beta + config.getProbcutMargin(), Evaluator.VICTORY - 1);
+            int rdepth = depthRemaining - 4 * PLY;
+
+            MoveIterator moveIterator = moveIterators[board.getMoveNumber() - initialPly];
+            moveIterator.genMoves(ttMove, true, false);
+            int move;
+            while ((move = moveIterator.next()) != 0) {
+                // Only captures winning enough material to reach rbeta from the static eval
+                if (!Move.isCapture(move) || !board.seeGE(move, rbeta - eval)) {
+                    continue;
+                }
+                if (board.doMove(move, false)) {
+                    probcutProbe++;
+                    // The quiescence search discards cheaply most of the captures
+                    score = -quiescentSearch(0, -rbeta, -rbeta + 1);
+                    if (score >= rbeta) {
+                        score = -search(NODE_NULL, rdepth, -rbeta, -rbeta + 1, true, 0);
+                    }
+                    board.undoMove();
+                    if (score >= rbeta) {
+                        probcutHit++;
+                        return score;
+                    }
+                }
+            }
+        }
+
         // Internal Iterative Deepening
         if (config.getIid() //
                 && ttMove == 0 //
@@ -609,6 +746,9 @@ public class SearchEngine implements Runnable {
                 && excludedMove == 0) {
             int d = (nodeType == NODE_PV ? depthRemaining - 2 * PLY : depthRemaining >> 1);
             search(nodeType, d, alpha, beta, true, 0); // TODO Allow null move ?
+            if (nodeType != NODE_NULL) {
+                pvLength[board.getMoveNumber() - initialPly] = 0;
+            }
             if (tt.search(board, false)) {
                 ttMove = tt.getBestMove();
             }
@@ -644,7 +784,10 @@ public class SearchEngine implements Runnable {
         }
 
         int movesDone = 0;
-        MoveIterator moveIterator = moveIterators[board.getMoveNumber() - initialPly];
+        int quietsSearchedCount = 0;
+        int lastMove = board.getLastMove();
+        int counterMove = sortInfo.getCounterMove(lastMove);
+        MoveIterator moveIterator = (excludedMove == 0 ? moveIterators : exclusionMoveIterators)[board.getMoveNumber() - initialPly];
         moveIterator.genMoves(ttMove);
         boolean validOperations = false;
         boolean checkEvasion = board.getCheck();
@@ -654,6 +797,10 @@ public class SearchEngine implements Runnable {
             int extension = 0;
             int reduction = 0;
 
+            if (nodeType == NODE_ROOT && !searchParameters.isSearchMove(move)) {
+                continue;
+            }
+
 			// Operations are pseudo-legal, doMove checks if they lead to a
             // valid state
             if (board.doMove(move, false)) {
@@ -675,6 +822,9 @@ public class SearchEngine implements Runnable {
                     board.undoMove();
                     int seBeta = ttScore - config.getSingularExtensionMargin();
                     int excScore = search(nodeType, depthRemaining >> 1, seBeta - 1, seBeta, false, move);
+                    if (nodeType != NODE_NULL) {
+                        pvLength[board.getMoveNumber() - initialPly] = 0;
+                    }
                     board.doMove(move);
                     if (excScore < seBeta) {
                         singularExtensionHit++;
@@ -692,6 +842,7 @@ public class SearchEngine implements Runnable {
                         || Move.isCastling(move) //
                         || checkEvasion //
                         || move == ttMove //
+                        || move == counterMove //
                         || sortInfo.isKiller(move, board.getMoveNumber() - initialPly);
 
                 if (futilityPrune //
@@ -701,6 +852,28 @@ public class SearchEngine implements Runnable {
                     continue;
                 }
 
+                // Late move and history pruning of the sorted quiet moves
+                if (nodeType == NODE_NULL //
+                        && !importantMove //
+                        && !board.getCheck() //
+                        && bestScore > -Evaluator.VICTORY + 100 //
+                        && moveIterator.getPhase() == MoveIterator.PHASE_NONCAPTURES) {
+                    if (config.getLmp() //
+                            && depthRemaining <= config.getLmpDepth() * PLY //
+                            && movesDone >= config.getLmpMoves() + depthRemaining * depthRemaining / (PLY * PLY)) {
+                        lmpHit++;
+                        board.undoMove();
+                        continue;
+                    }
+                    if (config.getHistoryPruning() //
+                            && depthRemaining <= config.getHistoryPruningDepth() * PLY //
+                            && sortInfo.getMoveScore(move, lastMove) < -config.getHistoryPruningThreshold() * depthRemaining * depthRemaining / (PLY * PLY)) {
+                        historyPruningHit++;
+                        board.undoMove();
+                        continue;
+                    }
+                }
+
                 // Late move reductions (LMR)
                 if (config.getLmr() //
                         && depthRemaining >= LMR_DEPTHS_NOT_REDUCED //
@@ -709,6 +882,9 @@ public class SearchEngine implements Runnable {
                 }
 
                 movesDone++;
+                if (!Move.isTactical(move) && quietsSearchedCount < MAX_QUIETS_SEARCHED) {
+                    quietsSearched[board.getMoveNumber() - initialPly - 1][quietsSearchedCount++] = move;
+                }
 
                 int lowBound = (alpha > bestScore ? alpha : bestScore);
                 if ((nodeType == NODE_PV || nodeType == NODE_ROOT) && movesDone == 1) {
@@ -740,6 +916,11 @@ public class SearchEngine implements Runnable {
                 if (score > bestScore && (nodeType != NODE_ROOT || config.getRand() == 0 || (random.nextInt(100) > config.getRand()))) {
                     bestMove = move;
                     bestScore = score;
+
+                    // The child line is exact only after a PV search inside the window
+                    if ((nodeType == NODE_PV || nodeType == NODE_ROOT) && score > lowBound && (nodeType == NODE_ROOT || score < beta)) {
+                        updatePv(board.getMoveNumber() - initialPly, move);
+                    }
                 }
 
                 // alpha/beta cut (fail high)
@@ -757,7 +938,8 @@ public class SearchEngine implements Runnable {
         // Tells MoveSorter the move score
         if (bestScore >= beta) {
             if (excludedMove == 0) {
-                sortInfo.betaCutoff(board, bestMove, board.getMoveNumber() - initialPly);
+                sortInfo.betaCutoff(board, bestMove, board.getMoveNumber() - initialPly, depthRemaining / PLY,
+                        quietsSearched[board.getMoveNumber() - initialPly], quietsSearchedCount);
             }
             if (nodeType == NODE_NULL) {
                 nullCutNodes++;
@@ -804,13 +986,19 @@ public class SearchEngine implements Runnable {
         logger.debug("Null All          = " + nullAllNodes);
         logger.debug("Asp Win      Hits = " + (100.0 * aspirationWindowHit / aspirationWindowProbe) + "%");
         logger.debug("TT Eval      Hits = " + ttEvalHit + " " + (100.0 * ttEvalHit / ttEvalProbe) + "%");
+        logger.debug("Lazy Eval M. Hits = " + evaluationContext.lazyEvalMaterialHit + " " + (100.0 * evaluationContext.lazyEvalMaterialHit / evaluationContext.evalProbe) + "%");
         logger.debug("TT PV        Hits = " + ttPvHit + " " + (100.0 * ttPvHit / ttProbe) + "%");
         logger.debug("TT LB        Hits = " + ttProbe + " " + (100.0 * ttLBHit / ttProbe) + "%");
         logger.debug("TT UB        Hits = " + ttUBHit + " " + (100.0 * ttUBHit / ttProbe) + "%");
         logger.debug("Futility     Hits = " + futilityHit);
         logger.debug("Agg.Futility Hits = " + aggressiveFutilityHit);
+        logger.debug("LMP          Hits = " + lmpHit);
+        logger.debug("History P.   Hits = " + historyPruningHit);
+        logger.debug("KPK Draw     Hits = " + kpkDrawHit);
+        logger.debug("Tablebase    Hits = " + tbHits);
         logger.debug("Null Move    Hits = " + nullMoveHit + " " + (100.0 * nullMoveHit / nullMoveProbe) + "%");
         logger.debug("Razoring     Hits = " + razoringHit + " " + (100.0 * razoringHit / razoringProbe) + "%");
+        logger.debug("ProbCut      Hits = " + probcutHit + " " + (100.0 * probcutHit / probcutProbe) + "%");
         logger.debug("S.Extensions Hits = " + singularExtensionHit + " " + (100.0 * singularExtensionHit / singularExtensionProbe) + "%");
     }
 
@@ -824,15 +1012,32 @@ public class SearchEngine implements Runnable {
         positionCounter = 0;
         pvPositionCounter = 0;
         qsPositionCounter = 0;
+        tbHits = 0;
         bestMoveTime = 0;
         globalBestMove = 0;
         ponderMove = 0;
         pv = null;
 
         initialPly = board.getMoveNumber();
-        thinkTo = startTime + searchParameters.calculateMoveTime(board) - 100;
+        timeManaged = searchParameters.isTimeManaged(board);
+        softTime = searchParameters.calculateMoveTime(board);
+        thinkTo = startTime + searchParameters.calculateMaxMoveTime(board) - 100;
+        nodesLimit = searchParameters.getNodes();
+        nodesToCheck = 0;
+        stopped = false;
+
+        int[] rootMoves = new int[256];
+        int legalMoveCount = board.getLegalMoves(rootMoves);
+        rootMoveCount = 0;
+        for (int i = 0; i < legalMoveCount; i++) {
+            if (searchParameters.isSearchMove(rootMoves[i])) {
+                rootMoveCount++;
+            }
+        }
+        bestMoveStability = 0;
+        lastIterationScore = -Evaluator.VICTORY;
 
-        if (config.getUseBook() && config.getBook() != null && board.isUsingBook()
+        if (config.getUseBook() && config.getBook() != null && board.isUsingBook() && searchParameters.getSearchMoves().isEmpty()
                 && (config.getBookKnowledge() == 100 || ((random.nextFloat() * 100) < config.getBookKnowledge()))) {
             logger.debug("Searching Move in Book");
             int bookMove = config.getBook().getMove(board);
@@ -853,6 +1058,7 @@ public class SearchEngine implements Runnable {
     }
 
     public void runStepped() throws SearchFinishedException {
+        long iterationStartTime = System.currentTimeMillis();
         int failHighCount = 0;
         int failLowCount = 0;
         int initialScore = score;
@@ -899,16 +1105,33 @@ public class SearchEngine implements Runnable {
         info.setScore(score);
         info.setNodes(positionCounter + pvPositionCounter + qsPositionCounter);
         info.setNps((int) (1000 * (positionCounter + pvPositionCounter + qsPositionCounter) / ((time - startTime + 1))));
+        info.setTbHits(tbHits);
         logger.debug(info.toString());
 
         if (observer != null) {
             observer.info(info);
         }
 
-        // if mate found exit
-        if ((score < -Evaluator.VICTORY + 1000) || (score > Evaluator.VICTORY - 1000)) {
+        int mate = searchParameters.getMate();
+        if (mate != 0) {
+            // Mate limit: exit with a mate in the requested moves or when its depth is searched
+            if (score >= valueMateIn(2 * mate - 1) || depth >= 2 * mate) {
+                throw new SearchFinishedException();
+            }
+        } else if ((score < -Evaluator.VICTORY + 1000) || (score > Evaluator.VICTORY - 1000)) {
+            // if mate found exit
+            throw new SearchFinishedException();
+        }
+
+        // Depth limit
+        if (searchParameters.getDepth() != 0 && depth >= searchParameters.getDepth()) {
+            throw new SearchFinishedException();
+        }
+
+        if (timeManaged && isTimeToFinish(time - startTime, time - iterationStartTime, failLowCount > 0, oldBestMove != globalBestMove)) {
             throw new SearchFinishedException();
         }
+        lastIterationScore = score;
 
         depth++;
         if (depth == MAX_DEPTH) {
@@ -916,6 +1139,31 @@ public class SearchEngine implements Runnable {
         }
     }
 
+    /**
+     * Decides between iterations if the search must end before the soft time
+     * limit (only one legal move or a stable best move) or can go beyond it
+     * (best move changes, fail low at the root or score dropping), and does
+     * not start an iteration that is not expected to finish before the hard
+     * limit
+     */
+    private boolean isTimeToFinish(long elapsed, long iterationTime, boolean failLow, boolean bestMoveChanged) {
+        if (rootMoveCount == 1) {
+            return true;
+        }
+        bestMoveStability = bestMoveChanged ? 0 : bestMoveStability + 1;
+
+        int timeFactor; // percent of the soft time
+        if (failLow || score < lastIterationScore - TIME_SCORE_DROP) {
+            timeFactor = 150;
+        } else if (bestMoveChanged) {
+            timeFactor = 120;
+        } else {
+            timeFactor = Math.max(50, 100 - 10 * bestMoveStability);
+        }
+        return elapsed >= softTime * timeFactor / 100
+                || startTime + elapsed + TIME_NEXT_ITERATION_FACTOR * iterationTime > thinkTo;
+    }
+
     public void finishRun() {
         // puts the board in the initial position
         board.undoMove(initialPly);
@@ -938,44 +1186,33 @@ public class SearchEngine implements Runnable {
     }
 
     /**
-     * Gets the principal variation and the best move from the transposition
-     * table
+     * The PV of a ply is the move followed by the PV of the next ply
+     */
+    private void updatePv(int ply, int move) {
+        int childLength = pvLength[ply + 1];
+        pvMoves[ply][0] = move;
+        System.arraycopy(pvMoves[ply + 1], 0, pvMoves[ply], 1, childLength);
+        pvLength[ply] = childLength + 1;
+    }
+
+    /**
+     * Gets the principal variation and the best move from the PV table
      */
     private void getPv() {
         StringBuilder sb = new StringBuilder();
-        List<Long> keys = new ArrayList<Long>(); // To not repeat keys
-        int i = 0;
-        while (i < 256) {
-            if (tt.search(board, false)) {
-                if (keys.contains(board.getKey())) {
-                    break;
-                }
-                keys.add(board.getKey());
-                if (tt.getBestMove() == 0) {
-                    break;
-                }
-                if (i == 0) {
-                    globalBestMove = tt.getBestMove();
-                } else if (i == 1) {
-                    ponderMove = tt.getBestMove();
-                }
-                sb.append(Move.toString(tt.getBestMove()));
-                sb.append(" ");
-                i++;
-                board.doMove(tt.getBestMove(), false);
-            } else {
-                break;
-            }
+        for (int i = 0; i < pvLength[0]; i++) {
+            sb.append(Move.toString(pvMoves[0][i]));
+            sb.append(" ");
         }
-        // Now undo moves
-        for (int j = 0; j < i; j++) {
-            board.undoMove();
+        if (pvLength[0] > 0) {
+            globalBestMove = pvMoves[0][0];
+            ponderMove = (pvLength[0] > 1 ? pvMoves[0][1] : 0);
         }
         pv = sb.toString();
     }
 
     public void stop() {
-        thinkTo = 0;
+        stopped = true;
     }
 
     /**
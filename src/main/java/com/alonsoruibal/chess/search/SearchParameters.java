@@ -3,6 +3,9 @@ package com.alonsoruibal.chess.search;
 import com.alonsoruibal.chess.Board;
 import com.alonsoruibal.chess.log.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class SearchParameters {
 
     /**
@@ -27,6 +30,8 @@ public class SearchParameters {
     int moveTime;
     // think infinite
     boolean infinite;
+    // Search only these moves at the root, all if empty
+    List<Integer> searchMoves = new ArrayList<Integer>();
 
     boolean ponder;
 
@@ -118,10 +123,33 @@ public class SearchParameters {
         this.infinite = infinite;
     }
 
+    public List<Integer> getSearchMoves() {
+        return searchMoves;
+    }
+
+    public void setSearchMoves(List<Integer> searchMoves) {
+        this.searchMoves = searchMoves;
+    }
+
+    public void addSearchMove(int move) {
+        searchMoves.add(move);
+    }
+
+    public boolean isSearchMove(int move) {
+        return searchMoves.isEmpty() || searchMoves.contains(move);
+    }
+
+    /**
+     * If the search time is managed by the engine from the remaining time
+     * (otherwise the search uses all the time given)
+     */
+    public boolean isTimeManaged(Board board) {
+        return !infinite && moveTime == 0 && (board.getTurn() ? wtime : btime) > 0;
+    }
+
     /**
-     * TODO elaborate a bit
-     *
-     * @return
+     * Soft limit: the time the engine expects to use, it is adjusted by the
+     * search between iterations
      */
     public long calculateMoveTime(Board board) {
         if (infinite) {
@@ -130,21 +158,38 @@ public class SearchParameters {
         if (moveTime != 0) {
             return moveTime;
         }
+        // Without time control the search is only limited by depth, nodes or mate
+        if ((board.getTurn() ? wtime : btime) == 0 && (depth != 0 || nodes != 0 || mate != 0)) {
+            return 999999999;
+        }
 
         int calctime = 0;
-        if (board.getTurn()) {
-            if (wtime > 0) {
-                calctime = wtime / 40 + winc;
-            }
-        } else {
-            if (btime > 0) {
-                calctime = btime / 40 + binc;
-            }
+        if (isTimeManaged(board)) {
+            calctime = (int) Math.min(getBaseTime(board), calculateMaxMoveTime(board));
         }
         logger.debug("Thinking for " + calctime + "Ms");
         return calctime;
     }
 
+    /**
+     * Hard limit: the search is never longer
+     */
+    public long calculateMaxMoveTime(Board board) {
+        if (!isTimeManaged(board)) {
+            return calculateMoveTime(board);
+        }
+        return Math.min(4 * getBaseTime(board), (board.getTurn() ? wtime : btime) * 3 / 4);
+    }
+
+    /**
+     * The remaining time split in the moves to the next time control (40 if
+     * unknown) plus the increment
+     */
+    private int getBaseTime(Board board) {
+        int movesLeft = movesToGo > 0 ? Math.min(movesToGo, 40) : 40;
+        return board.getTurn() ? wtime / movesLeft + winc : btime / movesLeft + binc;
+    }
+
     public static SearchParameters get(int moveTime) {
         SearchParameters searchParameters = new SearchParameters();
         searchParameters.setMoveTime(moveTime);
@@ -237,6 +237,10 @@ public class SearchStatusInfo {
             sb.append(" nps ");
             sb.append(nps);
         }
+        if (tbHits != 0) {
+            sb.append(" tbhits ");
+            sb.append(tbHits);
+        }
         if (pv != null) {
             sb.append(" pv ");
             sb.append(pv);
@@ -0,0 +1,242 @@
+package com.alonsoruibal.chess.tablebase;
+
+import com.alonsoruibal.chess.Move;
+import com.alonsoruibal.chess.hash.MaterialKey;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Distance to mate table of one material set (3 to 5 pieces), with one byte by position and side to move.
+ * The value is from the side to move: 0 draw, n > 0 it mates in n moves, n < 0 it is mated in -n - 1 moves
+ * (-1 is checkmated).
+ * <p/>
+ * The pieces are ordered: white king, the other white pieces from queen to pawn, black king and the other
+ * black pieces. The side with more material is the white one, the tables of the reversed colors are probed
+ * flipping the board. Positions are indexed by the squares of the pieces, using the symmetries to keep the
+ * white king in 10 squares (A1-D1-D4 triangle) or in 32 squares (A-D columns) when there are pawns.
+ * <p/>
+ * File format (named like "KQvKR.tb"), big-endian: the int MAGIC, the long material key, the int size and
+ * the values. The material keys are the ones of MaterialKey, so a board is probed with its key.
+ *
+ * @author rui
+ */
+public class Tablebase {
+    public final static int MAGIC = 0x43544233; // "CTB3"
+    public final static int HEADER_SIZE = 16;
+    public final static int MAX_PIECES = 5;
+
+    public final static byte DRAW = 0;
+
+    private final static String PIECE_NAMES = " PNBRQK";
+
+    // Index of the white king squares in the A1-D1-D4 triangle or -1, and the reverse
+    private final static int[] TRIANGLE_INDEX = new int[64];
+    private final static int[] TRIANGLE_SQUARES = new int[10];
+
+    static {
+        int slot = 0;
+        for (int i = 0; i < 64; i++) {
+            int column = 7 - i & 7;
+            int rank = i >> 3;
+            if (column < 4 && rank <= column) {
+                TRIANGLE_SQUARES[slot] = i;
+                TRIANGLE_INDEX[i] = slot++;
+            } else {
+                TRIANGLE_INDEX[i] = -1;
+            }
+        }
+    }
+
+    public final long materialKey;
+    public final String name;
+    public final int pieceCount;
+    // Move.PAWN...Move.KING and 0 white, 1 black
+    public final int[] pieceTypes;
+    public final int[] pieceColors;
+    public final boolean hasPawns;
+    public final int size;
+
+    ByteBuffer values;
+
+    /**
+     * Empty table of a material set, its pieces must be in the canonical order and colors
+     */
+    Tablebase(long materialKey) {
+        this.materialKey = materialKey;
+        name = getName(materialKey);
+        pieceCount = getPieceCount(materialKey);
+        pieceTypes = new int[pieceCount];
+        pieceColors = new int[pieceCount];
+        int j = 0;
+        for (int color = 0; color < 2; color++) {
+            pieceTypes[j] = Move.KING;
+            pieceColors[j++] = color;
+            for (int type = Move.QUEEN; type >= Move.PAWN; type--) {
+                for (int k = 0; k < MaterialKey.getCount(materialKey, color, type); k++) {
+                    pieceTypes[j] = type;
+                    pieceColors[j++] = color;
+                }
+            }
+        }
+        hasPawns = MaterialKey.getCount(materialKey, 0, Move.PAWN) + MaterialKey.getCount(materialKey, 1, Move.PAWN) > 0;
+        size = (hasPawns ? 32 : 10) << (6 * (pieceCount - 1) + 1);
+    }
+
+    public static int getPieceCount(long materialKey) {
+        int count = 2;
+        for (int color = 0; color < 2; color++) {
+            for (int type = Move.PAWN; type <= Move.QUEEN; type++) {
+                count += MaterialKey.getCount(materialKey, color, type);
+            }
+        }
+        return count;
+    }
+
+    private static int getValue(long materialKey, int color) {
+        final int[] values = {0, 1, 3, 3, 5, 9};
+        int value = 0;
+        for (int type = Move.PAWN; type <= Move.QUEEN; type++) {
+            value += values[type] * MaterialKey.getCount(materialKey, color, type);
+        }
+        return value;
+    }
+
+    /**
+     * If the tables of this material set have the white pieces as the first ones
+     */
+    public static boolean isCanonical(long materialKey) {
+        int whiteValue = getValue(materialKey, 0);
+        int blackValue = getValue(materialKey, 1);
+        return whiteValue > blackValue || (whiteValue == blackValue && (materialKey & 0xffffffffL) >= (materialKey >>> 32));
+    }
+
+    /**
+     * Name like "KQvKR"
+     */
+    public static String getName(long materialKey) {
+        StringBuilder sb = new StringBuilder();
+        for (int color = 0; color < 2; color++) {
+            if (color == 1) {
+                sb.append('v');
+            }
+            sb.append('K');
+            for (int type = Move.QUEEN; type >= Move.PAWN; type--) {
+                for (int k = 0; k < MaterialKey.getCount(materialKey, color, type); k++) {
+                    sb.append(PIECE_NAMES.charAt(type));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Index of a position, the squares ordered like the pieces of the table
+     */
+    public int getIndex(int[] squares, boolean whiteToMove) {
+        // The symmetry moving the white king to its region
+        int king = squares[0];
+        int mirror = (7 - king & 7) > 3 ? 7 : 0;
+        king ^= mirror;
+        int flip = 0;
+        boolean transpose = false;
+        int index;
+        if (hasPawns) {
+            index = ((king >> 3) << 2) | (7 - king & 7);
+        } else {
+            if ((king >> 3) > 3) {
+                flip = 56;
+                king ^= flip;
+            }
+            if ((king >> 3) > (7 - king & 7)) {
+                transpose = true;
+                king = transpose(king);
+            }
+            index = TRIANGLE_INDEX[king];
+        }
+        for (int i = 1; i < pieceCount; i++) {
+            int square = squares[i] ^ mirror ^ flip;
+            index = (index << 6) | (transpose ? transpose(square) : square);
+        }
+        return (index << 1) | (whiteToMove ? 0 : 1);
+    }
+
+    /**
+     * Swaps the column (counted from A) and the rank
+     */
+    private static int transpose(int square) {
+        return ((7 - square & 7) << 3) | (7 - (square >> 3));
+    }
+
+    /**
+     * Squares of the position of an index
+     *
+     * @return if white is to move
+     */
+    public boolean getSquares(int index, int[] squares) {
+        boolean whiteToMove = (index & 1) == 0;
+        index >>>= 1;
+        for (int i = pieceCount - 1; i > 0; i--) {
+            squares[i] = index & 63;
+            index >>>= 6;
+        }
+        squares[0] = hasPawns ? ((index >> 2) << 3) | (7 - (index & 3)) : TRIANGLE_SQUARES[index];
+        return whiteToMove;
+    }
+
+    public int get(int index) {
+        return values.get(index);
+    }
+
+    /**
+     * Maps the values of a table file
+     */
+    public static Tablebase load(File file) throws IOException {
+        DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        long materialKey;
+        int size;
+        try {
+            if (dis.readInt() != MAGIC) {
+                throw new IOException("Not a tablebase file: " + file);
+            }
+            materialKey = dis.readLong();
+            size = dis.readInt();
+        } finally {
+            dis.close();
+        }
+        Tablebase tablebase = new Tablebase(materialKey);
+        if (tablebase.pieceCount > MAX_PIECES || size != tablebase.size || file.length() != HEADER_SIZE + size) {
+            throw new IOException("Invalid tablebase file: " + file);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping remains valid after closing the channel
+            tablebase.values = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size);
+        } finally {
+            raf.close();
+        }
+        return tablebase;
+    }
+
+    public void write(File file) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeLong(materialKey);
+            dos.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                dos.writeByte(values.get(i));
+            }
+        } finally {
+            dos.close();
+        }
+    }
+}
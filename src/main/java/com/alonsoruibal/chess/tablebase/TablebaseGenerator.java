@@ -0,0 +1,457 @@
+package com.alonsoruibal.chess.tablebase;
+
+import com.alonsoruibal.chess.Move;
+import com.alonsoruibal.chess.bitboard.BitboardAttacks;
+import com.alonsoruibal.chess.hash.MaterialKey;
+import com.alonsoruibal.chess.log.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the distance to mate tablebases by retrograde analysis. The tables reached by captures and
+ * promotions are generated (or loaded from the output directory) first.
+ * <p/>
+ * The mates are found first, then each pass n finds the positions that mate in n moves (with a move to a
+ * position mated in n - 1) and then the ones mated in n moves (all the moves go to positions mating in n
+ * or less). The positions not resolved when a pass finds nothing are draws. The passes are parallelized
+ * with fork/join over index ranges; they can update the values in place because each step only reads the
+ * values that it does not write.
+ * <p/>
+ * En passant captures and castlings are not taken into account. The memory used is one byte by position:
+ * 5M for 4 pieces without pawns, up to 1G for 5 pieces with pawns.
+ * <p/>
+ * Usage: TablebaseGenerator directory [threads] KQvK KRvK KPvK ...
+ *
+ * @author rui
+ */
+public class TablebaseGenerator {
+    private static final Logger logger = Logger.getLogger("TablebaseGenerator");
+
+    // Value of the positions not resolved yet
+    private final static byte UNRESOLVED = -128;
+    // Max distance to mate that can be stored
+    private final static int MAX_MOVES = 126;
+    private final static int MAX_SUCCESSORS = 256;
+    // Positions processed by each fork/join task
+    private final static int TASK_POSITIONS = 16384;
+
+    private final static int STEP_INIT = 0;
+    private final static int STEP_WIN = 1;
+    private final static int STEP_LOSS = 2;
+
+    private final static int[] PROMOTIONS = {Move.QUEEN, Move.ROOK, Move.BISHOP, Move.KNIGHT};
+
+    private final File directory;
+    private final ForkJoinPool pool;
+    private final TablebaseProber prober = new TablebaseProber();
+    private final BitboardAttacks bbAttacks = BitboardAttacks.getInstance();
+
+    // Table being generated and the state of the current step
+    private Tablebase tablebase;
+    private int step;
+    private int moves;
+    private final AtomicLong changes = new AtomicLong();
+    // Longest mate of each table, by material key
+    private final HashMap<Long, Integer> maxMoves = new HashMap<Long, Integer>();
+
+    private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
+    private class Worker {
+        final TablebaseProber prober = new TablebaseProber(TablebaseGenerator.this.prober);
+        final int[] squares = new int[Tablebase.MAX_PIECES];
+        final int[] types = new int[Tablebase.MAX_PIECES];
+        final int[] colors = new int[Tablebase.MAX_PIECES];
+        final int[] successorSquares = new int[Tablebase.MAX_PIECES];
+        final int[] successors = new int[MAX_SUCCESSORS];
+    }
+
+    private class StepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        StepTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > TASK_POSITIONS) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new StepTask(from, middle), new StepTask(middle, to));
+                return;
+            }
+            Worker worker = workers.get();
+            ByteBuffer values = tablebase.values;
+            long taskChanges = 0;
+            for (int i = from; i < to; i++) {
+                if (values.get(i) != UNRESOLVED) {
+                    continue;
+                }
+                byte value = resolve(worker, i);
+                if (value != UNRESOLVED) {
+                    values.put(i, value);
+                    taskChanges++;
+                }
+            }
+            changes.addAndGet(taskChanges);
+        }
+    }
+
+    public TablebaseGenerator(File directory, int threads) {
+        this.directory = directory;
+        pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Generates a table and the tables reached from it, the ones already in the directory are loaded
+     */
+    public Tablebase generate(long materialKey) throws IOException {
+        if (!Tablebase.isCanonical(materialKey)) {
+            materialKey = MaterialKey.flipColors(materialKey);
+        }
+        Tablebase existing = prober.get(materialKey);
+        if (existing != null) {
+            return existing;
+        }
+        File file = new File(directory, Tablebase.getName(materialKey) + ".tb");
+        if (file.exists()) {
+            Tablebase loaded = Tablebase.load(file);
+            prober.add(loaded);
+            return loaded;
+        }
+
+        // Tables reached by captures, promotions and captures with promotion
+        int subtablesMaxMoves = 0;
+        for (int color = 0; color < 2; color++) {
+            for (int type = Move.PAWN; type <= Move.QUEEN; type++) {
+                if (MaterialKey.getCount(materialKey, color, type) > 0) {
+                    long captured = materialKey - MaterialKey.unit[color][type];
+                    subtablesMaxMoves = Math.max(subtablesMaxMoves, generateSubtable(captured));
+                    if (MaterialKey.getCount(materialKey, 1 - color, Move.PAWN) > 0) {
+                        for (int promotion : PROMOTIONS) {
+                            subtablesMaxMoves = Math.max(subtablesMaxMoves, generateSubtable(promote(captured, 1 - color, promotion)));
+                        }
+                    }
+                }
+            }
+            if (MaterialKey.getCount(materialKey, color, Move.PAWN) > 0) {
+                for (int promotion : PROMOTIONS) {
+                    subtablesMaxMoves = Math.max(subtablesMaxMoves, generateSubtable(promote(materialKey, color, promotion)));
+                }
+            }
+        }
+
+        logger.debug("Generating " + Tablebase.getName(materialKey) + "...");
+        long time = System.currentTimeMillis();
+        tablebase = new Tablebase(materialKey);
+        tablebase.values = ByteBuffer.allocate(tablebase.size);
+        for (int i = 0; i < tablebase.size; i++) {
+            tablebase.values.put(i, UNRESOLVED);
+        }
+        runStep(STEP_INIT, 0);
+        // The positions mated from the subtables can take one more move to be found
+        for (int n = 1; n <= MAX_MOVES; n++) {
+            long found = runStep(STEP_WIN, n) + runStep(STEP_LOSS, n);
+            if (found == 0 && n > subtablesMaxMoves + 1) {
+                break;
+            }
+        }
+        for (int i = 0; i < tablebase.size; i++) {
+            if (tablebase.values.get(i) == UNRESOLVED) {
+                tablebase.values.put(i, Tablebase.DRAW);
+            }
+        }
+        tablebase.write(file);
+        prober.add(tablebase);
+        logger.debug("Generated " + tablebase.name + " in " + (System.currentTimeMillis() - time) + "ms, longest mate in " + getMaxMoves(tablebase) + " moves");
+        return tablebase;
+    }
+
+    /**
+     * @return the longest mate of the subtable
+     */
+    private int generateSubtable(long materialKey) throws IOException {
+        if (Tablebase.getPieceCount(materialKey) < 3) {
+            return 0;
+        }
+        return getMaxMoves(generate(materialKey));
+    }
+
+    private int getMaxMoves(Tablebase table) {
+        Integer max = maxMoves.get(table.materialKey);
+        if (max == null) {
+            max = 0;
+            for (int i = 0; i < table.size; i++) {
+                max = Math.max(max, table.get(i));
+            }
+            maxMoves.put(table.materialKey, max);
+        }
+        return max;
+    }
+
+    private static long promote(long materialKey, int color, int promotion) {
+        return materialKey - MaterialKey.unit[color][Move.PAWN] + MaterialKey.unit[color][promotion];
+    }
+
+    private long runStep(int step, int moves) {
+        this.step = step;
+        this.moves = moves;
+        changes.set(0);
+        pool.invoke(new StepTask(0, tablebase.size));
+        return changes.get();
+    }
+
+    /**
+     * The value of an unresolved position in the current step, or UNRESOLVED
+     */
+    private byte resolve(Worker worker, int index) {
+        boolean whiteToMove = tablebase.getSquares(index, worker.squares);
+        int count = successors(worker, whiteToMove);
+        switch (step) {
+            case STEP_INIT:
+                if (count < 0) {
+                    return Tablebase.DRAW; // Not valid
+                } else if (count == 0) {
+                    return isAttacked(worker.squares, kingIndex(whiteToMove ? 0 : 1), whiteToMove ? 1 : 0, -1) ? (byte) -1 : Tablebase.DRAW;
+                }
+                return UNRESOLVED;
+            case STEP_WIN:
+                // Mates in n moves if it can go to a position mated in n - 1 moves
+                for (int i = 0; i < count; i++) {
+                    if (worker.successors[i] == -moves) {
+                        return (byte) moves;
+                    }
+                }
+                return UNRESOLVED;
+            case STEP_LOSS:
+                // Mated in n if all the moves go to positions mating in n or less
+                int max = 0;
+                for (int i = 0; i < count; i++) {
+                    int value = worker.successors[i];
+                    if (value <= 0) {
+                        return UNRESOLVED;
+                    }
+                    max = Math.max(max, value);
+                }
+                return max == moves ? (byte) (-moves - 1) : UNRESOLVED;
+        }
+        return UNRESOLVED;
+    }
+
+    private int kingIndex(int color) {
+        for (int i = 0; i < tablebase.pieceCount; i++) {
+            if (tablebase.pieceTypes[i] == Move.KING && tablebase.pieceColors[i] == color) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Fills the values of the positions after each legal move, from the side to move there
+     *
+     * @return the number of legal moves or -1 if the position is not valid
+     */
+    private int successors(Worker worker, boolean whiteToMove) {
+        int[] squares = worker.squares;
+        int pieceCount = tablebase.pieceCount;
+        int us = whiteToMove ? 0 : 1;
+        long all = 0;
+        long[] occupied = {0, 0};
+        for (int i = 0; i < pieceCount; i++) {
+            long square = 1L << squares[i];
+            if ((all & square) != 0) {
+                return -1;
+            }
+            if (tablebase.pieceTypes[i] == Move.PAWN && ((squares[i] >> 3) == 0 || (squares[i] >> 3) == 7)) {
+                return -1;
+            }
+            all |= square;
+            occupied[tablebase.pieceColors[i]] |= square;
+        }
+        // The side not to move cannot be in check
+        if (isAttacked(squares, kingIndex(1 - us), us, -1)) {
+            return -1;
+        }
+
+        int ourKing = kingIndex(us);
+        int count = 0;
+        for (int i = 0; i < pieceCount; i++) {
+            if (tablebase.pieceColors[i] != us) {
+                continue;
+            }
+            int from = squares[i];
+            int type = tablebase.pieceTypes[i];
+            long targets;
+            switch (type) {
+                case Move.PAWN:
+                    int push = whiteToMove ? from + 8 : from - 8;
+                    targets = whiteToMove ? bbAttacks.pawnUpwards[from] & occupied[1] : bbAttacks.pawnDownwards[from] & occupied[0];
+                    if ((all & (1L << push)) == 0) {
+                        targets |= 1L << push;
+                        int doublePush = whiteToMove ? from + 16 : from - 16;
+                        if ((from >> 3) == (whiteToMove ? 1 : 6) && (all & (1L << doublePush)) == 0) {
+                            targets |= 1L << doublePush;
+                        }
+                    }
+                    break;
+                case Move.KNIGHT:
+                    targets = bbAttacks.knight[from] & ~occupied[us];
+                    break;
+                case Move.BISHOP:
+                    targets = bbAttacks.getBishopAttacks(from, all) & ~occupied[us];
+                    break;
+                case Move.ROOK:
+                    targets = bbAttacks.getRookAttacks(from, all) & ~occupied[us];
+                    break;
+                case Move.QUEEN:
+                    targets = (bbAttacks.getRookAttacks(from, all) | bbAttacks.getBishopAttacks(from, all)) & ~occupied[us];
+                    break;
+                default:
+                    targets = bbAttacks.king[from] & ~occupied[us];
+            }
+            while (targets != 0) {
+                long toSquare = targets & -targets;
+                targets ^= toSquare;
+                int to = Long.numberOfTrailingZeros(toSquare);
+                int captured = -1;
+                if ((occupied[1 - us] & toSquare) != 0) {
+                    for (int j = 0; j < pieceCount; j++) {
+                        if (squares[j] == to) {
+                            captured = j;
+                        }
+                    }
+                }
+                squares[i] = to;
+                if (!isAttacked(squares, ourKing, 1 - us, captured)) {
+                    if (type == Move.PAWN && ((to >> 3) == 0 || (to >> 3) == 7)) {
+                        for (int promotion : PROMOTIONS) {
+                            worker.successors[count++] = probeSubtable(worker, i, promotion, captured, whiteToMove);
+                        }
+                    } else if (captured >= 0) {
+                        worker.successors[count++] = probeSubtable(worker, i, type, captured, whiteToMove);
+                    } else {
+                        worker.successors[count++] = tablebase.get(tablebase.getIndex(squares, !whiteToMove));
+                    }
+                }
+                squares[i] = from;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Value after a capture or promotion (the squares already have the piece moved)
+     */
+    private int probeSubtable(Worker worker, int moved, int movedType, int captured, boolean whiteToMove) {
+        int count = 0;
+        for (int j = 0; j < tablebase.pieceCount; j++) {
+            if (j != captured) {
+                worker.types[count] = j == moved ? movedType : tablebase.pieceTypes[j];
+                worker.colors[count] = tablebase.pieceColors[j];
+                worker.successorSquares[count++] = worker.squares[j];
+            }
+        }
+        if (count == 2) {
+            return Tablebase.DRAW;
+        }
+        int value = worker.prober.probe(worker.types, worker.colors, worker.successorSquares, count, !whiteToMove);
+        if (value == TablebaseProber.NOT_FOUND) {
+            throw new IllegalStateException("Subtable not generated");
+        }
+        return value;
+    }
+
+    /**
+     * If the piece is attacked by the pieces of a color, ignoring a captured piece
+     */
+    private boolean isAttacked(int[] squares, int piece, int color, int captured) {
+        int target = squares[piece];
+        long targetSquare = 1L << target;
+        long all = 0;
+        for (int i = 0; i < tablebase.pieceCount; i++) {
+            if (i != captured) {
+                all |= 1L << squares[i];
+            }
+        }
+        for (int i = 0; i < tablebase.pieceCount; i++) {
+            if (i == captured || tablebase.pieceColors[i] != color) {
+                continue;
+            }
+            int from = squares[i];
+            long attacks;
+            switch (tablebase.pieceTypes[i]) {
+                case Move.PAWN:
+                    attacks = color == 0 ? bbAttacks.pawnUpwards[from] : bbAttacks.pawnDownwards[from];
+                    break;
+                case Move.KNIGHT:
+                    attacks = bbAttacks.knight[from];
+                    break;
+                case Move.BISHOP:
+                    attacks = bbAttacks.getBishopAttacks(from, all);
+                    break;
+                case Move.ROOK:
+                    attacks = bbAttacks.getRookAttacks(from, all);
+                    break;
+                case Move.QUEEN:
+                    attacks = bbAttacks.getRookAttacks(from, all) | bbAttacks.getBishopAttacks(from, all);
+                    break;
+                default:
+                    attacks = bbAttacks.king[from];
+            }
+            if ((attacks & targetSquare) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: TablebaseGenerator directory [threads] KQvK KRvK KPvK ...");
+            return;
+        }
+        int first = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args[1].matches("\\d+")) {
+            threads = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        File directory = new File(args[0]);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.out.println("Cannot create the directory " + directory);
+            return;
+        }
+        TablebaseGenerator generator = new TablebaseGenerator(directory, threads);
+        try {
+            for (int i = first; i < args.length; i++) {
+                long materialKey = MaterialKey.getKey(args[i]);
+                if (materialKey < 0 || Tablebase.getPieceCount(materialKey) > Tablebase.MAX_PIECES) {
+                    System.out.println("Invalid material: " + args[i]);
+                    continue;
+                }
+                generator.generate(materialKey);
+            }
+        } finally {
+            generator.shutdown();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.alonsoruibal.chess.tablebase;
+
+import com.alonsoruibal.chess.Board;
+import com.alonsoruibal.chess.Move;
+import com.alonsoruibal.chess.bitboard.BitboardUtils;
+import com.alonsoruibal.chess.hash.MaterialKey;
+import com.alonsoruibal.chess.log.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Probes the tablebases of a directory, the files are memory mapped so they are shared by all the
+ * probers and only the pages used are read. The probe methods use internal buffers, so each prober
+ * must be used by only one thread.
+ *
+ * @author rui
+ */
+public class TablebaseProber {
+    private static final Logger logger = Logger.getLogger("TablebaseProber");
+
+    public final static int NOT_FOUND = Integer.MIN_VALUE;
+
+    // By the material key of the table and by the key with the colors swapped
+    private final HashMap<Long, Tablebase> tablebases;
+    private int maxPieces = 0;
+
+    private final int[] orderedSquares = new int[Tablebase.MAX_PIECES];
+    private final boolean[] used = new boolean[Tablebase.MAX_PIECES];
+
+    public TablebaseProber() {
+        tablebases = new HashMap<Long, Tablebase>();
+    }
+
+    /**
+     * A prober sharing the tables of other prober
+     */
+    public TablebaseProber(TablebaseProber prober) {
+        tablebases = prober.tablebases;
+        maxPieces = prober.maxPieces;
+    }
+
+    /**
+     * Maps all the tablebase files of a directory
+     */
+    public void load(String directory) {
+        File[] files = new File(directory).listFiles();
+        if (files == null) {
+            logger.error("Tablebase directory not found: " + directory);
+            return;
+        }
+        int loaded = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(".tb")) {
+                try {
+                    add(Tablebase.load(file));
+                    loaded++;
+                } catch (IOException e) {
+                    logger.error("Error loading tablebase: " + e.getMessage());
+                }
+            }
+        }
+        logger.debug("Loaded " + loaded + " tablebases");
+    }
+
+    public void add(Tablebase tablebase) {
+        tablebases.put(tablebase.materialKey, tablebase);
+        tablebases.put(MaterialKey.flipColors(tablebase.materialKey), tablebase);
+        maxPieces = Math.max(maxPieces, tablebase.pieceCount);
+    }
+
+    /**
+     * The table of a material key or of the key with the colors swapped
+     */
+    public Tablebase get(long materialKey) {
+        return tablebases.get(materialKey);
+    }
+
+    public int getMaxPieces() {
+        return maxPieces;
+    }
+
+    /**
+     * Value of a position from the side to move, as stored in the tables, or NOT_FOUND. Positions with
+     * castling rights or en passant squares are not in the tables
+     */
+    public int probe(Board board) {
+        if (BitboardUtils.popCount(board.getAll()) > maxPieces || board.getPassantSquare() != 0
+                || board.getWhiteKingsideCastling() || board.getWhiteQueensideCastling()
+                || board.getBlackKingsideCastling() || board.getBlackQueensideCastling()) {
+            return NOT_FOUND;
+        }
+        Tablebase tablebase = tablebases.get(board.materialKey);
+        if (tablebase == null) {
+            return NOT_FOUND;
+        }
+        // The tables have the stronger side as white, if not the colors are swapped and the board flipped
+        boolean flipped = tablebase.materialKey != board.materialKey;
+        int flip = flipped ? 56 : 0;
+        long remaining = board.getAll();
+        for (int j = 0; j < tablebase.pieceCount; j++) {
+            long pieces = remaining & ((tablebase.pieceColors[j] == 0) != flipped ? board.whites : board.blacks);
+            switch (tablebase.pieceTypes[j]) {
+                case Move.PAWN:
+                    pieces &= board.pawns;
+                    break;
+                case Move.KNIGHT:
+                    pieces &= board.knights;
+                    break;
+                case Move.BISHOP:
+                    pieces &= board.bishops;
+                    break;
+                case Move.ROOK:
+                    pieces &= board.rooks;
+                    break;
+                case Move.QUEEN:
+                    pieces &= board.queens;
+                    break;
+                default:
+                    pieces &= board.kings;
+            }
+            long square = BitboardUtils.lsb(pieces);
+            remaining ^= square;
+            orderedSquares[j] = BitboardUtils.square2Index(square) ^ flip;
+        }
+        return tablebase.get(tablebase.getIndex(orderedSquares, board.getTurn() != flipped));
+    }
+
+    /**
+     * Value of a position given by the type, color and square of its pieces, in any order
+     */
+    public int probe(int[] types, int[] colors, int[] squares, int count, boolean whiteToMove) {
+        long materialKey = 0;
+        for (int i = 0; i < count; i++) {
+            if (types[i] != Move.KING) {
+                materialKey += MaterialKey.unit[colors[i]][types[i]];
+            }
+        }
+        Tablebase tablebase = tablebases.get(materialKey);
+        if (tablebase == null) {
+            return NOT_FOUND;
+        }
+        boolean flipped = tablebase.materialKey != materialKey;
+        int flip = flipped ? 56 : 0;
+        for (int i = 0; i < count; i++) {
+            used[i] = false;
+        }
+        for (int j = 0; j < count; j++) {
+            for (int i = 0; i < count; i++) {
+                if (!used[i] && types[i] == tablebase.pieceTypes[j] && (colors[i] ^ (flipped ? 1 : 0)) == tablebase.pieceColors[j]) {
+                    used[i] = true;
+                    orderedSquares[j] = squares[i] ^ flip;
+                    break;
+                }
+            }
+        }
+        return tablebase.get(tablebase.getIndex(orderedSquares, whiteToMove != flipped));
+    }
+}
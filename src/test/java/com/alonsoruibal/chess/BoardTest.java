@@ -0,0 +1,57 @@
+package com.alonsoruibal.chess;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the repetition draws of Board.isDraw() with and without a search root
+ */
+public class BoardTest {
+
+    // The knights go and come back, repeating the position of the start
+    private static final String[] KNIGHTS_BACK = {"g1f3", "g8f6", "f3g1", "f6g8"};
+
+    private final Board board = new Board();
+
+    @Before
+    public void setUp() {
+        board.setFen(Board.FEN_START_POSITION);
+    }
+
+    @Test
+    public void testRootRepeatedOnceIsNotADraw() {
+        int root = board.getMoveNumber();
+        doMoves(KNIGHTS_BACK);
+        assertFalse(board.isDraw(root));
+        assertFalse(board.isDraw());
+    }
+
+    @Test
+    public void testTreePositionRepeatedOnceIsADraw() {
+        int root = board.getMoveNumber();
+        doMoves(KNIGHTS_BACK);
+        doMoves("g1f3");
+        assertTrue(board.isDraw(root));
+        assertFalse(board.isDraw());
+    }
+
+    @Test
+    public void testRootRepeatedTwiceIsADraw() {
+        // The first repetition is in the game, before the root
+        doMoves(KNIGHTS_BACK);
+        int root = board.getMoveNumber();
+        assertFalse(board.isDraw(root));
+        doMoves(KNIGHTS_BACK);
+        assertTrue(board.isDraw(root));
+        assertTrue(board.isDraw());
+    }
+
+    private void doMoves(String... moves) {
+        for (String move : moves) {
+            assertTrue(move, board.doMove(Move.getFromString(board, move, true)));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.alonsoruibal.chess.evaluation;
+
+import com.alonsoruibal.chess.Board;
+import com.alonsoruibal.chess.Move;
+import com.alonsoruibal.chess.movegen.LegalMoveGenerator;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks with a random network that the incrementally updated evaluation is always the same as the one
+ * refreshed from scratch with a new context
+ */
+public class NnueEvaluatorTest {
+
+    private static final int HIDDEN_SIZE = 32;
+    // Walking back more moves the accumulators are refreshed
+    private static final int MAX_UPDATE_MOVES = 8;
+
+    // With castlings, en passant captures, promotions and captures with promotion
+    private static final String[] FENS = {
+            "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+            "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+            "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+            "r2q1rk1/pP1p2pp/Q4n2/bbp1p3/Np6/1B3NBn/pPPP1PPP/R3K2R b KQ - 0 1",
+            "rnbqkb1r/pp1p1ppp/2p5/4P3/2B5/8/PPP1NnPP/RNBQK2R w KQkq - 0 6"
+    };
+
+    private final Random random = new Random(1);
+    private final LegalMoveGenerator moveGenerator = new LegalMoveGenerator();
+    private final int[] moves = new int[256];
+    private final Board board = new Board();
+
+    private NnueEvaluator evaluator;
+    private EvaluationContext context;
+
+    @Before
+    public void createNetwork() {
+        short[] featureBiases = new short[HIDDEN_SIZE];
+        for (int i = 0; i < featureBiases.length; i++) {
+            featureBiases[i] = (short) random.nextInt(64);
+        }
+        short[] featureWeights = new short[NnueNetwork.FEATURES * HIDDEN_SIZE];
+        for (int i = 0; i < featureWeights.length; i++) {
+            featureWeights[i] = (short) (random.nextInt(41) - 20);
+        }
+        byte[] outputWeights = new byte[2 * HIDDEN_SIZE];
+        for (int i = 0; i < outputWeights.length; i++) {
+            outputWeights[i] = (byte) (random.nextInt(255) - 127);
+        }
+        evaluator = new NnueEvaluator(new NnueNetwork(HIDDEN_SIZE, 64, 100, featureBiases, featureWeights, outputWeights));
+        context = evaluator.newContext();
+    }
+
+    @Test
+    public void testRandomGames() {
+        int kingMoves = 0;
+        for (int game = 0; game < 40; game++) {
+            board.setFen(FENS[game % FENS.length]);
+            for (int ply = 0; ply < 60; ply++) {
+                assertIncrementalEqualsRefresh();
+                int movesCount = moveGenerator.generateMoves(board, moves, 0);
+                if (movesCount == 0) {
+                    break;
+                }
+                // Some children evaluated and undone, like in the search
+                for (int i = 0; i < 3; i++) {
+                    board.doMove(moves[random.nextInt(movesCount)]);
+                    assertIncrementalEqualsRefresh();
+                    board.undoMove();
+                }
+                int move = moves[random.nextInt(movesCount)];
+                if (Move.getPieceMoved(move) == Move.KING) {
+                    kingMoves++;
+                }
+                board.doMove(move);
+            }
+        }
+        assertTrue(kingMoves > 0);
+    }
+
+    @Test
+    public void testKingMoves() {
+        board.setFen(FENS[1]);
+        // Castlings and king moves of both sides, the side of the king that moved is refreshed
+        String[] line = {"e1g1", "e8c8", "g1h1", "c8b8", "h1g1", "b8a8"};
+        for (String move : line) {
+            assertTrue(move, board.doMove(Move.getFromString(board, move, true)));
+            assertIncrementalEqualsRefresh();
+        }
+    }
+
+    @Test
+    public void testWalkBack() {
+        // Updating from the last computed accumulator up to MAX_UPDATE_MOVES moves back and refreshing beyond
+        for (int walk = 1; walk <= MAX_UPDATE_MOVES + 2; walk++) {
+            board.setFen(FENS[1]);
+            context = evaluator.newContext();
+            assertIncrementalEqualsRefresh();
+            for (int i = 0; i < walk; i++) {
+                if (!doRandomMove()) {
+                    break;
+                }
+            }
+            assertIncrementalEqualsRefresh();
+            // Back to the computed positions
+            while (board.moveNumber > board.initialMoveNumber) {
+                board.undoMove();
+                assertIncrementalEqualsRefresh();
+            }
+        }
+    }
+
+    @Test
+    public void testKeyCheck() {
+        // Different positions at the same move numbers must not use the accumulators of the others
+        for (int i = 0; i < 50; i++) {
+            board.setFen(FENS[i % FENS.length]);
+            assertIncrementalEqualsRefresh();
+            for (int j = 0; j < 4; j++) {
+                doRandomMove();
+                assertIncrementalEqualsRefresh();
+            }
+            board.undoMove();
+            board.undoMove();
+            doRandomMove();
+            doRandomMove();
+            assertIncrementalEqualsRefresh();
+        }
+    }
+
+    private boolean doRandomMove() {
+        int movesCount = moveGenerator.generateMoves(board, moves, 0);
+        return movesCount > 0 && board.doMove(moves[random.nextInt(movesCount)]);
+    }
+
+    private void assertIncrementalEqualsRefresh() {
+        int expected = evaluator.evaluateBoard(board, evaluator.newContext(), -Evaluator.VICTORY, Evaluator.VICTORY);
+        assertEquals(board.getFen(), expected, evaluator.evaluateBoard(board, context, -Evaluator.VICTORY, Evaluator.VICTORY));
+    }
+}
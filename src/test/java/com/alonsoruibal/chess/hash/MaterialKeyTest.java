@@ -0,0 +1,66 @@
+package com.alonsoruibal.chess.hash;
+
+import com.alonsoruibal.chess.Board;
+import com.alonsoruibal.chess.Move;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the material keys with more pieces of a type than the initial ones, only possible after promotions
+ */
+public class MaterialKeyTest {
+
+    private final Board board = new Board();
+
+    @Test
+    public void testPromotedKnights() {
+        // The black king goes and comes back while the eight white pawns promote to knights
+        board.setFen("8/PPPPPPPP/8/4k3/b7/b6r/8/1N2K1N1 w - - 0 1");
+        long initialKey = board.materialKey;
+        String[] promotions = {"a7a8n", "b7b8n", "c7c8n", "d7d8n", "e7e8n", "f7f8n", "g7g8n", "h7h8n"};
+        for (int i = 0; i < promotions.length; i++) {
+            doMove(promotions[i]);
+            assertEquals(MaterialKey.getKey(board), board.materialKey);
+            doMove((i & 1) == 0 ? "e5e4" : "e4e5");
+        }
+        long key = board.materialKey;
+        assertEquals(MaterialKey.getKey(board), key);
+        assertEquals(10, MaterialKey.getCount(key, 0, Move.KNIGHT));
+        assertEquals(0, MaterialKey.getCount(key, 0, Move.PAWN));
+        assertEquals(0, MaterialKey.getCount(key, 0, Move.BISHOP));
+        assertEquals(0, MaterialKey.getCount(key, 0, Move.ROOK));
+        assertEquals(0, MaterialKey.getCount(key, 0, Move.QUEEN));
+        assertEquals(2, MaterialKey.getCount(key, 1, Move.BISHOP));
+        assertEquals(1, MaterialKey.getCount(key, 1, Move.ROOK));
+        assertEquals(0, MaterialKey.getCount(key, 1, Move.KNIGHT));
+
+        while (board.moveNumber > board.initialMoveNumber) {
+            board.undoMove();
+        }
+        assertEquals(initialKey, board.materialKey);
+    }
+
+    @Test
+    public void testNineQueens() {
+        board.setFen("QQQQQQQQ/8/8/8/8/8/8/Q3K2k w - - 0 1");
+        long key = MaterialKey.getKey(board);
+        assertEquals(MaterialKey.getKey("KQQQQQQQQQvK"), key);
+        assertEquals(9, MaterialKey.getCount(key, 0, Move.QUEEN));
+        assertEquals(0, MaterialKey.getCount(key, 0, Move.ROOK));
+        assertFalse(MaterialKey.isBareKing(key, 0));
+        assertTrue(MaterialKey.isBareKing(key, 1));
+
+        long flipped = MaterialKey.flipColors(key);
+        assertEquals(MaterialKey.getKey("KvKQQQQQQQQQ"), flipped);
+        assertEquals(9, MaterialKey.getCount(flipped, 1, Move.QUEEN));
+        assertTrue(MaterialKey.isBareKing(flipped, 0));
+        assertEquals(key, MaterialKey.flipColors(flipped));
+    }
+
+    private void doMove(String move) {
+        assertTrue(move, board.doMove(Move.getFromString(board, move, true)));
+    }
+}
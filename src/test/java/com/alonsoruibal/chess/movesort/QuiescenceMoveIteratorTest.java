@@ -0,0 +1,168 @@
+package com.alonsoruibal.chess.movesort;
+
+import com.alonsoruibal.chess.Board;
+import com.alonsoruibal.chess.Move;
+import com.alonsoruibal.chess.evaluation.CompleteEvaluator;
+import com.alonsoruibal.chess.movegen.LegalMoveGenerator;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the moves of the QuiescenceMoveIterator with the legal moves of
+ * the LegalMoveGenerator over a fixed set of positions
+ */
+public class QuiescenceMoveIteratorTest {
+
+    // The side to move is in check: single and double checks, checks by sliders with interpositions,
+    // en passant captures and promotions
+    private static final String[] CHECK_FENS = {
+            "rn2kr1b/Q2p4/4pp1n/q3P1p1/1PPpb2p/P1B4P/2KPBPP1/RN4R1 w q - 1 22",
+            "1nkrr2b/1b1Q4/1q2pP2/3p1np1/2Pp3p/P1NP3P/RB1K1PP1/R7 b - - 1 36",
+            "1nr1r2b/1bqk4/4pP2/2Np1np1/2Pp3p/P2P3P/RBK2PP1/R7 b - - 5 39",
+            "1nr1r2b/1b6/2knpq2/3P2p1/3pN2p/PK1P3P/RB3PP1/2R5 b - - 0 43",
+            "1n1qr2b/1b6/1k2P3/2P3pN/3p1P1p/PK2B2P/R3r1P1/R7 b - - 0 54",
+            "1n4rb/1b6/2k1P3/q1P3pN/K2p1P1p/P3B2P/2r3P1/6R1 w - - 2 58",
+            "1n4rb/1b6/2k1P3/2P3pN/q2p1P1p/PK2B2P/2r3P1/6R1 w - - 4 59",
+            "r1n1k2b/p1pp1P1r/b4n2/1q4p1/4P1B1/2pN3p/PQPB1PPP/R2KR3 b q - 0 10",
+            "rQ1k3b/p1ppnP2/b2q4/3P1Bpr/8/2pN3p/P1PB1PPP/1R1K1R2 b - - 6 17",
+            "rQbk1B2/2ppq1b1/p5n1/3P1Bpr/P7/2pN3p/1RPBKPPP/5R2 w - - 4 23",
+            "r1QkqB2/2pp2b1/p5n1/3P1Bp1/P4P1r/2pNB2p/1RP1K1PP/5R2 b - - 0 25",
+            "r1k4r/2ppB3/p7/3Pnqp1/PN3P2/2b2KPp/1pPB3P/4R3 w - - 4 33",
+            "r1k5/2pp4/N4r2/3Pn3/P4pPB/B2qb2p/4R2P/1q3K2 w - - 0 47",
+            "r3k3/p2p1pb1/4p1p1/2pP1B2/6Nr/3bQ1Pp/Pq1K1P1P/2b4R w - - 0 20",
+            "2r2q1r/p1pp1pb1/1n2kn2/1b6/1p1N1p2/P1BB3p/1PP2P1P/4QRKR b - - 2 19",
+            "6k1/2rb4/n1p1Bb1N/p6P/PP2nR1P/4P3/1BRpN3/3K4 b - - 2 56",
+            "1r4k1/8/2b2P2/2P1p1p1/5rP1/1p3K1p/7P/2R5 w - - 4 60",
+            "1Q6/8/8/6R1/8/n5k1/1Knp4/8 b - - 2 42",
+            "8/2p5/K7/1P2r3/4ppP1/8/R6k/8 b - g3 0 6",
+            "8/8/8/1Ppp2k1/1K3Rr1/8/4P3/8 w - c6 0 10",
+            "4R3/8/3p1rk1/1Pp5/3K4/8/4P1P1/8 w - c6 0 14",
+            "4r3/2p5/K2p4/1P5k/5pP1/8/4P3/5R2 b - g3 0 4",
+            "8/8/8/4k3/3Pp3/8/8/4K3 b - d3 0 1",
+            "N3kb1r/pb6/3p4/3P4/n5p1/PKP3P1/2Pp1P2/1R2R1b1 b - - 1 29",
+            "r7/1P6/2p3k1/6P1/2bpP3/K7/8/8 w - - 1 24",
+            "K4q2/1P6/8/8/6k1/8/8/8 w - - 1 46",
+            "1K3rR1/4P3/8/1p6/3p4/8/7k/8 w - - 1 20"
+    };
+
+    // The side to move is not in check, with direct and discovered checks by pieces, pawns and the king
+    private static final String[] FENS = {
+            "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+            "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+            "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+            "r2q1rk1/pP1p2pp/Q4n2/bbp1p3/Np6/1B3NBn/pPPP1PPP/R3K2R b KQ - 0 1",
+            "rnbqkbnr/p1ppp1pp/1p3p2/8/1P2P3/7P/P1PP1PP1/RNBQKBNR b KQkq - 0 3",
+            "r1n4b/p1ppkP2/b4n2/1q3Bpr/4P3/2pN3p/PQPB1PPP/R2KR3 w - - 3 12",
+            "B7/p2p3k/8/N3B1pp/bQ1Pqn1P/2P5/1P3P1P/2KBR2R w - - 7 33",
+            "r1q3r1/1P1pn1kp/NQ3n2/bb2p1p1/BpP2B2/5N2/pP1P1PPP/1R2K2R b K - 6 13",
+            "r3k3/p2p1pb1/4p1p1/2pP1B2/6Nr/3bQ1Pp/PqpK1P1P/7R b - - 0 19",
+            "r1bq1bnr/pp2kpp1/5n2/3pp1Pp/2p4P/3P4/PPP1PP1R/RNBQKBN1 w Q - 2 10",
+            "1r6/3pqk2/2b1p3/4Pp2/3B2B1/1p6/1KR3NP/3N4 w - - 0 48",
+            "4k3/8/8/8/8/8/4N3/K3R3 w - - 0 1",
+            "4k3/8/8/8/8/4K3/8/4R3 w - - 0 1",
+            "k7/8/8/8/4P3/8/8/K6B w - - 0 1"
+    };
+
+    private final Board board = new Board();
+    private final QuiescenceMoveIterator iterator = new QuiescenceMoveIterator(board);
+
+    @Test
+    public void testEvasionsAreTheLegalMoves() {
+        for (String fen : CHECK_FENS) {
+            board.setFen(fen);
+            assertTrue(fen, board.getCheck());
+            // Delta pruning must not remove any evasion
+            assertEquals(fen, getLegalMoves(), getIteratorMoves(false, Integer.MIN_VALUE, QuiescenceMoveIterator.PHASE_EVASIONS));
+            assertEquals(fen, getLegalMoves(), getIteratorMoves(false, Integer.MAX_VALUE, QuiescenceMoveIterator.PHASE_EVASIONS));
+        }
+    }
+
+    @Test
+    public void testChecksAreTheQuietMovesGivingCheck() {
+        for (String fen : FENS) {
+            board.setFen(fen);
+            Set<Integer> expected = new HashSet<Integer>();
+            for (int move : getLegalMoves()) {
+                if (!Move.isCapture(move) && !Move.isPromotion(move) && !Move.isCastling(move) && givesCheck(move)) {
+                    expected.add(move);
+                }
+            }
+            // The discovered checks are only candidates
+            Set<Integer> checks = new HashSet<Integer>();
+            for (int move : getIteratorMoves(true, Integer.MIN_VALUE, QuiescenceMoveIterator.PHASE_CHECKS)) {
+                if (givesCheck(move)) {
+                    checks.add(move);
+                }
+            }
+            assertEquals(fen, expected, checks);
+        }
+    }
+
+    @Test
+    public void testDeltaPruning() {
+        int deltaValue = CompleteEvaluator.ROOK;
+        for (String fen : FENS) {
+            board.setFen(fen);
+            Set<Integer> expected = new HashSet<Integer>();
+            for (int move : getIteratorMoves(false, Integer.MIN_VALUE, QuiescenceMoveIterator.PHASE_CAPTURES)) {
+                if (!Move.isCapture(move) || Move.isPromotion(move) || Move.isPawnPush(move) || getVictimValue(move) >= deltaValue) {
+                    expected.add(move);
+                }
+            }
+            assertEquals(fen, expected, getIteratorMoves(false, deltaValue, QuiescenceMoveIterator.PHASE_CAPTURES));
+        }
+    }
+
+    private Set<Integer> getLegalMoves() {
+        int[] moves = new int[256];
+        int movesCount = new LegalMoveGenerator().generateMoves(board, moves, 0);
+        Set<Integer> legalMoves = new HashSet<Integer>();
+        for (int i = 0; i < movesCount; i++) {
+            legalMoves.add(moves[i]);
+        }
+        return legalMoves;
+    }
+
+    /**
+     * The legal moves returned by the iterator in a phase, checking that there are no duplicates
+     */
+    private Set<Integer> getIteratorMoves(boolean generateChecks, int deltaValue, int phase) {
+        iterator.genMoves(generateChecks, deltaValue);
+        Set<Integer> moves = new HashSet<Integer>();
+        int move;
+        while ((move = iterator.next()) != 0) {
+            if (iterator.getPhase() == phase && board.doMove(move, false)) {
+                board.undoMove();
+                assertTrue(board.getFen() + " " + Move.toString(move), moves.add(move));
+            }
+        }
+        return moves;
+    }
+
+    private boolean givesCheck(int move) {
+        board.doMove(move, false);
+        boolean check = board.getCheck();
+        board.undoMove();
+        return check;
+    }
+
+    private int getVictimValue(int move) {
+        switch (Character.toLowerCase(board.getPieceAt(1L << Move.getToIndex(move)))) {
+            case 'n':
+                return CompleteEvaluator.KNIGHT;
+            case 'b':
+                return CompleteEvaluator.BISHOP;
+            case 'r':
+                return CompleteEvaluator.ROOK;
+            case 'q':
+                return CompleteEvaluator.QUEEN;
+            default: // Pawns, also en passant
+                return CompleteEvaluator.PAWN;
+        }
+    }
+}
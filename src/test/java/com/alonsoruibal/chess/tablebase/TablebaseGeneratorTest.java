@@ -0,0 +1,114 @@
+package com.alonsoruibal.chess.tablebase;
+
+import com.alonsoruibal.chess.Board;
+import com.alonsoruibal.chess.Move;
+import com.alonsoruibal.chess.bitboard.BitboardAttacks;
+import com.alonsoruibal.chess.bitboard.BitboardUtils;
+import com.alonsoruibal.chess.evaluation.KpkBitbase;
+import com.alonsoruibal.chess.hash.MaterialKey;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Generates the KQvK and KPvK tables (with their subtables) in a temporary directory and checks them
+ * against the known longest mates and the KPK bitbase
+ */
+public class TablebaseGeneratorTest {
+
+    private static File directory;
+    private static Tablebase kqk;
+    private static Tablebase kpk;
+    private static final TablebaseProber prober = new TablebaseProber();
+
+    @BeforeClass
+    public static void generate() throws IOException {
+        directory = File.createTempFile("tablebases", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        TablebaseGenerator generator = new TablebaseGenerator(directory, 2);
+        try {
+            kqk = generator.generate(MaterialKey.getKey("KQvK"));
+            kpk = generator.generate(MaterialKey.getKey("KPvK"));
+        } finally {
+            generator.shutdown();
+        }
+        prober.load(directory.getPath());
+    }
+
+    @AfterClass
+    public static void delete() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testLongestMates() {
+        assertEquals(10, getMaxValue(kqk));
+        assertEquals(28, getMaxValue(kpk));
+    }
+
+    @Test
+    public void testKpkAgreesWithTheBitbase() {
+        BitboardAttacks bbAttacks = BitboardAttacks.getInstance();
+        int[] types = {Move.KING, Move.PAWN, Move.KING};
+        int[] colors = {0, 0, 1};
+        for (int pawn = 8; pawn < 56; pawn++) {
+            for (int whiteKing = 0; whiteKing < 64; whiteKing++) {
+                for (int blackKing = 0; blackKing < 64; blackKing++) {
+                    if (whiteKing == pawn || blackKing == pawn || BitboardUtils.distance(whiteKing, blackKing) <= 1) {
+                        continue;
+                    }
+                    for (int turn = 0; turn < 2; turn++) {
+                        boolean whiteToMove = turn == 0;
+                        // The black king cannot be in check with white to move
+                        if (whiteToMove && (bbAttacks.pawnUpwards[pawn] & (1L << blackKing)) != 0) {
+                            continue;
+                        }
+                        int value = prober.probe(types, colors, new int[]{whiteKing, pawn, blackKing}, 3, whiteToMove);
+                        boolean whiteWins = whiteToMove ? value > 0 : value < 0;
+                        // The bitbase has the pawn in the A-D columns
+                        int mirror = (pawn & 7) < 4 ? 7 : 0;
+                        assertEquals(whiteKing + " " + pawn + " " + blackKing + " " + whiteToMove,
+                                KpkBitbase.probe(whiteKing ^ mirror, pawn ^ mirror, blackKing ^ mirror, whiteToMove), whiteWins);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testProbeBoard() {
+        Board board = new Board();
+        // Qb8 mates
+        board.setFen("7k/8/6K1/8/8/8/8/1Q6 w - - 0 1");
+        assertEquals(1, prober.probe(board));
+        board.setFen("1Q5k/8/6K1/8/8/8/8/8 b - - 0 1");
+        assertEquals(-1, prober.probe(board));
+        // The same with the colors reversed, probing the flipped table
+        board.setFen("1q6/8/8/8/8/6k1/8/7K b - - 0 1");
+        assertEquals(1, prober.probe(board));
+        board.setFen("8/8/8/8/8/6k1/8/1q5K w - - 0 1");
+        assertEquals(-1, prober.probe(board));
+        board.setFen("4k3/8/8/8/8/8/8/4K3 w - - 0 1");
+        assertEquals(TablebaseProber.NOT_FOUND, prober.probe(board));
+    }
+
+    private static int getMaxValue(Tablebase tablebase) {
+        int max = 0;
+        for (int i = 0; i < tablebase.size; i++) {
+            max = Math.max(max, tablebase.get(i));
+        }
+        return max;
+    }
+}